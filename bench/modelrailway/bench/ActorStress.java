@@ -0,0 +1,98 @@
+package modelrailway.bench;
+
+import modelrailway.core.Controller;
+import modelrailway.core.Event;
+import modelrailway.core.Snapshot;
+import modelrailway.core.Train;
+import modelrailway.util.ActorController;
+import modelrailway.util.LockedController;
+import modelrailway.util.SimpleController;
+
+/**
+ * Stress tests a controller with mixed sensor and REPL traffic from several
+ * threads at once, comparing an ActorController with a LockedController (each
+ * around a SimpleController). One thread plays the loconet thread, sending
+ * section changes. The other plays the REPL, setting turnouts and locating
+ * trains, with several snapshot reads after each command. At the end, the
+ * final snapshot is checked to place every train in some section.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ActorStress {
+	/**
+	 * Run the stress test.
+	 *
+	 * @param args
+	 *            Number of sensor events (default 2000000) and number of trains
+	 *            (default 16).
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		long events = args.length > 0 ? Long.parseLong(args[0]) : 2000000;
+		int nTrains = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		for (int round = 0; round != 3; ++round) {
+			run("locked", new LockedController(new SimpleController(trains(nTrains))), null, events, nTrains);
+			ActorController actor = new ActorController(new SimpleController(trains(nTrains)));
+			run("actor", actor, actor, events, nTrains);
+		}
+	}
+
+	private static Train[] trains(int n) {
+		Train[] trains = new Train[n];
+		for (int i = 0; i != n; ++i) {
+			trains[i] = new Train(1 + (2 * i), true);
+		}
+		return trains;
+	}
+
+	private static void run(String name, final Controller controller, ActorController actor, final long events,
+			final int nTrains) throws InterruptedException {
+		final long commands = events / 10;
+		final long[] reads = new long[1];
+		Thread sensors = new Thread(new Runnable() {
+			public void run() {
+				for (long i = 0; i != events; ++i) {
+					controller.notify(new Event.SectionChanged((int) (i % 64) + 1, (i & 1) == 0));
+				}
+			}
+		});
+		Thread repl = new Thread(new Runnable() {
+			public void run() {
+				for (long i = 0; i != commands; ++i) {
+					if (i % 3 == 0) {
+						controller.set((int) (i % 4), true);
+					} else {
+						controller.locate((int) (i % nTrains), 1 + (2 * (int) (i % nTrains)));
+					}
+					for (int k = 0; k != 10; ++k) {
+						Snapshot snapshot = controller.snapshot();
+						reads[0] += snapshot.section(k % snapshot.size()) >= 0 ? 1 : 0;
+					}
+				}
+			}
+		});
+		long start = System.nanoTime();
+		sensors.start();
+		repl.start();
+		sensors.join();
+		repl.join();
+		if (actor != null) {
+			// Wait for the mailbox to drain, so that all commands are counted
+			// as processed.
+			while (actor.pending() > 0) {
+				Thread.sleep(1);
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		Snapshot snapshot = controller.snapshot();
+		int unknown = 0;
+		for (int i = 0; i != snapshot.size(); ++i) {
+			if (snapshot.section(i) <= 0) {
+				unknown++;
+			}
+		}
+		System.out.println(name + ": " + (long) ((events + commands) / seconds) + " commands/s, "
+				+ (long) (reads[0] / seconds) + " snapshot reads/s, snapshot version " + snapshot.version() + ", "
+				+ unknown + " trains without a section");
+	}
+}
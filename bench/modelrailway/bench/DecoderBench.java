@@ -0,0 +1,150 @@
+package modelrailway.bench;
+
+import java.util.Random;
+
+import jmri.jmrix.loconet.LnConstants;
+import jmri.jmrix.loconet.LocoNetMessage;
+import modelrailway.LocoNetDecoder;
+import modelrailway.SlotTable;
+import modelrailway.core.Event;
+import modelrailway.core.Layout;
+
+/**
+ * Measures the throughput of the table-driven LocoNetDecoder against the
+ * switch statement it replaced (reproduced here as it was), over the same
+ * stream of messages. The stream is mostly sensor reports, with some speed,
+ * direction and turnout messages, and some opcodes which neither decoder
+ * understands. Each decoder is run for several rounds, and the last is
+ * reported, so that both are compiled. Note the two do not do the same work:
+ * the table-driven decoder also updates the slot table, maps sensors through
+ * the layout, and decodes turnout requests and functions, which the switch
+ * ignores.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class DecoderBench {
+	/**
+	 * The number of distinct messages in the stream.
+	 */
+	private static final int MESSAGES = 4096;
+
+	/**
+	 * Counts the events produced, so that they are not optimised away.
+	 */
+	private static long events;
+
+	private static final Event.Listener SINK = new Event.Listener() {
+		@Override
+		public void notify(Event e) {
+			events++;
+		}
+	};
+
+	/**
+	 * Run the benchmark.
+	 *
+	 * @param args
+	 *            Number of messages decoded per round (default 10000000) and
+	 *            seed (default 0).
+	 */
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 0;
+		LocoNetMessage[] messages = messages(new Random(seed));
+		LocoNetDecoder decoder = new LocoNetDecoder(new SlotTable(), Layout.alternating(Layout.MAX_SENSOR));
+		for (int round = 0; round != 5; ++round) {
+			events = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i != count; ++i) {
+				legacy(messages[i % MESSAGES]);
+			}
+			long switched = System.nanoTime() - start;
+			long switchedEvents = events;
+			events = 0;
+			start = System.nanoTime();
+			for (int i = 0; i != count; ++i) {
+				decoder.decode(messages[i % MESSAGES], SINK);
+			}
+			long table = System.nanoTime() - start;
+			System.out.println("Round " + round + ": switch " + (switched / count) + "ns/message ("
+					+ switchedEvents + " events), table " + (table / count) + "ns/message (" + events + " events)");
+		}
+	}
+
+	/**
+	 * Construct a random stream of messages.
+	 */
+	private static LocoNetMessage[] messages(Random random) {
+		LocoNetMessage[] messages = new LocoNetMessage[MESSAGES];
+		for (int i = 0; i != MESSAGES; ++i) {
+			int kind = random.nextInt(10);
+			if (kind < 6) {
+				int address = random.nextInt(64);
+				messages[i] = message(LnConstants.OPC_INPUT_REP, address & 0x7F, ((address >> 7) & 0x0F)
+						| (random.nextBoolean() ? LnConstants.OPC_INPUT_REP_SW : 0)
+						| (random.nextBoolean() ? LnConstants.OPC_INPUT_REP_HI : 0));
+			} else if (kind == 6) {
+				messages[i] = message(LnConstants.OPC_LOCO_SPD, 1 + random.nextInt(8), random.nextInt(128));
+			} else if (kind == 7) {
+				messages[i] = message(LnConstants.OPC_LOCO_DIRF, 1 + random.nextInt(8), random.nextInt(64));
+			} else if (kind == 8) {
+				messages[i] = message(LnConstants.OPC_SW_REQ, random.nextInt(16),
+						(random.nextBoolean() ? LnConstants.OPC_SW_REQ_DIR : 0)
+								| (random.nextBoolean() ? LnConstants.OPC_SW_REQ_OUT : 0));
+			} else {
+				// An opcode which neither decoder understands.
+				messages[i] = message(LnConstants.OPC_LONG_ACK, random.nextInt(128), random.nextInt(128));
+			}
+		}
+		return messages;
+	}
+
+	private static LocoNetMessage message(int opcode, int element1, int element2) {
+		LocoNetMessage message = new LocoNetMessage(4);
+		message.setElement(0, opcode);
+		message.setElement(1, element1);
+		message.setElement(2, element2);
+		return message;
+	}
+
+	/**
+	 * Decode a message using the switch statement from the original
+	 * ModelRailway.message().
+	 */
+	private static void legacy(LocoNetMessage arg0) {
+		Event event = null;
+		int opcode = arg0.getOpCode();
+		switch (opcode) {
+		case LnConstants.OPC_GPON:
+		case LnConstants.OPC_GPOFF:
+			event = new Event.PowerChanged(opcode == LnConstants.OPC_GPON);
+			break;
+		case LnConstants.OPC_LOCO_DIRF:
+			boolean isForward = (arg0.getElement(2) & LnConstants.DIRF_DIR) == LnConstants.DIRF_DIR;
+			event = new Event.DirectionChanged(arg0.getElement(1), isForward);
+			break;
+		case LnConstants.OPC_LOCO_SPD:
+			int speed = arg0.getElement(2);
+			if (speed == 1) {
+				speed = -1;
+			} else if (speed > 1) {
+				speed = speed - 1;
+			}
+			event = new Event.SpeedChanged(arg0.getElement(1), speed / (0x7F - 1));
+			break;
+		case LnConstants.OPC_INPUT_REP:
+			int in1 = arg0.getElement(1);
+			int in2 = arg0.getElement(2);
+			int section = ((((in2 & 0x0f) * 128) + (in1 & 0x7f)) * 2)
+					+ ((in2 & LnConstants.OPC_INPUT_REP_SW) != 0 ? 2 : 1);
+			boolean state = (in2 & LnConstants.OPC_INPUT_REP_HI) != 0;
+			event = new Event.SectionChanged(section, state);
+			break;
+		default:
+		}
+		if (event != null) {
+			SINK.notify(event);
+		}
+	}
+}
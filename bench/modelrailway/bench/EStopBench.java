@@ -0,0 +1,96 @@
+package modelrailway.bench;
+
+import modelrailway.core.Event;
+import modelrailway.util.CommandScheduler;
+
+/**
+ * Measures how long an emergency stop takes to leave the CommandScheduler
+ * when the bus is saturated with routine commands. The scheduler's output
+ * takes as long as a loconet packet would (roughly 2.4ms) to send each
+ * command, and is flooded with speed and turnout changes before each stop.
+ * Each round also sends a flood of emergency stops, and then measures how
+ * long the next routine command waits, which shows that stops do not leave
+ * the token bucket in debt.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class EStopBench {
+	/**
+	 * The time (in nanoseconds) taken to send each command.
+	 */
+	private static final long PACKET = 2400000;
+
+	/**
+	 * The rate (per second) and burst of routine commands, as used by
+	 * ModelRailway.
+	 */
+	private static final int RATE = 200;
+	private static final int BURST = 8;
+
+	private static volatile long stopped;
+	private static volatile long routine;
+
+	/**
+	 * Run the benchmark.
+	 *
+	 * @param args
+	 *            Number of rounds (default 10), routine commands sent before
+	 *            each stop (default 5000) and emergency stops in each flood
+	 *            (default 100).
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int commands = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		int flood = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		CommandScheduler scheduler = new CommandScheduler(new Event.Listener() {
+			@Override
+			public void notify(Event e) {
+				long now = System.nanoTime();
+				if (e instanceof Event.EmergencyStopAll) {
+					stopped = now;
+				} else if (!(e instanceof Event.EmergencyStop)) {
+					routine = now;
+				}
+				while (System.nanoTime() < now + PACKET) {
+					// Spin, as though sending a packet.
+				}
+			}
+		}, RATE, BURST);
+		for (int round = 0; round != rounds; ++round) {
+			for (int i = 0; i != commands; ++i) {
+				scheduler.notify(new Event.SpeedChanged(i % 40, (i % 100) / 100f));
+				scheduler.notify(new Event.TurnoutChanged(i % 16, (i & 1) == 0));
+			}
+			Thread.sleep(50);
+			int pending = scheduler.pending();
+			stopped = 0;
+			long start = System.nanoTime();
+			scheduler.notify(new Event.EmergencyStopAll());
+			while (stopped == 0) {
+				Thread.sleep(0, 100000);
+			}
+			long latency = stopped - start;
+			// Let the remaining turnout commands drain, then flood the
+			// scheduler with stops and time the next routine command.
+			while (scheduler.pending() > 0) {
+				Thread.sleep(10);
+			}
+			for (int i = 0; i != flood; ++i) {
+				scheduler.notify(new Event.EmergencyStop(i % 40));
+			}
+			while (scheduler.pending() > 0) {
+				Thread.sleep(1);
+			}
+			routine = 0;
+			start = System.nanoTime();
+			scheduler.notify(new Event.SpeedChanged(0, 0.5f));
+			while (routine == 0) {
+				Thread.sleep(0, 100000);
+			}
+			System.out.println("Round " + round + ": e-stop latency " + (latency / 1000) + "us with " + pending
+					+ " commands pending; routine command after " + flood + " stops waited "
+					+ ((routine - start) / 1000000) + "ms");
+		}
+	}
+}
@@ -0,0 +1,320 @@
+package modelrailway;
+
+import java.util.Arrays;
+
+import jmri.jmrix.loconet.LnConstants;
+import jmri.jmrix.loconet.LnTrafficController;
+import jmri.jmrix.loconet.LocoNetMessage;
+import modelrailway.util.CommandScheduler;
+
+/**
+ * Monitors the health of a loconet bus. A probe (a query of a turnout's state,
+ * which changes nothing) is sent periodically, and the time taken for its echo
+ * to be received is measured. The latencies of recent probes are kept, from
+ * which percentiles are calculated. Only one probe is outstanding at a time.
+ * A probe whose echo has not been received within a timeout is counted as
+ * lost, and recorded as having taken the whole timeout. Successive probes
+ * query alternate turnouts, so that the late echo of a lost probe is not
+ * mistaken for that of the next. The utilisation of the bus is estimated from
+ * the number of bytes received between probes. Each probe is counted against
+ * the bandwidth budget of the scheduler sending commands to the bus, so that
+ * probing does not take the bus beyond its budget.
+ *
+ * When the bus is slow to respond, commands (including emergency stops) take
+ * longer to reach the trains. Therefore, the monitor tells its handler by how
+ * much train speeds should be scaled down, based on the 95th percentile
+ * latency.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BusMonitor {
+	/**
+	 * Responds to changes in the health of the bus.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface Handler {
+		/**
+		 * Called when the factor by which train speeds should be scaled has
+		 * changed.
+		 *
+		 * @param scale
+		 *            Between the monitor's minimum scale and 1.0 (i.e. full
+		 *            speed).
+		 */
+		public void speedScaleChanged(float scale);
+	}
+
+	/**
+	 * The number of bytes which loconet can carry per second. This runs at
+	 * 16.66K baud, with ten bits per byte.
+	 */
+	public static final double BYTES_PER_SECOND = 1666;
+
+	/**
+	 * The speed scale is rounded to multiples of one over this, so that the
+	 * handler is not told about every small change in latency.
+	 */
+	private static final int SCALE_STEPS = 20;
+
+	private final LnTrafficController bus;
+	private final CommandScheduler budget;
+	private final Handler handler;
+
+	/**
+	 * The first of the two turnouts whose state is queried by probes.
+	 */
+	private final int turnout;
+
+	/**
+	 * The time (in nanoseconds) after which a probe is counted as lost.
+	 */
+	private final long timeout;
+
+	/**
+	 * The 95th percentile latency (in nanoseconds) up to which trains run at
+	 * full speed.
+	 */
+	private final long good;
+
+	/**
+	 * The 95th percentile latency (in nanoseconds) at and beyond which trains
+	 * run at the minimum scale.
+	 */
+	private final long bad;
+
+	/**
+	 * The factor by which train speeds are scaled when the bus is at its
+	 * worst.
+	 */
+	private final float minScale;
+
+	/**
+	 * The latencies (in nanoseconds) of recent probes, held in a ring.
+	 */
+	private final long[] latencies;
+	private int next;
+	private int count;
+
+	/**
+	 * The time (from System.nanoTime()) at which the outstanding probe was
+	 * sent, or -1 if there is none.
+	 */
+	private long sent = -1;
+
+	/**
+	 * The turnout queried by the outstanding probe.
+	 */
+	private int probing;
+
+	/**
+	 * The time at which the bus utilisation was last calculated.
+	 */
+	private long previous = -1;
+
+	private long probes;
+	private long lost;
+	private long bytes;
+	private double utilisation;
+	private float scale = 1.0f;
+
+	/**
+	 * Construct a bus monitor.
+	 *
+	 * @param bus
+	 *            The bus to be monitored.
+	 * @param budget
+	 *            The scheduler of commands to the bus, against whose budget
+	 *            probes are counted.
+	 * @param turnout
+	 *            The first (from 1) of the two turnouts whose state is queried
+	 *            by probes.
+	 * @param timeout
+	 *            Time (ms) after which a probe is counted as lost.
+	 * @param window
+	 *            The number of recent probes from which percentiles are
+	 *            calculated.
+	 * @param good
+	 *            The 95th percentile latency (ms) up to which trains run at
+	 *            full speed.
+	 * @param bad
+	 *            The 95th percentile latency (ms) at which trains run at the
+	 *            minimum scale.
+	 * @param minScale
+	 *            The factor by which train speeds are scaled when the bus is
+	 *            at its worst.
+	 * @param handler
+	 *            Told about changes in the speed scale.
+	 */
+	public BusMonitor(LnTrafficController bus, CommandScheduler budget, int turnout, long timeout, int window,
+			long good, long bad, float minScale, Handler handler) {
+		if (bad <= good) {
+			throw new IllegalArgumentException("Bad latency must exceed good latency");
+		}
+		this.bus = bus;
+		this.budget = budget;
+		this.turnout = turnout - 1;
+		this.timeout = timeout * 1000000;
+		this.latencies = new long[window];
+		this.good = good * 1000000;
+		this.bad = bad * 1000000;
+		this.minScale = minScale;
+		this.handler = handler;
+	}
+
+	/**
+	 * Observe a message received from the bus. This should be called for
+	 * every message, so that the bus utilisation can be estimated.
+	 *
+	 * @param message
+	 */
+	public synchronized void observe(LocoNetMessage message) {
+		bytes += message.getNumDataElements();
+		if (sent >= 0 && message.getOpCode() == LnConstants.OPC_SW_STATE
+				&& message.getElement(1) == (probing & 0x7F) && message.getElement(2) == ((probing >> 7) & 0x0F)) {
+			record(System.nanoTime() - sent);
+			sent = -1;
+		}
+	}
+
+	/**
+	 * Account for the traffic seen since the last call and, unless a probe is
+	 * still outstanding, send a new probe. A probe which has been outstanding
+	 * for longer than the timeout is counted as lost. This is called
+	 * periodically by the monitor's thread, but can also be called directly.
+	 */
+	public void probe() {
+		float changed;
+		int address;
+		synchronized (this) {
+			long now = System.nanoTime();
+			if (previous >= 0 && now > previous) {
+				utilisation = Math.min(1.0, bytes / (BYTES_PER_SECOND * (now - previous) / 1e9));
+			}
+			bytes = 0;
+			previous = now;
+			if (sent >= 0 && now - sent >= timeout) {
+				lost++;
+				record(timeout);
+				sent = -1;
+			}
+			changed = rescale();
+			if (sent >= 0) {
+				address = -1;
+			} else {
+				probing = turnout + (int) (probes++ & 1);
+				address = probing;
+				sent = now;
+			}
+		}
+		// The probe is sent without holding the lock, since its echo may be
+		// observed on another thread before sending returns.
+		if (address >= 0) {
+			LocoNetMessage message = new LocoNetMessage(4);
+			message.setElement(0, LnConstants.OPC_SW_STATE);
+			message.setElement(1, address & 0x7F);
+			message.setElement(2, (address >> 7) & 0x0F);
+			budget.account();
+			bus.sendLocoNetMessage(message);
+		}
+		if (changed > 0) {
+			handler.speedScaleChanged(changed);
+		}
+	}
+
+	/**
+	 * Start a thread which sends a probe periodically.
+	 *
+	 * @param period
+	 *            Interval (in milliseconds) between probes.
+	 */
+	public void start(final long period) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						probe();
+						Thread.sleep(period);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "BusMonitor");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Get a given percentile of the latency of recent probes, in
+	 * milliseconds. If no probes have completed, then zero is returned.
+	 *
+	 * @param percentile
+	 *            Between 0 and 100.
+	 * @return
+	 */
+	public synchronized double percentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil((percentile / 100) * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, index))] / 1e6;
+	}
+
+	public synchronized long getProbes() {
+		return probes;
+	}
+
+	public synchronized long getLost() {
+		return lost;
+	}
+
+	/**
+	 * Get the fraction of the bus's capacity used between the last two
+	 * probes.
+	 */
+	public synchronized double getUtilisation() {
+		return utilisation;
+	}
+
+	/**
+	 * Get the factor by which train speeds should currently be scaled.
+	 */
+	public synchronized float getSpeedScale() {
+		return scale;
+	}
+
+	private void record(long latency) {
+		latencies[next] = latency;
+		next = (next + 1) % latencies.length;
+		count = Math.min(count + 1, latencies.length);
+	}
+
+	/**
+	 * Recalculate the speed scale from the 95th percentile latency.
+	 *
+	 * @return The new scale if it has changed, otherwise -1.
+	 */
+	private float rescale() {
+		double p95 = percentile(95) * 1e6;
+		float target;
+		if (p95 <= good) {
+			target = 1.0f;
+		} else if (p95 >= bad) {
+			target = minScale;
+		} else {
+			target = (float) (1.0 - ((1.0 - minScale) * (p95 - good) / (bad - good)));
+			target = Math.max(minScale, Math.round(target * SCALE_STEPS) / (float) SCALE_STEPS);
+		}
+		if (target != scale) {
+			scale = target;
+			return target;
+		} else {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package modelrailway;
+
+import jmri.jmrix.loconet.LnConstants;
+import jmri.jmrix.loconet.LocoNetMessage;
+import modelrailway.core.Event;
+import modelrailway.core.Layout;
+
+/**
+ * Responsible for turning raw loconet messages into instances of Event. The
+ * decoder is driven by a table of handlers indexed by opcode, so that decoding
+ * a message costs a single array lookup rather than a chain of comparisons.
+ * Handlers read fields directly from the message bytes and construct only the
+ * resulting events. Messages affecting locomotive slots are additionally used
+ * to keep a given slot table up-to-date, and sensor reports are mapped to
+ * sections using a given layout.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class LocoNetDecoder {
+	/**
+	 * Converts a raw loconet speed value (0 .. 127) into a speed setting
+	 * between 0.0 and 1.0. Value 0 is stop and value 1 is emergency stop,
+	 * whilst values 2 .. 127 give 126 actual speed steps.
+	 */
+	private static final float[] SPEEDS = new float[128];
+
+	static {
+		for (int i = 2; i != SPEEDS.length; ++i) {
+			SPEEDS[i] = (i - 1) / 126f;
+		}
+	}
+
+	/**
+	 * A handler is responsible for decoding a message with a particular
+	 * opcode, and sending the resulting event(s) to the given listener.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private interface Handler {
+		public void decode(LocoNetMessage message, Event.Listener listener);
+	}
+
+	/**
+	 * The table of handlers, indexed by opcode. Unrecognised opcodes have a
+	 * null entry, and are silently ignored.
+	 */
+	private final Handler[] handlers = new Handler[256];
+
+	/**
+	 * The slot table mirroring the command station's state.
+	 */
+	private final SlotTable slots;
+
+	/**
+	 * The layout determining which section each sensor reports.
+	 */
+	private final Layout layout;
+
+	public LocoNetDecoder(SlotTable slots, Layout layout) {
+		this.slots = slots;
+		this.layout = layout;
+		Handler power = new Handler() {
+			public void decode(LocoNetMessage m, Event.Listener l) {
+				l.notify(new Event.PowerChanged(m.getOpCode() == LnConstants.OPC_GPON));
+			}
+		};
+		handlers[LnConstants.OPC_GPON] = power;
+		handlers[LnConstants.OPC_GPOFF] = power;
+		handlers[LnConstants.OPC_IDLE] = new Handler() {
+			public void decode(LocoNetMessage m, Event.Listener l) {
+				slots.updateStopAll();
+				l.notify(new Event.EmergencyStopAll());
+			}
+		};
+		handlers[LnConstants.OPC_LOCO_DIRF] = new Handler() {
+			public void decode(LocoNetMessage m, Event.Listener l) {
+				int slot = m.getElement(1);
+				int dirf = m.getElement(2);
+				slots.updateDirf(slot, dirf);
+				l.notify(new Event.DirectionChanged(slot, (dirf & LnConstants.DIRF_DIR) != 0));
+				l.notify(new Event.FunctionsChanged(slot, DIRF_FUNCTIONS, dirfToFunctions(dirf)));
+			}
+		};
+		handlers[LnConstants.OPC_LOCO_SPD] = new Handler() {
+			public void decode(LocoNetMessage m, Event.Listener l) {
+				int slot = m.getElement(1);
+				int speed = m.getElement(2);
+				slots.updateSpeed(slot, speed);
+				l.notify(new Event.SpeedChanged(slot, SPEEDS[speed & 0x7F]));
+			}
+		};
+		handlers[LnConstants.OPC_LOCO_SND] = new Handler() {
+			public void decode(LocoNetMessage m, Event.Listener l) {
+				int slot = m.getElement(1);
+				int snd = m.getElement(2);
+				slots.updateSound(slot, snd);
+				l.notify(new Event.FunctionsChanged(slot, SND_FUNCTIONS, sndToFunctions(snd)));
+			}
+		};
+		handlers[LnConstants.OPC_INPUT_REP] = new Handler() {
+			public void decode(LocoNetMessage m, Event.Listener l) {
+				int in1 = m.getElement(1);
+				int in2 = m.getElement(2);
+				int section = layout.section(SENSOR_ADR(in1, in2), (in2 & LnConstants.OPC_INPUT_REP_SW) != 0);
+				if (section >= 0) {
+					// Unmapped sensors are not part of the layout, so are
+					// ignored.
+					boolean state = (in2 & LnConstants.OPC_INPUT_REP_HI) != 0;
+					l.notify(new Event.SectionChanged(section, state));
+				}
+			}
+		};
+		handlers[LnConstants.OPC_SW_REQ] = new Handler() {
+			public void decode(LocoNetMessage m, Event.Listener l) {
+				int sw2 = m.getElement(2);
+				if ((sw2 & LnConstants.OPC_SW_REQ_OUT) == 0) {
+					// A request is sent twice, first with the output on and
+					// then with it off. Only the first changes the turnout.
+					return;
+				}
+				// The direction bit is set when the turnout is closed.
+				boolean thrown = (sw2 & LnConstants.OPC_SW_REQ_DIR) == 0;
+				l.notify(new Event.TurnoutChanged(TURNOUT_ADR(m.getElement(1), sw2) - 1, thrown));
+			}
+		};
+		handlers[LnConstants.OPC_SW_REP] = new Handler() {
+			public void decode(LocoNetMessage m, Event.Listener l) {
+				int sw2 = m.getElement(2);
+				if ((sw2 & LnConstants.OPC_SW_REP_INPUTS) != 0) {
+					// This is a report from the turnout's feedback inputs,
+					// rather than of its output state. We ignore these for
+					// now.
+					return;
+				}
+				boolean closed = (sw2 & LnConstants.OPC_SW_REP_CLOSED) != 0;
+				boolean thrown = (sw2 & LnConstants.OPC_SW_REP_THROWN) != 0;
+				if (closed != thrown) {
+					l.notify(new Event.TurnoutChanged(TURNOUT_ADR(m.getElement(1), sw2) - 1, thrown));
+				}
+			}
+		};
+		handlers[LnConstants.OPC_SL_RD_DATA] = new Handler() {
+			public void decode(LocoNetMessage m, Event.Listener l) {
+				// Element 1 is the message length, and element 2 the slot. The
+				// slot status is in element 3, the address in elements 4 (low)
+				// and 9 (high), the speed in element 5, the direction /
+				// functions in element 6 and the sound functions in element 10.
+				int slot = m.getElement(2);
+				int speed = m.getElement(5);
+				int dirf = m.getElement(6);
+				int address = (m.getElement(4) & 0x7F) | ((m.getElement(9) & 0x7F) << 7);
+				int snd = m.getElement(10);
+				slots.update(slot, m.getElement(3), address, speed, dirf, snd);
+				l.notify(new Event.SpeedChanged(slot, SPEEDS[speed & 0x7F]));
+				l.notify(new Event.DirectionChanged(slot, (dirf & LnConstants.DIRF_DIR) != 0));
+				l.notify(new Event.FunctionsChanged(slot, DIRF_FUNCTIONS, dirfToFunctions(dirf)));
+				l.notify(new Event.FunctionsChanged(slot, SND_FUNCTIONS, sndToFunctions(snd)));
+			}
+		};
+	}
+
+	/**
+	 * Decode a given loconet message, sending the resulting event(s) to a given
+	 * listener. If the message is not understood, then nothing is sent.
+	 *
+	 * @param message
+	 * @param listener
+	 * @return True if the message was understood, false otherwise.
+	 */
+	public boolean decode(LocoNetMessage message, Event.Listener listener) {
+		Handler handler = handlers[message.getOpCode() & 0xFF];
+		if (handler == null) {
+			return false;
+		} else {
+			handler.decode(message, listener);
+			return true;
+		}
+	}
+
+	/**
+	 * Determine the speed setting (between 0.0 and 1.0) corresponding to a raw
+	 * loconet speed value.
+	 *
+	 * @param speed
+	 * @return
+	 */
+	public static float speedSetting(int speed) {
+		return SPEEDS[speed & 0x7F];
+	}
+
+	/**
+	 * Determine the raw loconet speed value corresponding to a speed setting
+	 * (between 0.0 and 1.0). This is the inverse of speedSetting(), except
+	 * that it never produces the emergency stop value.
+	 *
+	 * @param setting
+	 * @return
+	 */
+	public static int rawSpeed(float setting) {
+		if (setting <= 0) {
+			return 0;
+		} else {
+			return Math.min(127, Math.max(2, Math.round(setting * 126f) + 1));
+		}
+	}
+
+	// ===============================================================
+	// Helpers
+	// ===============================================================
+
+	/**
+	 * The functions (F0 .. F4) carried by the DIRF byte.
+	 */
+	private static final int DIRF_FUNCTIONS = 0x1F;
+
+	/**
+	 * The functions (F5 .. F8) carried by the SND byte.
+	 */
+	private static final int SND_FUNCTIONS = 0x1E0;
+
+	/**
+	 * Convert a DIRF byte into a function mask, where bit i corresponds to
+	 * function Fi. In the DIRF byte, F0 is bit 4 whilst F1 .. F4 are bits 0 .. 3.
+	 */
+	private static int dirfToFunctions(int dirf) {
+		return ((dirf & LnConstants.DIRF_F0) >> 4) | ((dirf & 0x0F) << 1);
+	}
+
+	/**
+	 * Convert a SND byte into a function mask, where bit i corresponds to
+	 * function Fi. In the SND byte, F5 .. F8 are bits 0 .. 3.
+	 */
+	private static int sndToFunctions(int snd) {
+		return (snd & 0x0F) << 5;
+	}
+
+	static private int SENSOR_ADR(int a1, int a2) {
+		return (((a2 & 0x0f) * 128) + (a1 & 0x7f)) + 1;
+	}
+
+	static private int TURNOUT_ADR(int a1, int a2) {
+		return (((a2 & 0x0f) * 128) + (a1 & 0x7f)) + 1;
+	}
+}
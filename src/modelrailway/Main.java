@@ -1,6 +1,7 @@
 package modelrailway;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.lang.reflect.InvocationTargetException;
@@ -9,10 +10,25 @@ import java.util.Arrays;
 
 import modelrailway.core.Controller;
 import modelrailway.core.Event;
+import modelrailway.core.Junction;
+import modelrailway.core.Layout;
 import modelrailway.core.Route;
+import modelrailway.core.SectionIndex;
 import modelrailway.core.Event.SpeedChanged;
+import modelrailway.core.Snapshot;
 import modelrailway.core.Train;
+import modelrailway.store.EventStore;
+import modelrailway.util.ActorController;
+import modelrailway.util.Headway;
+import modelrailway.util.LockedController;
+import modelrailway.util.Metrics;
+import modelrailway.util.OccupancyAnalytics;
+import modelrailway.util.PatternEngine;
+import modelrailway.util.RampScheduler;
+import modelrailway.util.ShadowController;
 import modelrailway.util.SimpleController;
+import modelrailway.util.TimerWheel;
+import modelrailway.util.Watchdog;
 
 /**
  * Provides a simple command-line interface for controlling the model railway.
@@ -22,12 +38,22 @@ import modelrailway.util.SimpleController;
  *
  */
 public class Main {
-	private ModelRailway railway;
+	private MultiRailway railway;
 	private Controller controller;
+	private OccupancyAnalytics analytics;
+	private ShadowController shadow;
 
-	public Main(ModelRailway railway, Controller controller) {
+	/**
+	 * Where commands from the user are sent, which is the railway unless
+	 * speeds are being ramped.
+	 */
+	private Event.Listener output;
+
+	public Main(MultiRailway railway, Controller controller, OccupancyAnalytics analytics) {
 		this.railway = railway;
 		this.controller = controller;
+		this.analytics = analytics;
+		this.output = railway;
 	}
 
 	// =========================================================================
@@ -47,10 +73,16 @@ public class Main {
 		this.new Command("verbose",getMethod("setVerbose",boolean.class)),
 		this.new Command("start",getMethod("startLocomotive",int.class, float.class)),
 		this.new Command("stop",getMethod("stopLocomotive",int.class)),
+		this.new Command("stopall",getMethod("stopAll")),
 		this.new Command("route",getMethod("routeLocomotive",int.class,int[].class)),
 		this.new Command("loop",getMethod("loopLocomotive",int.class,int[].class)),
 		this.new Command("locate",getMethod("setLocation",int.class,int.class)),
-		this.new Command("turnout",getMethod("setTurnout",int.class,boolean.class))
+		this.new Command("turnout",getMethod("setTurnout",int.class,boolean.class)),
+		this.new Command("trains",getMethod("printTrains")),
+		this.new Command("slots",getMethod("printSlots")),
+		this.new Command("bus",getMethod("printBus")),
+		this.new Command("occupancy",getMethod("printOccupancy")),
+		this.new Command("shadow",getMethod("printShadow"))
 	};
 
 	public void quit() {
@@ -61,13 +93,18 @@ public class Main {
 		boolean direction = speed >= 0;
 		speed = Math.abs(speed);
 		System.out.println("SETTING SPEED: " + speed);
-		railway.notify(new Event.DirectionChanged(locomotive, direction));
-		railway.notify(new Event.SpeedChanged(locomotive, speed));
+		output.notify(new Event.DirectionChanged(locomotive, direction));
+		output.notify(new Event.SpeedChanged(locomotive, speed));
 	}
 
 	public void stopLocomotive(int locomotive) {
 		System.out.println("EMERGENCY STOP: " + locomotive);
-		railway.notify(new Event.EmergencyStop(locomotive));
+		output.notify(new Event.EmergencyStop(locomotive));
+	}
+
+	public void stopAll() {
+		System.out.println("EMERGENCY STOP ALL");
+		output.notify(new Event.EmergencyStopAll());
 	}
 
 	public void routeLocomotive(int locomotive, int[] route) {
@@ -86,7 +123,7 @@ public class Main {
 
 	public void setLocation(int locomotive, int section) {
 		System.out.println("Setting location: " + locomotive + " to: " + section);
-		controller.train(locomotive).setSection(section);
+		controller.locate(locomotive, section);
 	}
 
 	public void setTurnout(int turnout, boolean thrown) {
@@ -94,6 +131,80 @@ public class Main {
 		controller.set(turnout, thrown);
 	}
 
+	public void printTrains() {
+		// Read from a single snapshot, so that all trains are reported as they
+		// were at the same moment.
+		Snapshot snapshot = controller.snapshot();
+		System.out.println("Snapshot " + snapshot.version() + ":");
+		for(int i=0;i!=snapshot.size();++i) {
+			Route route = snapshot.route(i);
+			System.out.println("Train " + i + ": section " + snapshot.section(i) + " facing "
+					+ (snapshot.orientation(i) ? "clockwise" : "anti-clockwise")
+					+ (route == null ? "" : " (on route from " + route.firstSection() + ")"));
+		}
+	}
+
+	public void printSlots() {
+		// The slot table is a local mirror of the command station, hence this
+		// doesn't generate any loconet traffic.
+		for(int b=0;b!=railway.size();++b) {
+			SlotTable slots = railway.getBus(b).getSlots();
+			for(int i=0;i!=SlotTable.NUM_SLOTS;++i) {
+				if(slots.isInUse(i)) {
+					int percent = (int) (slots.speedSetting(i) * 100f);
+					System.out.println("Bus " + b + " slot " + i + ": locomotive " + slots.address(i) + " at speed "
+							+ percent + "% going " + (slots.direction(i) ? "forwards" : "backwards")
+							+ " (functions " + Integer.toBinaryString(slots.functions(i)) + ")");
+				}
+			}
+		}
+	}
+
+	public void printBus() {
+		for(int b=0;b!=railway.size();++b) {
+			BusMonitor monitor = railway.getBus(b).getMonitor();
+			if(monitor == null) {
+				System.out.println("Bus " + b + ": not monitored");
+			} else {
+				System.out.println("Bus " + b + ": latency p50 " + monitor.percentile(50) + "ms, p95 "
+						+ monitor.percentile(95) + "ms, p99 " + monitor.percentile(99) + "ms, " + monitor.getLost()
+						+ " of " + monitor.getProbes() + " probes lost, " + (int) (monitor.getUtilisation() * 100)
+						+ "% utilised, speed scale " + monitor.getSpeedScale());
+			}
+		}
+	}
+
+	public void printOccupancy() {
+		long now = System.currentTimeMillis();
+		System.out.println("Section\tOccupied\tMean dwell\tp99 dwell\tTrains/hour");
+		SectionIndex index = analytics.sections();
+		for(int i=1;i<=index.size();++i) {
+			int section = index.section(i);
+			double trains = analytics.trainsPerHour(section, now);
+			double occupancy = analytics.occupancy(section, now);
+			if(trains > 0 || occupancy > 0) {
+				System.out.println(section + "\t" + (int) (occupancy * 100) + "%\t\t" + analytics.meanDwell(section, now)
+						+ "ms\t\t" + analytics.p99Dwell(section, now) + "ms\t\t" + (int) trains);
+			}
+		}
+	}
+
+	public void printShadow() {
+		if(shadow == null) {
+			System.out.println("No candidate controller in shadow");
+			return;
+		}
+		System.out.println(shadow.getCompared() + " steps compared, " + shadow.getMismatched() + " mismatched, "
+				+ shadow.getDropped() + " dropped");
+		System.out.println("Live: p50 " + shadow.percentile(false, 50) + "us, p99 " + shadow.percentile(false, 99)
+				+ "us, " + shadow.getLiveUnprompted() + " unprompted events");
+		System.out.println("Candidate: p50 " + shadow.percentile(true, 50) + "us, p99 "
+				+ shadow.percentile(true, 99) + "us, " + shadow.getCandidateUnprompted() + " unprompted events");
+		for(String mismatch : shadow.getMismatches()) {
+			System.out.println("\t" + mismatch);
+		}
+	}
+
 	public void printHelp() {
 		System.out.println("Model rail commands:");
 		for(Command c : commands) {
@@ -171,7 +282,14 @@ public class Main {
 				} catch (IllegalArgumentException e) {
 					e.printStackTrace();
 				} catch (InvocationTargetException e) {
-					throw (RuntimeException) e.getCause();
+					// The command itself failed. Report this, rather than
+					// leaving the REPL, unless it is fatal.
+					Throwable cause = e.getCause();
+					if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					System.out.println("Error: " + cause);
+					return true;
 				}
 			}
 		}
@@ -290,18 +408,158 @@ public class Main {
 	// =========================================================================
 	// Main entry point
 	// =========================================================================
+
+	/**
+	 * Check whether a given option was supplied on the command-line.
+	 *
+	 * @param args
+	 * @param option
+	 * @return
+	 */
+	private static boolean hasOption(String[] args, String option) {
+		for(int i=1;i<args.length;++i) {
+			if(args[i].equals(option)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the value given for an option on the command-line, or null if the
+	 * option was not supplied.
+	 *
+	 * @param args
+	 * @param option
+	 * @return
+	 */
+	private static String getOption(String[] args, String option) {
+		for(int i=1;i<args.length-1;++i) {
+			if(args[i].equals(option)) {
+				return args[i+1];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The number of transitions ahead of each train for which the controller
+	 * sets turnouts.
+	 */
+	private static final int LOOKAHEAD = 2;
+
+	/**
+	 * The interval (in milliseconds) between probes of each bus's latency.
+	 */
+	private static final long PROBE_PERIOD = 1000;
+
+	/**
+	 * The longest time (in milliseconds) spent warming up.
+	 */
+	private static final long WARMUP_LIMIT = 60000;
+
+	/**
+	 * The interval (in milliseconds) between steps of speed ramps.
+	 */
+	private static final long RAMP_TICK = 50;
+
+	/**
+	 * The rates (in full speed per second) at which locomotives accelerate
+	 * and brake when ramping. Locomotives reach full speed from rest in 4s,
+	 * and stop in 2s.
+	 */
+	private static final float RAMP_ACCELERATION = 0.25f;
+	private static final float RAMP_DECELERATION = 0.5f;
+
+	/**
+	 * The most speeds sent on each ramp step. At 50ms per step, this is 80
+	 * commands per second, well within the share of loconet given to routine
+	 * commands.
+	 */
+	private static final int RAMP_BUDGET = 4;
+
+	/**
+	 * The types of event which are commands to the railway.
+	 */
+	private static final int COMMANDS = Event.SPEED_CHANGED | Event.DIRECTION_CHANGED | Event.EMERGENCY_STOP
+			| Event.EMERGENCY_STOP_ALL | Event.TURNOUT_CHANGED;
+
 	public static void main(String args[]) throws Exception {
-		String port = args[0];
+		// The railway may be split across several loconet buses, each with its
+		// own port. These are given as a comma-separated list.
+		String[] ports = args[0].split(",");
 
 		// Needed for connection on lab machines
 		System.setProperty("gnu.io.rxtx.SerialPorts", "/dev/ttyACM0");
 
 		// Construct the model railway assuming the interface (i.e. USB Cable)
-		// is on a given port. Likewise, we initialise it with three locomotives
-		// whose addresses are 1,2 + 3. If more locomotives are to be used, this
-		// needs to be updated accordingly.
-		final ModelRailway railway = new ModelRailway(port,
-				new int[] { 1, 2, 3 });
+		// is on a given port. Likewise, we initialise each bus with three
+		// locomotives whose addresses are 1,2 + 3, unless other addresses are
+		// given. These are given as a comma-separated list of addresses for
+		// each bus, with the buses separated by colons (e.g. 1,2,3:4,5). A
+		// single list applies to every bus.
+		String addressList = getOption(args,"-locomotives");
+		String[] addresses = addressList == null ? new String[] { "1,2,3" } : addressList.split(":");
+		if(addresses.length != 1 && addresses.length != ports.length) {
+			System.err.println("Expected one list of locomotives, or one per port");
+			System.exit(1);
+		}
+		// Each bus has its own layout, which determines the section reported by
+		// each sensor. These are given as a comma-separated list of files,
+		// matching the ports. Otherwise, the track is assumed to consist of
+		// alternating detection and non-detection sections.
+		String layoutFiles = getOption(args,"-layout");
+		String[] layouts = layoutFiles == null ? new String[0] : layoutFiles.split(",");
+		if(layoutFiles != null && layouts.length != ports.length) {
+			System.err.println("Expected one layout file per port");
+			System.exit(1);
+		}
+		ModelRailway[] buses = new ModelRailway[ports.length];
+		int locomotives = 0;
+		for(int i=0;i!=ports.length;++i) {
+			Layout layout = layoutFiles == null ? Layout.alternating(Layout.MAX_SENSOR) : Layout.load(new File(layouts[i]));
+			if(layout.size() >= MultiRailway.SECTION_STRIDE) {
+				System.err.println("Too many sections in layout for " + ports[i]);
+				System.exit(1);
+			}
+			if(hasOption(args,"-watchdog") && !layout.hasLengths()) {
+				// Deadlines are based on section lengths, so without them no
+				// train would ever be watched.
+				System.err.println("The watchdog needs section lengths, but the layout for " + ports[i]
+						+ " has none (use -layout)");
+				System.exit(1);
+			}
+			String[] list = addresses[addresses.length == 1 ? 0 : i].split(",");
+			int[] locos = new int[list.length];
+			for(int j=0;j!=list.length;++j) {
+				locos[j] = Integer.parseInt(list[j].trim());
+			}
+			locomotives += locos.length;
+			buses[i] = new ModelRailway(ports[i], layout, locos);
+			// Every junction must use one of the turnouts set up on its bus.
+			for(Junction j : layout.junctions()) {
+				if(j.getTurnout() >= buses[i].getTurnoutCount()) {
+					System.err.println("Turnout " + j.getTurnout() + " in layout for " + ports[i]
+							+ " is beyond the " + buses[i].getTurnoutCount() + " turnouts on the bus");
+					System.exit(1);
+				}
+			}
+		}
+		final MultiRailway railway = new MultiRailway(buses);
+
+		// Run synthetic traffic through the railway until the JIT compiler
+		// has settled down (if requested), before anything else listens to it.
+		if(hasOption(args,"-warmup")) {
+			System.out.println("Warming up...");
+			System.out.println(new WarmUp(railway).run(WARMUP_LIMIT));
+		}
+
+		// Publish metrics about the running railway over JMX.
+		Metrics.register();
+
+		// Record all events to disk for later analysis (if requested).
+		String record = getOption(args,"-record");
+		final EventStore store = record == null ? null : new EventStore(new File(record));
 
 		// Add shutdown hook to make sure resources are released when quiting
 		// the application, even if the application is quit in a non-standard
@@ -311,19 +569,199 @@ public class Main {
 			public void run() {
 				System.out.println("Disconnecting from railway...");
 				railway.destroy();
+				if(store != null) {
+					try {
+						store.close();
+					} catch(IOException e) {
+						System.err.println("I/O Error - " + e.getMessage());
+					}
+				}
 			}
 		}) {
 		});
 
 		// Enter Read, Evaluate, Print loop.
-		Train[] trains = {
-				new Train(0,true), // default config for train 0
-				new Train(0,true), // default config for train 1
-				new Train(0,true)  // default config for train 2
-		};
-		Controller controller = new SimpleController(trains);
-		railway.register(controller);
-		controller.register(railway);
-		new Main(railway,controller).readEvaluatePrintLoop();
+		Train[] trains = new Train[locomotives];
+		for(int i=0;i!=trains.length;++i) {
+			trains[i] = new Train(0,true); // default config for train i
+		}
+		Layout layout = railway.getLayout();
+		SimpleController simple = new SimpleController(layout.junctions(), LOOKAHEAD, trains);
+		// Space trains out by adjusting their speed (if requested), keeping a
+		// block clear ahead of each train. This assumes a block takes roughly
+		// 4s at full speed. When ramping, a train keeps moving for up to 1.5s
+		// after being told to stop, so this is added to the time kept clear.
+		double headway = 12000;
+		if(hasOption(args,"-ramp")) {
+			headway += (0.75f / RAMP_DECELERATION) * 1000;
+		}
+		if(hasOption(args,"-headway")) {
+			simple.setHeadway(new Headway(0.75f, 1, 4000, headway, 0.05f));
+		}
+		// Run a candidate controller in the shadow of the live one (if
+		// requested), comparing their decisions without the candidate ever
+		// reaching the railway. To qualify a new controller, construct it
+		// here in place of the second SimpleController.
+		SimpleController candidate = null;
+		if(hasOption(args,"-shadow")) {
+			Train[] copies = new Train[trains.length];
+			for(int i=0;i!=copies.length;++i) {
+				copies[i] = new Train(0,true);
+			}
+			candidate = new SimpleController(layout.junctions(), LOOKAHEAD, copies);
+			if(hasOption(args,"-headway")) {
+				candidate.setHeadway(new Headway(0.75f, 1, 4000, headway, 0.05f));
+			}
+		}
+		// Deadlines for the watchdog and for patterns are held in a single
+		// timer wheel, advanced every 100ms when either is in use.
+		TimerWheel wheel = new TimerWheel(512, 100, System.currentTimeMillis());
+		if(hasOption(args,"-watchdog") || hasOption(args,"-patterns")) {
+			wheel.start(100);
+		}
+		Controller controller = simple;
+		ShadowController shadow = null;
+		if(candidate != null) {
+			shadow = new ShadowController(simple, candidate);
+			controller = shadow;
+		}
+		if(hasOption(args,"-monitor")) {
+			// Measure the latency of each bus, and slow the trains down when
+			// any bus is slow to respond.
+			final float[] scales = new float[buses.length];
+			// With a candidate, the speed scale goes through the shadow, so
+			// that both controllers see it at the same point.
+			final SimpleController scaled = simple;
+			final ShadowController shadowed = shadow;
+			for(int i=0;i!=buses.length;++i) {
+				final int bus = i;
+				scales[i] = 1.0f;
+				buses[i].startMonitor(PROBE_PERIOD, new BusMonitor.Handler() {
+					@Override
+					public void speedScaleChanged(float scale) {
+						System.out.println("BUS " + bus + " SPEED SCALE NOW " + scale);
+						synchronized(scales) {
+							scales[bus] = scale;
+							float min = 1.0f;
+							for(float s : scales) {
+								min = Math.min(min, s);
+							}
+							if(shadowed != null) {
+								shadowed.setSpeedScale(min);
+							} else {
+								scaled.setSpeedScale(min);
+							}
+						}
+					}
+				});
+			}
+		}
+		ActorController actor = null;
+		LockedController locked = null;
+		if(hasOption(args,"-actor")) {
+			// Confine the controller to a single thread, rather than having
+			// the REPL and loconet threads share it.
+			final ActorController confined = new ActorController(controller);
+			Metrics.INSTANCE.queue("controller", new Metrics.Gauge() {
+				@Override
+				public long value() {
+					return confined.pending();
+				}
+			});
+			controller = confined;
+			actor = confined;
+		} else if(shadow == null) {
+			// Otherwise, the REPL, loconet and timer threads share the
+			// controller, so take a lock around it. A shadow controller
+			// already applies one operation at a time to the live controller.
+			locked = new LockedController(simple);
+			controller = locked;
+		}
+		if(hasOption(args,"-watchdog")) {
+			// Stop any train which takes more than twice as long as expected
+			// to leave a section (plus two seconds), based on the section
+			// lengths in the layout. Trains are assumed to run at roughly
+			// 250mm/s at full speed. Overdue trains are reported from the
+			// wheel's thread, so go through the mailbox of an actor. With a
+			// candidate, they go through the shadow, so that both
+			// controllers stop the train.
+			Watchdog.Handler handler = shadow == null ? simple : shadow;
+			if(actor != null) {
+				handler = actor.confine(handler);
+			} else if(locked != null) {
+				handler = locked;
+			}
+			simple.setWatchdog(new Watchdog(wheel, layout, 250, 2, 2000, handler));
+		}
+		// The controller follows trains from section changes, and tracks the
+		// turnouts it sets. The railway only acts on commands.
+		railway.register(controller, Event.SECTION_CHANGED | Event.TURNOUT_CHANGED);
+		Event.Listener commands = railway;
+		if(hasOption(args,"-ramp")) {
+			// Accelerate and brake smoothly, rather than changing speed in
+			// a single step. A train stopped at the end of its route runs on
+			// into its last section whilst braking (by up to a seventh of a
+			// block at 4s per block), which must be long enough for this.
+			RampScheduler ramps = new RampScheduler(trains.length, RAMP_ACCELERATION, RAMP_DECELERATION,
+					RAMP_BUDGET, railway);
+			ramps.start(RAMP_TICK);
+			commands = ramps;
+		}
+		controller.register(commands, COMMANDS);
+		// Maintain statistics on section usage over the last hour. State for
+		// each section is held only for those sections which exist, rather
+		// than for the gaps between the sections of each bus.
+		SectionIndex index = railway.getSectionIndex();
+		OccupancyAnalytics analytics = new OccupancyAnalytics(index, 256, 3600 * 1000);
+		railway.register(analytics, Event.SECTION_CHANGED);
+		if(hasOption(args,"-patterns")) {
+			// Watch for sections whose sensors are flapping, trains which
+			// don't move when given a speed, and two trains in one section.
+			final PatternEngine patterns = new PatternEngine(wheel);
+			patterns.add(new PatternEngine.Repeated("flapping section", Event.SECTION_CHANGED, 10, 5000, index));
+			// A train is stalled if it is given a speed, but is not seen to
+			// enter a section. Sensor events are related to trains by the
+			// controller's predictions.
+			final PatternEngine.Predictions predictions = new PatternEngine.Predictions(controller, index);
+			patterns.add(new PatternEngine.Silence("stalled train", Event.SPEED_CHANGED, Event.SECTION_CHANGED, 30000,
+					trains.length) {
+				@Override
+				protected boolean triggers(Event e) {
+					return ((Event.SpeedChanged) e).getSpeed() > 0;
+				}
+
+				@Override
+				protected int responder(Event e) {
+					Event.SectionChanged es = (Event.SectionChanged) e;
+					predictions.refresh();
+					return es.getInto() ? predictions.train(es.getSection()) : -1;
+				}
+			});
+			patterns.add(new PatternEngine.DoubleOccupancy("double occupancy", controller, index));
+			railway.register(patterns, Event.SECTION_CHANGED);
+			controller.register(patterns, Event.SPEED_CHANGED);
+			patterns.register(new Event.Listener() {
+				@Override
+				public void notify(Event e) {
+					System.out.println("PATTERN MATCHED: " + patterns.pattern(((Event.PatternMatched) e).getPattern())
+							+ " (" + e.key() + ")");
+				}
+			});
+			if(store != null) {
+				patterns.register(store);
+			}
+		}
+		if(store != null) {
+			// Record both the events from the railway, and those generated by
+			// the controller, along with where the controller locates each
+			// train (so that laps can be timed per train).
+			store.follow(controller);
+			railway.register(store);
+			controller.register(store);
+		}
+		Main main = new Main(railway,controller,analytics);
+		main.shadow = shadow;
+		main.output = commands;
+		main.readEvaluatePrintLoop();
 	}
 }
@@ -3,8 +3,13 @@ package modelrailway;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import modelrailway.core.Event;
+import modelrailway.core.EventBus;
+import modelrailway.core.Layout;
+import modelrailway.util.CommandScheduler;
+import modelrailway.util.Metrics;
 
 import org.slf4j.LoggerFactory;
 
@@ -42,18 +47,89 @@ public class ModelRailway implements LocoNetListener, ThrottleListener, Event.Li
 	 * The list of locomotives on the system.
 	 */
 	private DccLocoAddress[] locomotives;
+
+	/**
+	 * The DCC address of each locomotive.
+	 */
+	private final int[] addresses;
 	
 	/**
-	 * The list of active locomotive throttles
+	 * The list of active locomotive throttles. These are set by JMRI's thread
+	 * as each throttle is obtained, and used by the command scheduler's
+	 * thread. A throttle is null until it has been obtained.
 	 */
-	private DccThrottle[] throttles;
+	private final AtomicReferenceArray<DccThrottle> throttles;
+
+	/**
+	 * The most recent speed (at 2i) and direction (at 2i+1) requested for
+	 * each locomotive i, or null if none. These are resent once the
+	 * locomotive's throttle is obtained, since commands sent before then
+	 * cannot be executed. Requests are recorded and submitted whilst holding
+	 * the lock on this array, so that a resent request never replaces a newer
+	 * one in the scheduler.
+	 */
+	private final Event[] requested;
 	
 	/**
 	 * The list of active turnouts
 	 */
 	private Turnout[] turnouts;
 	
-	private ArrayList<Event.Listener> eventListeners = new ArrayList<Event.Listener>();
+	private final EventBus eventListeners = new EventBus();
+
+	/**
+	 * The slot table mirrors the command station's view of each locomotive, as
+	 * observed from traffic on the bus.
+	 */
+	private final SlotTable slots = new SlotTable();
+
+	/**
+	 * The decoder is responsible for turning loconet messages into events.
+	 */
+	private final LocoNetDecoder decoder;
+
+	/**
+	 * The layout of the track connected to this railway.
+	 */
+	private final Layout layout;
+
+	/**
+	 * The dispatcher forwards decoded events to all registered listeners.
+	 */
+	private final Event.Listener dispatcher = new Event.Listener() {
+		@Override
+		public void notify(Event event) {
+			Metrics.INSTANCE.eventDispatched(event);
+			eventListeners.notify(event);
+		}
+	};
+
+	/**
+	 * The scheduler through which all commands are sent to the railway.
+	 */
+	private final CommandScheduler scheduler = new CommandScheduler(new Event.Listener() {
+		@Override
+		public void notify(Event event) {
+			execute(event);
+		}
+	}, COMMAND_RATE, COMMAND_BURST);
+
+	/**
+	 * The number of routine commands permitted per second. Loconet runs at
+	 * 16.66K baud, giving roughly 400 short messages per second. We allow
+	 * commands half of this, leaving the rest for sensors and other throttles.
+	 */
+	private static final double COMMAND_RATE = 200;
+
+	/**
+	 * The number of routine commands which can be sent back-to-back.
+	 */
+	private static final int COMMAND_BURST = 8;
+
+	/**
+	 * Measures the latency of the bus, or null if it is not being monitored.
+	 */
+	private volatile BusMonitor monitor;
 
 	/**
 	 * The linmonitor is useful for decoding loconet messages.
@@ -64,18 +140,52 @@ public class ModelRailway implements LocoNetListener, ThrottleListener, Event.Li
 	 * verbose mode means dump out more debugging information.
 	 */
 	private volatile boolean verbose = true;
+
+	/**
+	 * The raw speed (as given by LocoNetDecoder.rawSpeed()) and direction (1
+	 * for forwards, 0 for backwards) last commanded for each locomotive, or -1
+	 * if nothing has been commanded. These are only accessed by the command
+	 * scheduler's thread.
+	 */
+	private final int[] commandedSpeeds;
+	private final int[] commandedDirections;
+
+	/**
+	 * Commands are only sent to the hardware when output is enabled. Disabling
+	 * output allows commands to pass through the whole command path (e.g.
+	 * during warm-up) without affecting the railway.
+	 */
+	private volatile boolean output = true;
 	
 	/**
 	 * Constructor starts the JMRI application running, and then returns.
 	 * @throws Exception 
 	 */
 	public ModelRailway(String portName, int... locomotives) throws Exception {
+		this(portName, Layout.alternating(Layout.MAX_SENSOR), locomotives);
+	}
+
+	/**
+	 * Construct a railway whose sensors are mapped to sections by a given
+	 * layout.
+	 * 
+	 * @throws Exception
+	 */
+	public ModelRailway(String portName, Layout layout, int... locomotives) throws Exception {
+		this.layout = layout;
+		this.decoder = new LocoNetDecoder(slots, layout);
 		// Configure Log4J
 		initLog4J();
 		log.info(Log4JUtil.startupInfo("Main"));
 
 		this.locomotives = new DccLocoAddress[locomotives.length];
-		this.throttles = new DccThrottle[locomotives.length];
+		this.addresses = locomotives.clone();
+		this.throttles = new AtomicReferenceArray<DccThrottle>(locomotives.length);
+		this.requested = new Event[locomotives.length * 2];
+		this.commandedSpeeds = new int[locomotives.length];
+		this.commandedDirections = new int[locomotives.length];
+		Arrays.fill(commandedSpeeds, -1);
+		Arrays.fill(commandedDirections, -1);
 		for(int i = 0;i!=locomotives.length;++i) {
 			this.locomotives[i] = new DccLocoAddress(locomotives[i],false);
 		}
@@ -98,6 +208,12 @@ public class ModelRailway implements LocoNetListener, ThrottleListener, Event.Li
 		memo.getLnTrafficController().addLocoNetListener(LnTrafficController.ALL, this);
 		requestThrottles();		
 		setupTurnouts(4);
+		Metrics.INSTANCE.queue("commands:" + portName, new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return scheduler.pending();
+			}
+		});
 	}
 
 	/**
@@ -110,7 +226,135 @@ public class ModelRailway implements LocoNetListener, ThrottleListener, Event.Li
 	public void setVerbose(boolean verbose) {
 		this.verbose = verbose;
 	}
+
+	public boolean isVerbose() {
+		return verbose;
+	}
+
+	/**
+	 * Enable or disable the sending of commands to the hardware. Whilst
+	 * disabled, commands are scheduled as usual but then dropped, and are not
+	 * recorded for resending when a throttle arrives. Enabling output forgets
+	 * any requests recorded before it was disabled, since the railway may
+	 * have been driven elsewhere since.
+	 *
+	 * @param output
+	 */
+	public void setOutputEnabled(boolean output) {
+		synchronized (requested) {
+			if (output && !this.output) {
+				Arrays.fill(requested, null);
+			}
+			this.output = output;
+		}
+	}
+
+	/**
+	 * Wait until every scheduled command has been sent (or dropped, if output
+	 * is disabled). Hence, commands scheduled whilst output is disabled cannot
+	 * reach the hardware once it is enabled again.
+	 *
+	 * @param timeout
+	 *            The longest time to wait (in milliseconds).
+	 * @return True if no commands remain.
+	 * @throws InterruptedException
+	 */
+	public boolean drain(long timeout) throws InterruptedException {
+		return scheduler.drain(timeout);
+	}
+
+	/**
+	 * Get the slot table mirroring the command station's state. This can be
+	 * read from any thread without going to the bus.
+	 *
+	 * @return
+	 */
+	public SlotTable getSlots() {
+		return slots;
+	}
+
+	/**
+	 * Get the number of locomotives controlled through this railway.
+	 */
+	public int getLocomotiveCount() {
+		return locomotives.length;
+	}
+
+	/**
+	 * Get the layout of the track connected to this railway.
+	 */
+	public Layout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * Get the number of turnouts controlled through this railway.
+	 */
+	public int getTurnoutCount() {
+		return turnouts.length;
+	}
+
+	/**
+	 * Get the DCC address of a given locomotive.
+	 *
+	 * @param locomotive
+	 * @return
+	 */
+	public int getAddress(int locomotive) {
+		return addresses[locomotive];
+	}
+
+	/**
+	 * Get the locomotive whose address is held in a given slot, or -1 if the
+	 * slot is not known or holds a locomotive which is not controlled through
+	 * this railway.
+	 *
+	 * @param slot
+	 * @return
+	 */
+	public int getLocomotive(int slot) {
+		if (slot < 0 || slot >= SlotTable.NUM_SLOTS || !slots.isKnown(slot)) {
+			return -1;
+		}
+		int address = slots.address(slot);
+		for (int i = 0; i != addresses.length; ++i) {
+			if (addresses[i] == address) {
+				return i;
+			}
+		}
+		return -1;
+	}
 	
+	/**
+	 * Start monitoring the latency of the bus, by periodically sending a probe
+	 * which queries the state of the first or second turnout.
+	 *
+	 * @param period
+	 *            Interval (in milliseconds) between probes.
+	 * @param handler
+	 *            Told how much train speeds should be scaled as the latency
+	 *            of the bus changes.
+	 * @return
+	 */
+	public BusMonitor startMonitor(long period, BusMonitor.Handler handler) {
+		// Trains slow down once the 95th percentile latency over the last
+		// minute (or so) exceeds 50ms, down to a quarter of full speed at
+		// 500ms. A probe not echoed within two seconds is lost.
+		BusMonitor monitor = new BusMonitor(memo.getLnTrafficController(), scheduler, 1, 2000,
+				(int) Math.max(1, 60000 / period), 50, 500, 0.25f, handler);
+		this.monitor = monitor;
+		monitor.start(period);
+		return monitor;
+	}
+
+	/**
+	 * Get the monitor measuring the latency of the bus, or null if it is not
+	 * being monitored.
+	 */
+	public BusMonitor getMonitor() {
+		return monitor;
+	}
+
 	/**
 	 * Request throttles for all locomotives
 	 */
@@ -147,7 +391,15 @@ public class ModelRailway implements LocoNetListener, ThrottleListener, Event.Li
 		for(int i=0;i!=locomotives.length;++i) {
 			if(locomotives[i].equals(arg0.getLocoAddress())) {
 				System.out.println("MATCHED THROTTLE: " + arg0.getLocoAddress());
-				throttles[i] = arg0;
+				throttles.set(i, arg0);
+				// Resend whatever was requested before the throttle arrived.
+				synchronized (requested) {
+					for (int j = 2 * i; j <= (2 * i) + 1; ++j) {
+						if (requested[j] != null) {
+							scheduler.notify(requested[j]);
+						}
+					}
+				}
 			}
 		}
 	}
@@ -158,7 +410,20 @@ public class ModelRailway implements LocoNetListener, ThrottleListener, Event.Li
 	
 
 	public void register(Event.Listener listener) {
-		this.eventListeners.add(listener);
+		this.eventListeners.register(listener);
+	}
+
+	/**
+	 * Register a listener for only those events of given types and, if any
+	 * keys are given, concerning those keys.
+	 * 
+	 * @param listener
+	 * @param types
+	 *            Mask of event types.
+	 * @param keys
+	 */
+	public void register(Event.Listener listener, int types, int... keys) {
+		this.eventListeners.register(listener, types, keys);
 	}
 	
 	/**
@@ -168,8 +433,10 @@ public class ModelRailway implements LocoNetListener, ThrottleListener, Event.Li
 	 */
 	@Override
 	public void message(LocoNetMessage arg0) {
-		Event event = null;
-		
+		BusMonitor monitor = this.monitor;
+		if(monitor != null) {
+			monitor.observe(arg0);
+		}
 		if(verbose) {
 			// In verbose mode, we exploit the JMRI Llnmon tool to generate
 			// correct strings for all loconet messages.
@@ -179,75 +446,165 @@ public class ModelRailway implements LocoNetListener, ThrottleListener, Event.Li
 			System.out.println("MESSAGE: " + linmon.displayMessage(arg0));
 		}
 		
-		// First, process loconet message
-		int opcode = arg0.getOpCode();
-		switch(opcode) {
-		case LnConstants.OPC_GPON:
-		case LnConstants.OPC_GPOFF:
-			event = new Event.PowerChanged(opcode == LnConstants.OPC_GPON);
-			break;
-		case LnConstants.OPC_LOCO_DIRF:
-			boolean isForward = (arg0.getElement(2) & LnConstants.DIRF_DIR) == LnConstants.DIRF_DIR;
-			event = new Event.DirectionChanged(arg0.getElement(1), isForward);
-			break;
-		case LnConstants.OPC_LOCO_SPD:
-			int speed = arg0.getElement(2);
-			if(speed == 1) {
-				speed = -1;
-			} else if(speed > 1) {
-				speed = speed - 1;
-			}
-			event = new Event.SpeedChanged(arg0.getElement(1), speed / (0x7F-1));
-			break;
-		case LnConstants.OPC_INPUT_REP:
-			int in1 = arg0.getElement(1);
-			int in2 = arg0.getElement(2);
-			int section = (SENSOR_ADR(in1, in2) - 1) * 2
-					+ ((in2 & LnConstants.OPC_INPUT_REP_SW) != 0 ? 2 : 1);
-			boolean state = (in2 & LnConstants.OPC_INPUT_REP_HI) != 0;
-			event = new Event.SectionChanged(section, state);
-			break;
-		default:
-			// this is an unrecognised message, which we'll just silently ignore
-			// for now.
+		// Decode the loconet message, dispatching the resulting event(s) (if
+		// understood) to all registered listeners. Unrecognised messages are
+		// silently ignored for now.
+		if(decoder.decode(arg0, dispatcher)) {
+			Metrics.INSTANCE.messageDecoded(arg0.getOpCode());
 		}
-		
-		// Second, dispatch message as event (if understood)
-		if(event != null) {
-			for(Event.Listener listener : eventListeners) {
-				listener.notify(event);
-			}
-		}		
 	}
 	
+	/**
+	 * Send a command to the railway. Commands are scheduled according to their
+	 * priority, rather than being sent immediately.
+	 */
 	public void notify(Event event) {
+		synchronized (requested) {
+			// Whilst output is disabled, nothing reaches the hardware, so
+			// there is nothing to resend.
+			if (output) {
+				request(event);
+			}
+			scheduler.notify(event);
+		}
+	}
+
+	/**
+	 * Record the speed or direction requested by a given command, for
+	 * resending once the locomotive's throttle arrives.
+	 */
+	private void request(Event event) {
+		if (event instanceof Event.SpeedChanged) {
+			request(((Event.SpeedChanged) event).getLocomotive(), 0, event);
+		} else if (event instanceof Event.DirectionChanged) {
+			request(((Event.DirectionChanged) event).getLocomotive(), 1, event);
+		} else if (event instanceof Event.EmergencyStop) {
+			int locomotive = ((Event.EmergencyStop) event).getLocomotive();
+			request(locomotive, 0, new Event.SpeedChanged(locomotive, 0.0f));
+		} else if (event instanceof Event.EmergencyStopAll) {
+			for (int i = 0; i != locomotives.length; ++i) {
+				request(i, 0, new Event.SpeedChanged(i, 0.0f));
+			}
+		}
+	}
+
+	/**
+	 * Record the most recent speed (kind 0) or direction (kind 1) requested
+	 * for a given locomotive, ignoring locomotives not on this bus.
+	 */
+	private void request(int locomotive, int kind, Event event) {
+		if (locomotive >= 0 && locomotive < locomotives.length) {
+			requested[(2 * locomotive) + kind] = event;
+		}
+	}
+
+	/**
+	 * Stop a locomotive whose throttle has not been obtained yet, by setting
+	 * the speed of its slot directly. If its slot is not known either, then
+	 * the stop cannot be sent now, but is resent once the throttle arrives.
+	 *
+	 * @param locomotive
+	 * @param slot
+	 * @return True if the stop was sent.
+	 */
+	private boolean stop(int locomotive, int slot) {
+		if (slot < 0) {
+			log.warn("No throttle or slot yet for locomotive " + locomotive + ", holding stop");
+			return false;
+		}
+		commandedSpeeds[locomotive] = 0;
+		memo.getLnTrafficController().sendLocoNetMessage(
+				new LocoNetMessage(new int[] { LnConstants.OPC_LOCO_SPD, slot, 0, 0 }));
+		return true;
+	}
+
+	/**
+	 * Actually send a command to the railway.
+	 *
+	 * @param event
+	 */
+	private void execute(Event event) {
 		if (event instanceof Event.SpeedChanged) {
 			Event.SpeedChanged e = (Event.SpeedChanged) event;
-			throttles[e.getLocomotive()].setSpeedSetting(e.getSpeed());
+			int locomotive = e.getLocomotive();
+			int speed = LocoNetDecoder.rawSpeed(e.getSpeed());
+			// Skip the command only if this speed was the last commanded, and
+			// the command station (if its slot is known) agrees. The slot is
+			// only updated once the bus echoes a command, so it cannot be
+			// relied on alone. A stop is never skipped.
+			int slot = slots.slotOf(getAddress(locomotive));
+			if (speed == 0 || commandedSpeeds[locomotive] != speed || (slot >= 0 && slots.speed(slot) != speed)) {
+				DccThrottle throttle = throttles.get(locomotive);
+				if (output && throttle != null) {
+					Metrics.INSTANCE.throttleCommandSent();
+					commandedSpeeds[locomotive] = speed;
+					throttle.setSpeedSetting(e.getSpeed());
+				} else if (output && speed == 0) {
+					if (stop(locomotive, slot)) {
+						Metrics.INSTANCE.throttleCommandSent();
+					}
+				} else if (output) {
+					log.warn("No throttle yet for locomotive " + locomotive + ", holding speed " + e.getSpeed());
+				}
+			}
 		} else if (event instanceof Event.DirectionChanged) {
 			Event.DirectionChanged e = (Event.DirectionChanged) event;
-			throttles[e.getLocomotive()].setIsForward(e.getDirection());
+			int locomotive = e.getLocomotive();
+			int direction = e.getDirection() ? 1 : 0;
+			// As for speeds, skip the command only if this direction was the
+			// last commanded and the command station agrees.
+			int slot = slots.slotOf(getAddress(locomotive));
+			if (commandedDirections[locomotive] != direction
+					|| (slot >= 0 && slots.direction(slot) != e.getDirection())) {
+				DccThrottle throttle = throttles.get(locomotive);
+				if (output && throttle != null) {
+					Metrics.INSTANCE.throttleCommandSent();
+					commandedDirections[locomotive] = direction;
+					throttle.setIsForward(e.getDirection());
+				} else if (output) {
+					log.warn("No throttle yet for locomotive " + locomotive + ", holding direction");
+				}
+			}
 		} else if (event instanceof Event.EmergencyStop) {
 			System.out.println("*** EMERGENCY STOP ***");
+			Metrics.INSTANCE.emergencyStopped();
 			Event.EmergencyStop e = (Event.EmergencyStop) event;
 			// throttles[e.getLocomotive()]
 			// .setSpeedSetting(LnConstants.OPC_LOCO_SPD_ESTOP);
-			throttles[e.getLocomotive()].setSpeedSetting(0.0f);
+			if (output) {
+				int locomotive = e.getLocomotive();
+				DccThrottle throttle = throttles.get(locomotive);
+				if (throttle != null) {
+					commandedSpeeds[locomotive] = 0;
+					throttle.setSpeedSetting(0.0f);
+				} else {
+					stop(locomotive, slots.slotOf(getAddress(locomotive)));
+				}
+			}
+		} else if (event instanceof Event.EmergencyStopAll) {
+			System.out.println("*** EMERGENCY STOP ALL ***");
+			Metrics.INSTANCE.emergencyStopped();
+			// A single idle message stops every locomotive on the bus.
+			if (output) {
+				Arrays.fill(commandedSpeeds, 0);
+				memo.getLnTrafficController().sendLocoNetMessage(
+						new LocoNetMessage(new int[] { LnConstants.OPC_IDLE, 0 }));
+			}
 		} else if (event instanceof Event.TurnoutChanged) {
 			Event.TurnoutChanged tc = (Event.TurnoutChanged) event;
-			System.out.println("SETTING TURNOUT : " + tc.getTurnout() + " : " + tc.getThrown());			
+			if (verbose) {
+				System.out.println("SETTING TURNOUT : " + tc.getTurnout() + " : " + tc.getThrown());
+			}
 			Turnout turnout = turnouts[tc.getTurnout()];
-
-			turnout.setCommandedState(tc.getThrown() ? Turnout.THROWN
-					: Turnout.CLOSED);
+			if (output) {
+				Metrics.INSTANCE.turnoutCommandSent();
+				turnout.setCommandedState(tc.getThrown() ? Turnout.THROWN
+						: Turnout.CLOSED);
+			}
 			
 		}
 	}
 	
-    static private int SENSOR_ADR(int a1, int a2) {
-        return (((a2 & 0x0f) * 128) + (a1 & 0x7f)) + 1;
-    } 
-		
 	/**
 	 * Static method to get Log4J working before the rest of JMRI starts up.
 	 */
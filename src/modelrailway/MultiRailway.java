@@ -0,0 +1,341 @@
+package modelrailway;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import modelrailway.core.Event;
+import modelrailway.core.EventBus;
+import modelrailway.core.Junction;
+import modelrailway.core.Layout;
+import modelrailway.core.SectionIndex;
+import modelrailway.util.Metrics;
+
+/**
+ * Combines several loconet buses into a single railway. Larger layouts may be
+ * split across several loconet segments, each with its own PR3 connection.
+ * Each bus decodes its own messages on its own thread, and places the
+ * resulting events into its own partition of the event queue. Each partition
+ * has its own dispatcher thread, which passes its events on to the listeners.
+ * Hence, a flood of traffic on one bus (or a slow listener for its events)
+ * cannot hold up the others, and when a partition fills up only the bus
+ * feeding it is held back. Events from one bus are delivered in order, but
+ * events from different buses may be delivered concurrently, so listeners
+ * must be thread-safe.
+ *
+ * Sections, locomotives and turnouts are numbered separately on each bus, and
+ * so are mapped into a single namespace. Sections on bus i are offset by i *
+ * SECTION_STRIDE, whilst locomotives and turnouts are numbered consecutively
+ * across the buses. Events from the bus identify a locomotive by the slot it
+ * occupies in the command station, so these are mapped through the bus's slot
+ * table to the locomotive with that address (and dropped if it is not one of
+ * the bus's locomotives). Likewise, turnouts beyond those of the bus are
+ * dropped. Commands are routed back to the bus owning the given locomotive or
+ * turnout.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class MultiRailway implements Event.Listener {
+	/**
+	 * The offset between the section numbers of consecutive buses. This is
+	 * enough to cover all sections of the default layout, and the sections of
+	 * any other layout must be numbered below it.
+	 */
+	public static final int SECTION_STRIDE = 8192;
+
+	/**
+	 * The maximum number of events held in each partition.
+	 */
+	private static final int PARTITION_CAPACITY = 1024;
+
+	private final ModelRailway[] buses;
+	private final int[] locomotiveOffsets;
+	private final int[] turnoutOffsets;
+
+	private final EventBus eventListeners = new EventBus();
+
+	public MultiRailway(ModelRailway... buses) {
+		this.buses = buses;
+		this.locomotiveOffsets = new int[buses.length];
+		this.turnoutOffsets = new int[buses.length];
+		int locomotives = 0;
+		int turnouts = 0;
+		for (int i = 0; i != buses.length; ++i) {
+			locomotiveOffsets[i] = locomotives;
+			turnoutOffsets[i] = turnouts;
+			locomotives += buses[i].getLocomotiveCount();
+			turnouts += buses[i].getTurnoutCount();
+			final ArrayBlockingQueue<Event> partition = new ArrayBlockingQueue<Event>(PARTITION_CAPACITY);
+			buses[i].register(new Inbound(i, partition));
+			Metrics.INSTANCE.queue("bus" + i, new Metrics.Gauge() {
+				@Override
+				public long value() {
+					return partition.size();
+				}
+			});
+			Thread dispatcher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					dispatch(partition);
+				}
+			}, "Dispatcher" + i);
+			dispatcher.setDaemon(true);
+			dispatcher.start();
+		}
+	}
+
+	/**
+	 * Get the number of buses making up this railway.
+	 */
+	public int size() {
+		return buses.length;
+	}
+
+	/**
+	 * Get a given bus.
+	 *
+	 * @param bus
+	 * @return
+	 */
+	public ModelRailway getBus(int bus) {
+		return buses[bus];
+	}
+
+	/**
+	 * Get the layout of the whole railway, combining the layouts of every bus
+	 * with their sections and turnouts mapped into the railway-wide namespace.
+	 * Since sensors are mapped by each bus, the combined layout has none.
+	 *
+	 * @return
+	 */
+	public Layout getLayout() {
+		int[] lengths = new int[buses.length * SECTION_STRIDE];
+		ArrayList<Junction> junctions = new ArrayList<Junction>();
+		for (int i = 0; i != buses.length; ++i) {
+			Layout layout = buses[i].getLayout();
+			int offset = i * SECTION_STRIDE;
+			for (int s = 1; s != SECTION_STRIDE; ++s) {
+				lengths[s + offset] = layout.length(s);
+			}
+			for (Junction j : layout.junctions()) {
+				junctions.add(new Junction(j.getSection() + offset, j.getTurnout() + turnoutOffsets[i],
+						j.getClosed() + offset, j.getThrown() + offset));
+			}
+		}
+		return new Layout(new int[0], lengths, junctions.toArray(new Junction[junctions.size()]));
+	}
+
+	/**
+	 * Get an index over the sections of every bus, as numbered in the
+	 * railway-wide namespace. State kept for each section can be sized by this,
+	 * rather than by the largest section number, which is mostly made up of
+	 * the gaps between the sections of each bus.
+	 *
+	 * @return
+	 */
+	public SectionIndex getSectionIndex() {
+		int[][] sections = new int[buses.length][];
+		int total = 0;
+		for (int i = 0; i != buses.length; ++i) {
+			sections[i] = buses[i].getLayout().sections();
+			total += sections[i].length;
+		}
+		int[] all = new int[total];
+		int n = 0;
+		for (int i = 0; i != buses.length; ++i) {
+			for (int section : sections[i]) {
+				all[n++] = section + (i * SECTION_STRIDE);
+			}
+		}
+		return new SectionIndex(all);
+	}
+
+	/**
+	 * Destroy all connections, dropping all resources.
+	 */
+	public void destroy() {
+		for (ModelRailway bus : buses) {
+			bus.destroy();
+		}
+	}
+
+	public void setVerbose(boolean verbose) {
+		for (ModelRailway bus : buses) {
+			bus.setVerbose(verbose);
+		}
+	}
+
+	public void register(Event.Listener listener) {
+		eventListeners.register(listener);
+	}
+
+	/**
+	 * Register a listener for only those events of given types and, if any
+	 * keys are given, concerning those keys. Keys are in the railway-wide
+	 * namespace.
+	 *
+	 * @param listener
+	 * @param types
+	 *            Mask of event types.
+	 * @param keys
+	 */
+	public void register(Event.Listener listener, int types, int... keys) {
+		eventListeners.register(listener, types, keys);
+	}
+
+	/**
+	 * Remove every registration of a given listener.
+	 *
+	 * @param listener
+	 */
+	public void unregister(Event.Listener listener) {
+		eventListeners.unregister(listener);
+	}
+
+	/**
+	 * Send a command to the bus owning the locomotive or turnout it concerns.
+	 */
+	@Override
+	public void notify(Event event) {
+		if (event instanceof Event.SpeedChanged) {
+			Event.SpeedChanged e = (Event.SpeedChanged) event;
+			int bus = locomotiveBus(e.getLocomotive());
+			buses[bus].notify(new Event.SpeedChanged(e.getLocomotive() - locomotiveOffsets[bus], e.getSpeed()));
+		} else if (event instanceof Event.DirectionChanged) {
+			Event.DirectionChanged e = (Event.DirectionChanged) event;
+			int bus = locomotiveBus(e.getLocomotive());
+			buses[bus].notify(new Event.DirectionChanged(e.getLocomotive() - locomotiveOffsets[bus],
+					e.getDirection()));
+		} else if (event instanceof Event.EmergencyStop) {
+			Event.EmergencyStop e = (Event.EmergencyStop) event;
+			int bus = locomotiveBus(e.getLocomotive());
+			buses[bus].notify(new Event.EmergencyStop(e.getLocomotive() - locomotiveOffsets[bus]));
+		} else if (event instanceof Event.EmergencyStopAll) {
+			for (ModelRailway bus : buses) {
+				bus.notify(event);
+			}
+		} else if (event instanceof Event.TurnoutChanged) {
+			Event.TurnoutChanged e = (Event.TurnoutChanged) event;
+			int bus = turnoutBus(e.getTurnout());
+			buses[bus].notify(new Event.TurnoutChanged(e.getTurnout() - turnoutOffsets[bus], e.getThrown()));
+		}
+	}
+
+	// ===============================================================
+	// Helpers
+	// ===============================================================
+
+	private int locomotiveBus(int locomotive) {
+		for (int i = buses.length - 1; i > 0; --i) {
+			if (locomotive >= locomotiveOffsets[i]) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	private int turnoutBus(int turnout) {
+		for (int i = buses.length - 1; i > 0; --i) {
+			if (turnout >= turnoutOffsets[i]) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * A dispatcher's main loop. This passes each event from a given partition
+	 * on to the listeners, in order.
+	 */
+	private void dispatch(ArrayBlockingQueue<Event> partition) {
+		while (true) {
+			try {
+				eventListeners.notify(partition.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Receives events decoded on a given bus, maps them into the shared
+	 * namespace and places them in the bus's partition.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private final class Inbound implements Event.Listener {
+		private final ModelRailway bus;
+		private final int sectionOffset;
+		private final int locomotiveOffset;
+		private final int turnoutOffset;
+		private final ArrayBlockingQueue<Event> partition;
+
+		public Inbound(int bus, ArrayBlockingQueue<Event> partition) {
+			this.bus = buses[bus];
+			this.sectionOffset = bus * SECTION_STRIDE;
+			this.locomotiveOffset = locomotiveOffsets[bus];
+			this.turnoutOffset = turnoutOffsets[bus];
+			this.partition = partition;
+		}
+
+		@Override
+		public void notify(Event event) {
+			if (event instanceof Event.SectionChanged) {
+				Event.SectionChanged e = (Event.SectionChanged) event;
+				event = new Event.SectionChanged(e.getSection() + sectionOffset, e.getInto());
+			} else if (event instanceof Event.SpeedChanged) {
+				Event.SpeedChanged e = (Event.SpeedChanged) event;
+				int locomotive = locomotive(e.getLocomotive());
+				if (locomotive < 0) {
+					return;
+				}
+				event = new Event.SpeedChanged(locomotive, e.getSpeed());
+			} else if (event instanceof Event.DirectionChanged) {
+				Event.DirectionChanged e = (Event.DirectionChanged) event;
+				int locomotive = locomotive(e.getLocomotive());
+				if (locomotive < 0) {
+					return;
+				}
+				event = new Event.DirectionChanged(locomotive, e.getDirection());
+			} else if (event instanceof Event.FunctionsChanged) {
+				Event.FunctionsChanged e = (Event.FunctionsChanged) event;
+				int locomotive = locomotive(e.getLocomotive());
+				if (locomotive < 0) {
+					return;
+				}
+				event = new Event.FunctionsChanged(locomotive, e.getMask(), e.getFunctions());
+			} else if (event instanceof Event.EmergencyStop) {
+				Event.EmergencyStop e = (Event.EmergencyStop) event;
+				int locomotive = locomotive(e.getLocomotive());
+				if (locomotive < 0) {
+					return;
+				}
+				event = new Event.EmergencyStop(locomotive);
+			} else if (event instanceof Event.TurnoutChanged) {
+				Event.TurnoutChanged e = (Event.TurnoutChanged) event;
+				if (e.getTurnout() < 0 || e.getTurnout() >= bus.getTurnoutCount()) {
+					// Not one of this bus's turnouts, so it would otherwise
+					// alias a turnout of the next bus.
+					return;
+				}
+				event = new Event.TurnoutChanged(e.getTurnout() + turnoutOffset, e.getThrown());
+			}
+			try {
+				partition.put(event);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Map the slot holding a locomotive on this bus to the locomotive in
+		 * the shared namespace, or -1 if it is not one of this bus's
+		 * locomotives.
+		 */
+		private int locomotive(int slot) {
+			int locomotive = bus.getLocomotive(slot);
+			return locomotive < 0 ? -1 : locomotive + locomotiveOffset;
+		}
+	}
+}
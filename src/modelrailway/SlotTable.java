@@ -0,0 +1,221 @@
+package modelrailway;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import jmri.jmrix.loconet.LnConstants;
+
+/**
+ * Mirrors the state of the command station's slots, as observed on the loconet
+ * bus. Each slot holds the address, speed, direction and function state of
+ * one locomotive. The table is kept up-to-date from slot read, speed and
+ * direction messages, regardless of which throttle on the bus issued them.
+ * Each slot is packed into a single long, meaning reads are lock-free and
+ * always see a consistent view of that slot.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SlotTable {
+	/**
+	 * The number of slots on a loconet command station.
+	 */
+	public static final int NUM_SLOTS = 128;
+
+	// Layout of a packed slot
+	private static final int ADDRESS_SHIFT = 0; // 14 bits
+	private static final int SPEED_SHIFT = 14; // 7 bits
+	private static final int DIRF_SHIFT = 21; // 7 bits
+	private static final int SND_SHIFT = 28; // 4 bits
+	private static final int STATUS_SHIFT = 32; // 7 bits
+	private static final long KNOWN = 1L << 63;
+
+	private final AtomicLongArray slots = new AtomicLongArray(NUM_SLOTS);
+
+	// ===============================================================
+	// Updates
+	// ===============================================================
+
+	/**
+	 * Update a slot from a complete slot read (i.e. OPC_SL_RD_DATA).
+	 *
+	 * @param slot
+	 * @param status
+	 * @param address
+	 * @param speed
+	 *            Raw loconet speed value
+	 * @param dirf
+	 *            Raw loconet direction / function byte
+	 * @param snd
+	 *            Raw loconet sound / function byte
+	 */
+	public void update(int slot, int status, int address, int speed, int dirf, int snd) {
+		long packed = KNOWN | ((long) (status & 0x7F) << STATUS_SHIFT)
+				| ((long) (address & 0x3FFF) << ADDRESS_SHIFT)
+				| ((long) (speed & 0x7F) << SPEED_SHIFT)
+				| ((long) (dirf & 0x7F) << DIRF_SHIFT)
+				| ((long) (snd & 0x0F) << SND_SHIFT);
+		slots.set(slot & 0x7F, packed);
+	}
+
+	/**
+	 * Update the speed of a given slot (i.e. OPC_LOCO_SPD).
+	 *
+	 * @param slot
+	 * @param speed
+	 *            Raw loconet speed value
+	 */
+	public void updateSpeed(int slot, int speed) {
+		updateField(slot, SPEED_SHIFT, 0x7F, speed);
+	}
+
+	/**
+	 * Update the direction and functions F0 .. F4 of a given slot (i.e.
+	 * OPC_LOCO_DIRF).
+	 *
+	 * @param slot
+	 * @param dirf
+	 *            Raw loconet direction / function byte
+	 */
+	public void updateDirf(int slot, int dirf) {
+		updateField(slot, DIRF_SHIFT, 0x7F, dirf);
+	}
+
+	/**
+	 * Update the functions F5 .. F8 of a given slot (i.e. OPC_LOCO_SND).
+	 *
+	 * @param slot
+	 * @param snd
+	 *            Raw loconet sound / function byte
+	 */
+	public void updateSound(int slot, int snd) {
+		updateField(slot, SND_SHIFT, 0x0F, snd);
+	}
+
+	/**
+	 * Update the speed of every known slot to zero, since the command station
+	 * has stopped every locomotive (i.e. OPC_IDLE).
+	 */
+	public void updateStopAll() {
+		for (int i = 0; i != NUM_SLOTS; ++i) {
+			if (isKnown(i)) {
+				updateField(i, SPEED_SHIFT, 0x7F, 0);
+			}
+		}
+	}
+
+	private void updateField(int slot, int shift, int mask, int value) {
+		slot &= 0x7F;
+		long field = (long) mask << shift;
+		while (true) {
+			long old = slots.get(slot);
+			long packed = (old & ~field) | ((long) (value & mask) << shift);
+			if (slots.compareAndSet(slot, old, packed)) {
+				return;
+			}
+		}
+	}
+
+	// ===============================================================
+	// Queries
+	// ===============================================================
+
+	/**
+	 * Determine whether anything is known about a given slot. Slots are only
+	 * known once they have been read from the command station.
+	 *
+	 * @param slot
+	 * @return
+	 */
+	public boolean isKnown(int slot) {
+		return (slots.get(slot) & KNOWN) != 0;
+	}
+
+	/**
+	 * Determine whether a given slot is in use by a locomotive.
+	 *
+	 * @param slot
+	 * @return
+	 */
+	public boolean isInUse(int slot) {
+		long packed = slots.get(slot);
+		return (packed & KNOWN) != 0
+				&& (field(packed, STATUS_SHIFT, 0x7F) & LnConstants.LOCOSTAT_MASK) == LnConstants.LOCO_IN_USE;
+	}
+
+	/**
+	 * Get the locomotive address held in a given slot.
+	 *
+	 * @param slot
+	 * @return
+	 */
+	public int address(int slot) {
+		return field(slots.get(slot), ADDRESS_SHIFT, 0x3FFF);
+	}
+
+	/**
+	 * Get the raw loconet speed value for a given slot.
+	 *
+	 * @param slot
+	 * @return
+	 */
+	public int speed(int slot) {
+		return field(slots.get(slot), SPEED_SHIFT, 0x7F);
+	}
+
+	/**
+	 * Get the speed setting (between 0.0 and 1.0) for a given slot.
+	 *
+	 * @param slot
+	 * @return
+	 */
+	public float speedSetting(int slot) {
+		return LocoNetDecoder.speedSetting(speed(slot));
+	}
+
+	/**
+	 * Get the direction of a given slot (true = forwards, false = backwards).
+	 *
+	 * @param slot
+	 * @return
+	 */
+	public boolean direction(int slot) {
+		return (field(slots.get(slot), DIRF_SHIFT, 0x7F) & LnConstants.DIRF_DIR) != 0;
+	}
+
+	/**
+	 * Get the state of functions F0 .. F8 for a given slot, where bit i
+	 * corresponds to function Fi.
+	 *
+	 * @param slot
+	 * @return
+	 */
+	public int functions(int slot) {
+		long packed = slots.get(slot);
+		int dirf = field(packed, DIRF_SHIFT, 0x7F);
+		int snd = field(packed, SND_SHIFT, 0x0F);
+		return ((dirf & LnConstants.DIRF_F0) >> 4) | ((dirf & 0x0F) << 1) | (snd << 5);
+	}
+
+	/**
+	 * Find the slot in use by a given locomotive address, or -1 if no such
+	 * slot is known. Slots which have been released (e.g. when a throttle is
+	 * dispatched) still hold the address, but are ignored.
+	 *
+	 * @param address
+	 * @return
+	 */
+	public int slotOf(int address) {
+		// Slot 0 is reserved for dispatch, and slots above 120 are reserved for
+		// special purposes.
+		for (int i = 1; i <= 120; ++i) {
+			if (isInUse(i) && address(i) == address) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int field(long packed, int shift, int mask) {
+		return (int) (packed >>> shift) & mask;
+	}
+}
@@ -0,0 +1,436 @@
+package modelrailway;
+
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import jmri.jmrix.loconet.LnConstants;
+import jmri.jmrix.loconet.LocoNetMessage;
+import modelrailway.core.Event;
+import modelrailway.core.Junction;
+import modelrailway.core.Layout;
+import modelrailway.core.Route;
+import modelrailway.core.Train;
+import modelrailway.util.Headway;
+import modelrailway.util.Metrics;
+import modelrailway.util.SimpleController;
+import modelrailway.util.TimerWheel;
+import modelrailway.util.Watchdog;
+
+/**
+ * Warms up the railway before it goes live. When the application starts, the
+ * code on the control path (decoding loconet messages, following trains and
+ * scheduling commands) runs in the interpreter until the JIT compiler has
+ * seen enough of it, which gives the first real trains the worst latency of
+ * the day. Warming up pushes a stream of synthetic sensor reports through the
+ * whole path (i.e. from <code>ModelRailway.message()</code>, through the
+ * dispatcher, to a controller and back out to the command scheduler) with
+ * output to the hardware disabled, until compilation settles down.
+ *
+ * The synthetic reports move two trains (on the first bus) around a loop
+ * through the first few detection sections of its layout, with each in turn
+ * catching up the other. The trains take different routes between each pair
+ * of detection sections, through turnouts which must be set for each train in
+ * turn. The warm-up's controller looks ahead, spaces the trains out and arms a
+ * watchdog as the live controller would, so speed, direction and turnout
+ * commands all pass along the command path. Each report is sent only once the
+ * previous one has reached the controller, and the time taken is recorded.
+ * The warm-up runs in rounds, and finishes after a round in which nothing was
+ * compiled, or when its time limit expires.
+ *
+ * Warming up should happen before any listeners are registered with the
+ * railway, since they would see the synthetic events. Any real sensor reports
+ * received in the meantime are passed to the warm-up's own controller, and so
+ * are ignored. Afterwards, the warm-up's listener is removed, and the commands
+ * it issued are drained from each bus before output is enabled again, so none
+ * of them can reach the hardware. Metrics are cleared too.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class WarmUp implements Event.Listener {
+	/**
+	 * The number of events in each round.
+	 */
+	private static final int ROUND = 1000;
+
+	/**
+	 * The minimum number of rounds, which is enough for the hot methods to
+	 * pass the compiler's thresholds.
+	 */
+	private static final int MIN_ROUNDS = 20;
+
+	/**
+	 * The number of detection sections through which the train is moved.
+	 */
+	private static final int SECTIONS = 16;
+
+	/**
+	 * The longest time (in milliseconds) to wait for the commands issued
+	 * whilst warming up to be dropped.
+	 */
+	private static final long DRAIN_LIMIT = 5000;
+
+	/**
+	 * The types of event which are commands to the railway.
+	 */
+	private static final int COMMANDS = Event.SPEED_CHANGED | Event.DIRECTION_CHANGED | Event.EMERGENCY_STOP
+			| Event.EMERGENCY_STOP_ALL | Event.TURNOUT_CHANGED;
+
+	private final MultiRailway railway;
+
+	/**
+	 * Released each time an event reaches the controller.
+	 */
+	private final Semaphore arrivals = new Semaphore(0);
+
+	/**
+	 * The controller to which events are passed, or null once warming up has
+	 * finished.
+	 */
+	private volatile Event.Listener controller;
+
+	/**
+	 * The time (from System.nanoTime()) at which the last event reached the
+	 * controller.
+	 */
+	private volatile long arrived;
+
+	public WarmUp(MultiRailway railway) {
+		this.railway = railway;
+	}
+
+	@Override
+	public void notify(Event e) {
+		Event.Listener controller = this.controller;
+		if (controller != null) {
+			controller.notify(e);
+			arrived = System.nanoTime();
+			arrivals.release();
+		}
+	}
+
+	/**
+	 * Warm up the railway.
+	 *
+	 * @param limit
+	 *            The longest time (in milliseconds) to spend warming up.
+	 * @return A report of how warming up went.
+	 * @throws InterruptedException
+	 */
+	public Report run(long limit) throws InterruptedException {
+		ModelRailway bus = railway.getBus(0);
+		Layout layout = bus.getLayout();
+		ArrayList<Integer> inputs = new ArrayList<Integer>();
+		ArrayList<Integer> sections = new ArrayList<Integer>();
+		for (int s = 1; s <= layout.size() && sections.size() < SECTIONS; ++s) {
+			int input = layout.input(s);
+			if (input >= 0) {
+				inputs.add(input);
+				sections.add(s);
+			}
+		}
+		if (sections.size() < 3) {
+			throw new IllegalArgumentException("Too few detection sections to warm up");
+		} else if (bus.getLocomotiveCount() == 0) {
+			throw new IllegalArgumentException("No locomotives to warm up");
+		}
+		int n = sections.size();
+		int[] detection = new int[n];
+		LocoNetMessage[] reports = new LocoNetMessage[n * 2];
+		for (int i = 0; i != n; ++i) {
+			detection[i] = sections.get(i);
+			reports[i * 2] = report(inputs.get(i), true);
+			reports[(i * 2) + 1] = report(inputs.get(i), false);
+		}
+		Loop loop = new Loop(layout, detection, Math.min(2, bus.getLocomotiveCount()), bus.getTurnoutCount());
+		SimpleController simple = loop.controller();
+		simple.register(railway, COMMANDS);
+		railway.register(this, Event.SECTION_CHANGED);
+		boolean[] verbose = new boolean[railway.size()];
+		for (int b = 0; b != railway.size(); ++b) {
+			verbose[b] = railway.getBus(b).isVerbose();
+			railway.getBus(b).setVerbose(false);
+			railway.getBus(b).setOutputEnabled(false);
+		}
+		CompilationMXBean jit = ManagementFactory.getCompilationMXBean();
+		boolean monitored = jit != null && jit.isCompilationTimeMonitoringSupported();
+		Report report = new Report();
+		long start = System.currentTimeMillis();
+		long compiled = monitored ? jit.getTotalCompilationTime() : 0;
+		int undrained = -1;
+		try {
+			controller = simple;
+			loop.start();
+			long[] latencies = new long[ROUND];
+			while (true) {
+				for (int i = 0; i != ROUND; ++i) {
+					latencies[i] = send(bus, reports[loop.next()]);
+				}
+				report.events += ROUND;
+				report.rounds++;
+				Arrays.sort(latencies);
+				if (report.rounds == 1) {
+					report.firstMedian = latencies[ROUND / 2];
+					report.firstP99 = latencies[(ROUND * 99) / 100];
+				}
+				report.median = latencies[ROUND / 2];
+				report.p99 = latencies[(ROUND * 99) / 100];
+				long total = monitored ? jit.getTotalCompilationTime() : 0;
+				boolean settled = monitored && total == compiled;
+				report.compileTime += total - compiled;
+				compiled = total;
+				if (report.rounds >= MIN_ROUNDS && (settled || !monitored)) {
+					report.settled = monitored;
+					break;
+				} else if (System.currentTimeMillis() - start >= limit) {
+					break;
+				}
+			}
+		} finally {
+			controller = null;
+			railway.unregister(this);
+			for (int b = 0; b != railway.size(); ++b) {
+				ModelRailway r = railway.getBus(b);
+				// Commands issued by the warm-up may still be waiting to be
+				// sent, and must be dropped before output is enabled.
+				if (r.drain(DRAIN_LIMIT)) {
+					r.setOutputEnabled(true);
+				} else {
+					undrained = b;
+				}
+				r.setVerbose(verbose[b]);
+			}
+			Metrics.INSTANCE.reset();
+		}
+		if (undrained >= 0) {
+			throw new IllegalStateException("Warm-up commands still pending on bus " + undrained
+					+ ", so its output remains disabled");
+		}
+		report.time = System.currentTimeMillis() - start;
+		return report;
+	}
+
+	/**
+	 * Pass a message to a bus as though it had been received, and wait for
+	 * the resulting event to reach the controller.
+	 *
+	 * @return The time taken (in nanoseconds).
+	 * @throws InterruptedException
+	 */
+	private long send(ModelRailway bus, LocoNetMessage message) throws InterruptedException {
+		long sent = System.nanoTime();
+		bus.message(message);
+		if (!arrivals.tryAcquire(1, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("Warm-up event did not reach the controller");
+		}
+		return arrived - sent;
+	}
+
+	/**
+	 * Construct a sensor report for a given input (as indexed in the layout)
+	 * going high or low.
+	 */
+	private static LocoNetMessage report(int input, boolean high) {
+		int address = (input >> 1) - 1;
+		LocoNetMessage message = new LocoNetMessage(4);
+		message.setElement(0, LnConstants.OPC_INPUT_REP);
+		message.setElement(1, address & 0x7F);
+		message.setElement(2, ((address >> 7) & 0x0F) | ((input & 1) != 0 ? LnConstants.OPC_INPUT_REP_SW : 0)
+				| (high ? LnConstants.OPC_INPUT_REP_HI : 0));
+		return message;
+	}
+
+	/**
+	 * The synthetic traffic of a warm-up, which moves one or two trains around
+	 * a loop through given detection sections. Between each pair of detection
+	 * sections, the loop passes through one of two sections beyond the layout
+	 * (which stand in for the non-detection sections between them), reached
+	 * through a turnout at the end of the first. The first train always takes
+	 * the closed route, and the second the thrown route. The second train
+	 * starts halfway around the loop, and the trains take turns to catch up
+	 * the other until it is only two sections ahead, so the gaps between them
+	 * vary throughout.
+	 *
+	 * Positions around the loop are numbered such that a train in the ith
+	 * detection section is at position 2i, and a train which has just left it
+	 * is at position 2i+1.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Loop {
+		/**
+		 * The number of transitions ahead of each train for which turnouts
+		 * are set, as for the live controller.
+		 */
+		private static final int LOOKAHEAD = 2;
+
+		private final int[] sections;
+
+		/**
+		 * The number of positions around the loop.
+		 */
+		private final int length;
+
+		/**
+		 * The route followed by each train.
+		 */
+		private final Route[] routes;
+
+		/**
+		 * The position of each train.
+		 */
+		private final int[] positions;
+
+		private final SimpleController controller;
+
+		/**
+		 * Whether the first train is catching up the second, rather than the
+		 * second catching up the first.
+		 */
+		private boolean catching;
+
+		/**
+		 * Construct the traffic for a loop through given detection sections of
+		 * a layout.
+		 *
+		 * @param layout
+		 * @param sections
+		 *            The detection sections, in order around the loop. There
+		 *            must be at least three.
+		 * @param nTrains
+		 *            The number of trains (one or two).
+		 * @param nTurnouts
+		 *            The number of turnouts which can be set. If fewer than
+		 *            the detection sections, turnouts are shared between
+		 *            them.
+		 */
+		public Loop(Layout layout, int[] sections, int nTrains, int nTurnouts) {
+			int n = sections.length;
+			this.sections = sections.clone();
+			this.length = n * 2;
+			this.routes = new Route[nTrains];
+			this.positions = new int[nTrains];
+			Train[] trains = new Train[nTrains];
+			for (int t = 0; t != nTrains; ++t) {
+				positions[t] = t * 2 * (n / 2);
+				int[] route = new int[length];
+				for (int k = 0; k != length; ++k) {
+					int p = (positions[t] + k) % length;
+					route[k] = (p % 2) == 0 ? sections[p / 2] : layout.size() + p + t;
+				}
+				routes[t] = new Route(true, route);
+				trains[t] = new Train(route[0], true);
+			}
+			Junction[] junctions = new Junction[nTurnouts == 0 ? 0 : n];
+			for (int i = 0; i != junctions.length; ++i) {
+				int p = (i * 2) + 1;
+				junctions[i] = new Junction(sections[i], i % nTurnouts, layout.size() + p, layout.size() + p + 1);
+			}
+			controller = new SimpleController(junctions, LOOKAHEAD, trains);
+			controller.setVerbose(false);
+			controller.setHeadway(new Headway(0.75f, 1, 4000, 12000, 0.05f));
+			// The watchdog's wheel is never advanced, so its deadlines are
+			// armed and cancelled but never expire.
+			controller.setWatchdog(new Watchdog(new TimerWheel(512, 100, 0), layout, 250, 2, 2000, controller));
+		}
+
+		/**
+		 * Get the controller which follows the trains.
+		 */
+		public SimpleController controller() {
+			return controller;
+		}
+
+		/**
+		 * Get the detection section at, or just behind, a given position.
+		 */
+		public int section(int position) {
+			return sections[position / 2];
+		}
+
+		/**
+		 * Start the trains along their routes.
+		 */
+		public void start() {
+			for (int t = 0; t != routes.length; ++t) {
+				controller.start(t, routes[t]);
+			}
+		}
+
+		/**
+		 * Move a train on to its next position, which is reported by a sensor
+		 * as the train entering or leaving a detection section.
+		 *
+		 * @return The new position of the train.
+		 */
+		public int next() {
+			int t = 0;
+			if (positions.length > 1) {
+				int gap = (positions[1] - positions[0] + length) % length;
+				if (catching && gap <= 2) {
+					catching = false;
+				} else if (!catching && gap >= length - 2) {
+					catching = true;
+				}
+				t = catching ? 0 : 1;
+			}
+			positions[t] = (positions[t] + 1) % length;
+			return positions[t];
+		}
+	}
+
+	/**
+	 * Describes how warming up went.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Report {
+		private int events;
+		private int rounds;
+		private long time;
+		private long compileTime;
+		private boolean settled;
+		private long firstMedian;
+		private long firstP99;
+		private long median;
+		private long p99;
+
+		public int events() {
+			return events;
+		}
+
+		/**
+		 * Whether compilation settled down before the time limit expired.
+		 */
+		public boolean settled() {
+			return settled;
+		}
+
+		/**
+		 * The median latency (in nanoseconds) over the last round.
+		 */
+		public long median() {
+			return median;
+		}
+
+		/**
+		 * The 99th percentile latency (in nanoseconds) over the last round.
+		 */
+		public long p99() {
+			return p99;
+		}
+
+		public String toString() {
+			return "Warmed up with " + events + " events in " + time + "ms (" + compileTime + "ms compiling"
+					+ (settled ? "" : ", still compiling") + "): latency " + (firstMedian / 1000) + "us median, "
+					+ (firstP99 / 1000) + "us p99 at first; " + (median / 1000) + "us median, " + (p99 / 1000)
+					+ "us p99 at the end";
+		}
+	}
+}
@@ -15,6 +15,18 @@ public interface Controller extends Event.Listener {
 	 * @param listener
 	 */
 	public void register(Event.Listener listener);
+
+	/**
+	 * Register an event listener for only those events generated by this
+	 * controller of given types and, if any keys are given, concerning those
+	 * keys.
+	 * 
+	 * @param listener
+	 * @param types
+	 *            Mask of event types.
+	 * @param keys
+	 */
+	public void register(Event.Listener listener, int types, int... keys);
 	
 	/**
 	 * Start a given train on a given route.
@@ -30,14 +42,32 @@ public interface Controller extends Event.Listener {
 	 * @param trainID
 	 */
 	public void stop(int trainID);
+
+	/**
+	 * Inform the controller that a given train is located in a given section.
+	 *
+	 * @param trainID
+	 * @param section
+	 */
+	public void locate(int trainID, int section);
 	
 	/**
-	 * Get the train record for a given train.
+	 * Get a copy of the train record for a given train, as of the most recent
+	 * snapshot. Changing the returned record has no effect on the controller;
+	 * use <code>locate()</code> instead.
 	 * 
 	 * @param trainID
 	 * @return
 	 */
 	public Train train(int trainID);
+
+	/**
+	 * Get the most recently published snapshot of all trains. This can be
+	 * called from any thread, and never blocks the controller.
+	 * 
+	 * @return
+	 */
+	public Snapshot snapshot();
 	
 	/**
 	 * Set the state of a given turnout
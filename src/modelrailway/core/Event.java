@@ -9,6 +9,49 @@ package modelrailway.core;
  * 
  */
 public interface Event {
+
+	// Event types, each of which is a distinct bit so that sets of types can
+	// be described by a mask.
+	public static final int POWER_CHANGED = 1 << 0;
+	public static final int SECTION_CHANGED = 1 << 1;
+	public static final int SPEED_CHANGED = 1 << 2;
+	public static final int DIRECTION_CHANGED = 1 << 3;
+	public static final int FUNCTIONS_CHANGED = 1 << 4;
+	public static final int EMERGENCY_STOP = 1 << 5;
+	public static final int EMERGENCY_STOP_ALL = 1 << 6;
+	public static final int TURNOUT_CHANGED = 1 << 7;
+	public static final int PATTERN_MATCHED = 1 << 8;
+
+	/**
+	 * The number of distinct event types.
+	 */
+	public static final int TYPES = 9;
+
+	/**
+	 * A mask covering every type of event.
+	 */
+	public static final int ALL = (1 << TYPES) - 1;
+
+	/**
+	 * The key of events which do not concern a particular section,
+	 * locomotive or turnout.
+	 */
+	public static final int NO_KEY = -1;
+
+	/**
+	 * Get the type of this event, which is exactly one of the type bits.
+	 * 
+	 * @return
+	 */
+	public int type();
+
+	/**
+	 * Get the section, locomotive or turnout which this event concerns
+	 * (depending on its type), or NO_KEY if it concerns none in particular.
+	 * 
+	 * @return
+	 */
+	public int key();
 	
 	/**
 	 * An even listener is used to handle events of different kinds on the
@@ -47,6 +90,14 @@ public interface Event {
 			return powerOn;
 		}
 		
+		public int type() {
+			return POWER_CHANGED;
+		}
+
+		public int key() {
+			return NO_KEY;
+		}
+
 		public String toString() {
 			if(powerOn) {
 				return "Railway was powered on.";
@@ -88,6 +139,14 @@ public interface Event {
 			return section;
 		}
 		
+		public int type() {
+			return SECTION_CHANGED;
+		}
+
+		public int key() {
+			return section;
+		}
+
 		public String toString() {
 			if(into) {
 				return "Locomotive moved into Section " + section + ".";
@@ -127,6 +186,14 @@ public interface Event {
 			return speed;
 		}
 		
+		public int type() {
+			return SPEED_CHANGED;
+		}
+
+		public int key() {
+			return locomotive;
+		}
+
 		public String toString() {
 			int percent = (int) (speed * 100f);
 			return "Locomotive " + locomotive + " now moving at speed "
@@ -164,6 +231,14 @@ public interface Event {
 			return direction;
 		}		
 		
+		public int type() {
+			return DIRECTION_CHANGED;
+		}
+
+		public int key() {
+			return locomotive;
+		}
+
 		public String toString() {
 			if (direction) {
 				return "Locomotive " + locomotive + " now going forwards.";
@@ -174,6 +249,63 @@ public interface Event {
 		}
 	}
 	
+	/**
+	 * Indicates a change to some of a given locomotive's functions (e.g.
+	 * lights, sound, etc). Functions are represented as a bitmask, where bit i
+	 * corresponds to function Fi.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class FunctionsChanged implements Event {
+		/**
+		 * The locomotive whose functions were changed.
+		 */
+		private final int locomotive;
+
+		/**
+		 * Identifies which functions are covered by this event. Functions
+		 * outside this mask are unaffected.
+		 */
+		private final int mask;
+
+		/**
+		 * The state of each function covered by this event (1 = on, 0 = off).
+		 */
+		private final int functions;
+
+		public FunctionsChanged(int locomotive, int mask, int functions) {
+			this.locomotive = locomotive;
+			this.mask = mask;
+			this.functions = functions & mask;
+		}
+
+		public int getLocomotive() {
+			return locomotive;
+		}
+
+		public int getMask() {
+			return mask;
+		}
+
+		public int getFunctions() {
+			return functions;
+		}
+
+		public int type() {
+			return FUNCTIONS_CHANGED;
+		}
+
+		public int key() {
+			return locomotive;
+		}
+
+		public String toString() {
+			return "Locomotive " + locomotive + " functions now "
+					+ Integer.toBinaryString(functions) + ".";
+		}
+	}
+
 	/**
 	 * Instruct a train to perform an emergency stop.
 	 * 
@@ -194,11 +326,39 @@ public interface Event {
 			return locomotive;
 		}
 		
+		public int type() {
+			return EMERGENCY_STOP;
+		}
+
+		public int key() {
+			return locomotive;
+		}
+
 		public String toString() {
 			return "Locomotive " + locomotive + " performing emergency stop.";
 		}
 	}
 
+	/**
+	 * Instruct all trains to perform an emergency stop at once.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class EmergencyStopAll implements Event {
+		public int type() {
+			return EMERGENCY_STOP_ALL;
+		}
+
+		public int key() {
+			return NO_KEY;
+		}
+
+		public String toString() {
+			return "All locomotives performing emergency stop.";
+		}
+	}
+
 	/**
 	 * Indicates a change to a given turnout's status
 	 * 
@@ -229,6 +389,14 @@ public interface Event {
 			return thrown;
 		}		
 		
+		public int type() {
+			return TURNOUT_CHANGED;
+		}
+
+		public int key() {
+			return turnout;
+		}
+
 		public String toString() {
 			if (thrown) {
 				return "Turnout " + turnout + " thrown.";
@@ -237,5 +405,45 @@ public interface Event {
 			}
 		}
 	}
-	
+
+	/**
+	 * Indicates that a pattern over the stream of events has been matched,
+	 * e.g. a section whose sensor is flapping. Such events are derived from
+	 * other events, rather than coming from the railway.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class PatternMatched implements Event {
+		/**
+		 * The pattern which was matched.
+		 */
+		private final int pattern;
+
+		/**
+		 * The section, locomotive or turnout for which it was matched.
+		 */
+		private final int key;
+
+		public PatternMatched(int pattern, int key) {
+			this.pattern = pattern;
+			this.key = key;
+		}
+
+		public int getPattern() {
+			return pattern;
+		}
+
+		public int type() {
+			return PATTERN_MATCHED;
+		}
+
+		public int key() {
+			return key;
+		}
+
+		public String toString() {
+			return "Pattern " + pattern + " matched for " + key + ".";
+		}
+	}
 }
@@ -0,0 +1,214 @@
+package modelrailway.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Delivers events to those listeners which have subscribed to them. A listener
+ * subscribes to a set of event types (given as a mask) and, optionally, to
+ * only those events concerning particular keys (i.e. sections, locomotives or
+ * turnouts). Subscribers are indexed by type and by key, so delivering an
+ * event costs only as much as the number of listeners interested in it,
+ * rather than the total number of listeners.
+ *
+ * Events which have no key (e.g. power changes) are delivered to every
+ * subscriber of their type, regardless of any key filter. Keys are small
+ * non-negative integers, so the index for each type is an array indexed by
+ * key. Each listener receives an event at most once, even if it has
+ * subscribed to it several times (e.g. both with and without keys).
+ *
+ * The indexes are rebuilt from the subscriptions on each subscription (or
+ * unsubscription), and published together as a single immutable state.
+ * Hence, events can be delivered from any thread without locking, and never
+ * see a partially updated set of indexes.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class EventBus implements Event.Listener {
+	private static final Event.Listener[] NONE = new Event.Listener[0];
+
+	/**
+	 * Every subscription made so far, in order.
+	 */
+	private final ArrayList<Subscription> subscriptions = new ArrayList<Subscription>();
+
+	/**
+	 * The indexes built from the subscriptions.
+	 */
+	private volatile State state = new State(subscriptions);
+
+	/**
+	 * Subscribe a listener to all events.
+	 *
+	 * @param listener
+	 */
+	public void register(Event.Listener listener) {
+		register(listener, Event.ALL);
+	}
+
+	/**
+	 * Subscribe a listener to events of given types. If any keys are given,
+	 * then only events concerning those keys are delivered.
+	 *
+	 * @param listener
+	 * @param types
+	 *            Mask of event types.
+	 * @param keys
+	 */
+	public synchronized void register(Event.Listener listener, int types, int... keys) {
+		for (int key : keys) {
+			if (key < 0) {
+				throw new IllegalArgumentException("Invalid key: " + key);
+			}
+		}
+		subscriptions.add(new Subscription(listener, types, keys.clone()));
+		state = new State(subscriptions);
+	}
+
+	/**
+	 * Remove every subscription of a given listener, so that it receives no
+	 * further events (other than any being delivered right now).
+	 *
+	 * @param listener
+	 */
+	public synchronized void unregister(Event.Listener listener) {
+		Iterator<Subscription> i = subscriptions.iterator();
+		while (i.hasNext()) {
+			if (i.next().listener == listener) {
+				i.remove();
+			}
+		}
+		state = new State(subscriptions);
+	}
+
+	/**
+	 * Deliver an event to every listener subscribed to it.
+	 */
+	@Override
+	public void notify(Event e) {
+		State state = this.state;
+		int type = Integer.numberOfTrailingZeros(e.type());
+		for (Event.Listener listener : state.unkeyed[type]) {
+			listener.notify(e);
+		}
+		Event.Listener[][] index = state.keyed[type];
+		if (index == null) {
+			return;
+		}
+		int key = e.key();
+		if (key == Event.NO_KEY) {
+			for (Event.Listener listener : state.filtered[type]) {
+				listener.notify(e);
+			}
+		} else if (key >= 0 && key < index.length && index[key] != null) {
+			for (Event.Listener listener : index[key]) {
+				listener.notify(e);
+			}
+		}
+	}
+
+	private static boolean contains(Event.Listener[] listeners, Event.Listener listener) {
+		for (Event.Listener l : listeners) {
+			if (l == listener) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Event.Listener[] append(Event.Listener[] listeners, Event.Listener listener) {
+		Event.Listener[] result = new Event.Listener[listeners.length + 1];
+		System.arraycopy(listeners, 0, result, 0, listeners.length);
+		result[listeners.length] = listener;
+		return result;
+	}
+
+	/**
+	 * A listener's subscription to events of given types and (optionally)
+	 * keys.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Subscription {
+		private final Event.Listener listener;
+		private final int types;
+		private final int[] keys;
+
+		public Subscription(Event.Listener listener, int types, int[] keys) {
+			this.listener = listener;
+			this.types = types;
+			this.keys = keys;
+		}
+	}
+
+	/**
+	 * The indexes of listeners for each type of event. A state is never
+	 * modified once built.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class State {
+		/**
+		 * The listeners subscribed to every event of each type.
+		 */
+		private final Event.Listener[][] unkeyed = new Event.Listener[Event.TYPES][];
+
+		/**
+		 * The listeners subscribed to events of each type with particular
+		 * keys, indexed by key, or null for types with no such listeners.
+		 */
+		private final Event.Listener[][][] keyed = new Event.Listener[Event.TYPES][][];
+
+		/**
+		 * The distinct listeners subscribed to events of each type with
+		 * particular keys. These receive events of that type which have no
+		 * key.
+		 */
+		private final Event.Listener[][] filtered = new Event.Listener[Event.TYPES][];
+
+		public State(ArrayList<Subscription> subscriptions) {
+			for (int i = 0; i != Event.TYPES; ++i) {
+				int mask = 1 << i;
+				// Listeners subscribed to every event of this type receive
+				// them from here alone.
+				Event.Listener[] all = NONE;
+				int maxKey = -1;
+				for (Subscription s : subscriptions) {
+					if ((s.types & mask) == 0) {
+						continue;
+					} else if (s.keys.length == 0) {
+						if (!contains(all, s.listener)) {
+							all = append(all, s.listener);
+						}
+					} else {
+						for (int key : s.keys) {
+							maxKey = Math.max(maxKey, key);
+						}
+					}
+				}
+				Event.Listener[][] index = new Event.Listener[maxKey + 1][];
+				Event.Listener[] some = NONE;
+				for (Subscription s : subscriptions) {
+					if ((s.types & mask) == 0 || s.keys.length == 0 || contains(all, s.listener)) {
+						continue;
+					}
+					for (int key : s.keys) {
+						Event.Listener[] listeners = index[key] == null ? NONE : index[key];
+						if (!contains(listeners, s.listener)) {
+							index[key] = append(listeners, s.listener);
+						}
+					}
+					if (!contains(some, s.listener)) {
+						some = append(some, s.listener);
+					}
+				}
+				unkeyed[i] = all;
+				keyed[i] = some.length == 0 ? null : index;
+				filtered[i] = some;
+			}
+		}
+	}
+}
@@ -0,0 +1,354 @@
+package modelrailway.core;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A compact binary encoding of events, for logging, streaming and replaying
+ * them without going through text. Each event is written as a one-byte tag
+ * (the index of its type bit) followed by its fields, where integers are
+ * written as zig-zag varints, booleans as a single byte, and speeds as the
+ * four bytes of a float. Events are grouped into batches, each of which starts
+ * with the version of the encoding, the number of bytes which follow (as four
+ * bytes) and the number of events it holds. Since the length of a batch is
+ * known up front, a reader of a stream can wait until a whole batch has
+ * arrived before decoding it, and can skip over a batch it cannot decode.
+ *
+ * Events are encoded into, and decoded from, buffers supplied by the caller.
+ * Neither encoding nor decoding allocates, since decoded events are passed
+ * field by field to a visitor. Where event objects are needed, a visitor which
+ * constructs them can be used instead.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class EventCodec {
+	/**
+	 * The version of the encoding, which is written at the start of every
+	 * batch.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * The number of bytes at the start of every batch, before its events
+	 * (i.e. the version and length).
+	 */
+	public static final int HEADER_SIZE = 5;
+
+	/**
+	 * The most bytes taken by any single encoded event.
+	 */
+	public static final int MAX_EVENT_SIZE = 16;
+
+	private EventCodec() {
+	}
+
+	/**
+	 * Receives the fields of decoded events.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface Visitor {
+		public void powerChanged(boolean powerOn);
+
+		public void sectionChanged(int section, boolean into);
+
+		public void speedChanged(int locomotive, float speed);
+
+		public void directionChanged(int locomotive, boolean direction);
+
+		public void functionsChanged(int locomotive, int mask, int functions);
+
+		public void emergencyStop(int locomotive);
+
+		public void emergencyStopAll();
+
+		public void turnoutChanged(int turnout, boolean thrown);
+
+		public void patternMatched(int pattern, int key);
+	}
+
+	/**
+	 * A visitor which reconstructs each decoded event and passes it on to a
+	 * listener.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Replay implements Visitor {
+		private final Event.Listener listener;
+
+		public Replay(Event.Listener listener) {
+			this.listener = listener;
+		}
+
+		public void powerChanged(boolean powerOn) {
+			listener.notify(new Event.PowerChanged(powerOn));
+		}
+
+		public void sectionChanged(int section, boolean into) {
+			listener.notify(new Event.SectionChanged(section, into));
+		}
+
+		public void speedChanged(int locomotive, float speed) {
+			listener.notify(new Event.SpeedChanged(locomotive, speed));
+		}
+
+		public void directionChanged(int locomotive, boolean direction) {
+			listener.notify(new Event.DirectionChanged(locomotive, direction));
+		}
+
+		public void functionsChanged(int locomotive, int mask, int functions) {
+			listener.notify(new Event.FunctionsChanged(locomotive, mask, functions));
+		}
+
+		public void emergencyStop(int locomotive) {
+			listener.notify(new Event.EmergencyStop(locomotive));
+		}
+
+		public void emergencyStopAll() {
+			listener.notify(new Event.EmergencyStopAll());
+		}
+
+		public void turnoutChanged(int turnout, boolean thrown) {
+			listener.notify(new Event.TurnoutChanged(turnout, thrown));
+		}
+
+		public void patternMatched(int pattern, int key) {
+			listener.notify(new Event.PatternMatched(pattern, key));
+		}
+	}
+
+	/**
+	 * Encode a batch of events into a buffer. If the buffer has too little
+	 * room for the whole batch, then nothing is written (i.e. its position is
+	 * unchanged) and BufferOverflowException is thrown.
+	 *
+	 * @param events
+	 * @param from
+	 *            Index of the first event in the batch.
+	 * @param to
+	 *            Index after the last event in the batch.
+	 * @param buffer
+	 */
+	public static void encode(Event[] events, int from, int to, ByteBuffer buffer) {
+		int start = buffer.position();
+		try {
+			buffer.put((byte) VERSION);
+			// The length is filled in once the events have been written.
+			buffer.putInt(0);
+			writeVarint(to - from, buffer);
+			for (int i = from; i < to; ++i) {
+				encode(events[i], buffer);
+			}
+			buffer.putInt(start + 1, buffer.position() - start - HEADER_SIZE);
+		} catch (BufferOverflowException e) {
+			buffer.position(start);
+			throw e;
+		}
+	}
+
+	/**
+	 * Encode a single event (without batch framing) into a buffer.
+	 *
+	 * @param e
+	 * @param buffer
+	 */
+	public static void encode(Event e, ByteBuffer buffer) {
+		int type = e.type();
+		buffer.put((byte) Integer.numberOfTrailingZeros(type));
+		switch (type) {
+		case Event.POWER_CHANGED:
+			writeBoolean(((Event.PowerChanged) e).isPowerOn(), buffer);
+			break;
+		case Event.SECTION_CHANGED: {
+			Event.SectionChanged es = (Event.SectionChanged) e;
+			writeVarint(es.getSection(), buffer);
+			writeBoolean(es.getInto(), buffer);
+			break;
+		}
+		case Event.SPEED_CHANGED: {
+			Event.SpeedChanged es = (Event.SpeedChanged) e;
+			writeVarint(es.getLocomotive(), buffer);
+			buffer.putFloat(es.getSpeed());
+			break;
+		}
+		case Event.DIRECTION_CHANGED: {
+			Event.DirectionChanged ed = (Event.DirectionChanged) e;
+			writeVarint(ed.getLocomotive(), buffer);
+			writeBoolean(ed.getDirection(), buffer);
+			break;
+		}
+		case Event.FUNCTIONS_CHANGED: {
+			Event.FunctionsChanged ef = (Event.FunctionsChanged) e;
+			writeVarint(ef.getLocomotive(), buffer);
+			writeVarint(ef.getMask(), buffer);
+			writeVarint(ef.getFunctions(), buffer);
+			break;
+		}
+		case Event.EMERGENCY_STOP:
+			writeVarint(((Event.EmergencyStop) e).getLocomotive(), buffer);
+			break;
+		case Event.EMERGENCY_STOP_ALL:
+			break;
+		case Event.TURNOUT_CHANGED: {
+			Event.TurnoutChanged et = (Event.TurnoutChanged) e;
+			writeVarint(et.getTurnout(), buffer);
+			writeBoolean(et.getThrown(), buffer);
+			break;
+		}
+		case Event.PATTERN_MATCHED: {
+			Event.PatternMatched ep = (Event.PatternMatched) e;
+			writeVarint(ep.getPattern(), buffer);
+			writeVarint(ep.key(), buffer);
+			break;
+		}
+		default:
+			throw new IllegalArgumentException("Unknown event type: " + type);
+		}
+	}
+
+	/**
+	 * Decode a batch of events from a buffer, passing each to a visitor. If
+	 * the buffer does not yet hold the whole batch, then nothing is decoded
+	 * (i.e. its position is unchanged) and -1 is returned. If the batch is
+	 * malformed, or of an unsupported version, then the buffer is positioned
+	 * after it, so that decoding can continue with the next batch, and
+	 * IllegalArgumentException is thrown; the visitor may have been passed
+	 * some of the batch's events by then. Only a batch whose length is
+	 * malformed cannot be skipped.
+	 *
+	 * @param buffer
+	 * @param visitor
+	 * @return The number of events decoded, or -1 if the batch is incomplete.
+	 */
+	public static int decode(ByteBuffer buffer, Visitor visitor) {
+		int start = buffer.position();
+		if (buffer.remaining() < HEADER_SIZE) {
+			return -1;
+		}
+		int version = buffer.get(start) & 0xFF;
+		int length = buffer.getInt(start + 1);
+		if (length < 0) {
+			throw new IllegalArgumentException("Malformed batch length: " + length);
+		} else if (buffer.remaining() - HEADER_SIZE < length) {
+			return -1;
+		}
+		int end = start + HEADER_SIZE + length;
+		if (version != VERSION) {
+			// Every version starts with the same header, so the batch can be
+			// skipped.
+			buffer.position(end);
+			throw new IllegalArgumentException("Unsupported event encoding version: " + version);
+		}
+		int limit = buffer.limit();
+		// Stop events from being read beyond the end of the batch.
+		buffer.limit(end);
+		buffer.position(start + HEADER_SIZE);
+		try {
+			int count = readVarint(buffer);
+			for (int i = 0; i != count; ++i) {
+				decodeEvent(buffer, visitor);
+			}
+			if (buffer.hasRemaining()) {
+				throw new IllegalArgumentException("Malformed batch: " + buffer.remaining() + " bytes left over");
+			}
+			return count;
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Malformed batch: events overrun its length");
+		} finally {
+			buffer.limit(limit);
+			buffer.position(end);
+		}
+	}
+
+	/**
+	 * Decode a single event (without batch framing) from a buffer, passing it
+	 * to a visitor.
+	 *
+	 * @param buffer
+	 * @param visitor
+	 */
+	public static void decodeEvent(ByteBuffer buffer, Visitor visitor) {
+		int tag = buffer.get() & 0xFF;
+		switch (tag < Event.TYPES ? 1 << tag : 0) {
+		case Event.POWER_CHANGED:
+			visitor.powerChanged(readBoolean(buffer));
+			break;
+		case Event.SECTION_CHANGED: {
+			int section = readVarint(buffer);
+			visitor.sectionChanged(section, readBoolean(buffer));
+			break;
+		}
+		case Event.SPEED_CHANGED: {
+			int locomotive = readVarint(buffer);
+			visitor.speedChanged(locomotive, buffer.getFloat());
+			break;
+		}
+		case Event.DIRECTION_CHANGED: {
+			int locomotive = readVarint(buffer);
+			visitor.directionChanged(locomotive, readBoolean(buffer));
+			break;
+		}
+		case Event.FUNCTIONS_CHANGED: {
+			int locomotive = readVarint(buffer);
+			int mask = readVarint(buffer);
+			visitor.functionsChanged(locomotive, mask, readVarint(buffer));
+			break;
+		}
+		case Event.EMERGENCY_STOP:
+			visitor.emergencyStop(readVarint(buffer));
+			break;
+		case Event.EMERGENCY_STOP_ALL:
+			visitor.emergencyStopAll();
+			break;
+		case Event.TURNOUT_CHANGED: {
+			int turnout = readVarint(buffer);
+			visitor.turnoutChanged(turnout, readBoolean(buffer));
+			break;
+		}
+		case Event.PATTERN_MATCHED: {
+			int pattern = readVarint(buffer);
+			visitor.patternMatched(pattern, readVarint(buffer));
+			break;
+		}
+		default:
+			throw new IllegalArgumentException("Unknown event tag: " + tag);
+		}
+	}
+
+	private static void writeBoolean(boolean b, ByteBuffer buffer) {
+		buffer.put(b ? (byte) 1 : (byte) 0);
+	}
+
+	private static boolean readBoolean(ByteBuffer buffer) {
+		return buffer.get() != 0;
+	}
+
+	/**
+	 * Write an integer as a zig-zag varint, so that small negative values
+	 * (e.g. NO_KEY) are as short as small positive ones.
+	 */
+	private static void writeVarint(int value, ByteBuffer buffer) {
+		int v = (value << 1) ^ (value >> 31);
+		while ((v & ~0x7F) != 0) {
+			buffer.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buffer.put((byte) v);
+	}
+
+	private static int readVarint(ByteBuffer buffer) {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = buffer.get();
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return (v >>> 1) ^ -(v & 1);
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+}
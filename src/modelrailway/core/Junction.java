@@ -0,0 +1,60 @@
+package modelrailway.core;
+
+/**
+ * Represents a point on the railway where a section ends in a turnout, such
+ * that a train leaving the section follows one of two sections depending on
+ * whether the turnout is closed or thrown. Sections are numbered as they are
+ * in a route.
+ * 
+ * @author David J. Pearce
+ * 
+ */
+public final class Junction {
+	/**
+	 * The section which ends in the turnout.
+	 */
+	private final int section;
+
+	/**
+	 * The turnout at the end of the section.
+	 */
+	private final int turnout;
+
+	/**
+	 * The section followed when the turnout is closed.
+	 */
+	private final int closed;
+
+	/**
+	 * The section followed when the turnout is thrown.
+	 */
+	private final int thrown;
+
+	public Junction(int section, int turnout, int closed, int thrown) {
+		this.section = section;
+		this.turnout = turnout;
+		this.closed = closed;
+		this.thrown = thrown;
+	}
+
+	public int getSection() {
+		return section;
+	}
+
+	public int getTurnout() {
+		return turnout;
+	}
+
+	public int getClosed() {
+		return closed;
+	}
+
+	public int getThrown() {
+		return thrown;
+	}
+
+	public String toString() {
+		return "Section " + section + " leads to Section " + closed + " (closed) or Section " + thrown
+				+ " (thrown) via Turnout " + turnout + ".";
+	}
+}
@@ -0,0 +1,262 @@
+package modelrailway.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Describes how the railway is laid out: which section each detection sensor
+ * reports, how long each section is, and where the junctions are. Sensors are
+ * identified by their address and switch bit (i.e. each sensor address has
+ * two inputs), and the mapping is held in a dense table so that looking up a
+ * sensor's section is a single array access.
+ * 
+ * A layout can be loaded from a file, with one entry per line:
+ * 
+ * <pre>
+ * # comment
+ * sensor &lt;address&gt; &lt;0|1&gt; &lt;section&gt;
+ * section &lt;section&gt; &lt;length in mm&gt;
+ * junction &lt;section&gt; &lt;turnout&gt; &lt;closed&gt; &lt;thrown&gt;
+ * </pre>
+ * 
+ * @author David J. Pearce
+ * 
+ */
+public final class Layout {
+	/**
+	 * The highest sensor address which can be reported on loconet.
+	 */
+	public static final int MAX_SENSOR = 2048;
+
+	/**
+	 * The section reported by each sensor input, indexed by
+	 * <code>(address << 1) | switch</code>, or -1 for unmapped inputs.
+	 */
+	private final int[] sensors;
+
+	/**
+	 * The highest section number reported by any sensor.
+	 */
+	private final int size;
+
+	/**
+	 * The length of each section (in millimetres), or zero if unknown.
+	 */
+	private final int[] lengths;
+
+	private final Junction[] junctions;
+
+	/**
+	 * Construct a layout. The given arrays are owned by the layout from this
+	 * point on, and must not be modified.
+	 * 
+	 * @param sensors
+	 *            Section reported by each sensor input, indexed by
+	 *            <code>(address << 1) | switch</code>, or -1 if unmapped.
+	 * @param lengths
+	 *            Length of each section (in millimetres), or zero if unknown.
+	 * @param junctions
+	 */
+	public Layout(int[] sensors, int[] lengths, Junction[] junctions) {
+		this.sensors = sensors;
+		this.lengths = lengths;
+		this.junctions = junctions;
+		int size = 0;
+		for (int section : sensors) {
+			size = Math.max(size, section);
+		}
+		this.size = size;
+	}
+
+	/**
+	 * Get the section reported by a given sensor input, or -1 if the input is
+	 * not mapped to any section.
+	 * 
+	 * @param address
+	 * @param sw
+	 * @return
+	 */
+	public int section(int address, boolean sw) {
+		int index = (address << 1) | (sw ? 1 : 0);
+		if (index < 0 || index >= sensors.length) {
+			return -1;
+		}
+		return sensors[index];
+	}
+
+	/**
+	 * Get the sensor input reporting a given section, as
+	 * <code>(address << 1) | switch</code>, or -1 if no sensor reports it.
+	 * This scans the whole table, so is not intended for frequent use.
+	 * 
+	 * @param section
+	 * @return
+	 */
+	public int input(int section) {
+		for (int i = 0; i != sensors.length; ++i) {
+			if (sensors[i] == section) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * The highest section number reported by any sensor.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the length of a given section (in millimetres), or zero if it is not
+	 * known.
+	 * 
+	 * @param section
+	 * @return
+	 */
+	public int length(int section) {
+		if (section < 0 || section >= lengths.length) {
+			return 0;
+		}
+		return lengths[section];
+	}
+
+	/**
+	 * Check whether the length of any section is known.
+	 * 
+	 * @return
+	 */
+	public boolean hasLengths() {
+		for (int length : lengths) {
+			if (length > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public Junction[] junctions() {
+		return junctions.clone();
+	}
+
+	/**
+	 * Get the sections which the layout knows about, i.e. those reported by
+	 * a sensor, those whose length is known and those at a junction. These
+	 * may include duplicates.
+	 * 
+	 * @return
+	 */
+	public int[] sections() {
+		int[] sections = new int[sensors.length + lengths.length + (junctions.length * 3)];
+		int n = 0;
+		for (int section : sensors) {
+			if (section > 0) {
+				sections[n++] = section;
+			}
+		}
+		for (int section = 1; section < lengths.length; ++section) {
+			if (lengths[section] > 0) {
+				sections[n++] = section;
+			}
+		}
+		for (Junction j : junctions) {
+			sections[n++] = j.getSection();
+			sections[n++] = j.getClosed();
+			sections[n++] = j.getThrown();
+		}
+		return Arrays.copyOf(sections, n);
+	}
+
+	/**
+	 * Construct a layout of alternating detection and non-detection sections,
+	 * where detection sections are odd numbered. Each sensor address covers
+	 * two detection sections, so sensor 1 reports sections 1 and 3, sensor 2
+	 * reports sections 5 and 7, etc. There are no junctions.
+	 * 
+	 * @param nSensors
+	 *            Number of sensor addresses.
+	 * @return
+	 */
+	public static Layout alternating(int nSensors) {
+		int[] sensors = new int[(nSensors + 1) << 1];
+		Arrays.fill(sensors, -1);
+		for (int i = 1; i <= nSensors; ++i) {
+			sensors[i << 1] = (i * 4) - 3;
+			sensors[(i << 1) | 1] = (i * 4) - 1;
+		}
+		return new Layout(sensors, new int[0], new Junction[0]);
+	}
+
+	/**
+	 * Load a layout from a given file.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static Layout load(File file) throws IOException {
+		int[] sensors = new int[(MAX_SENSOR + 1) << 1];
+		Arrays.fill(sensors, -1);
+		int[] lengths = new int[0];
+		ArrayList<Junction> junctions = new ArrayList<Junction>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				int comment = line.indexOf('#');
+				if (comment >= 0) {
+					line = line.substring(0, comment);
+				}
+				String[] tokens = line.trim().split("\\s+");
+				try {
+					if (tokens[0].equals("")) {
+						continue;
+					} else if (tokens[0].equals("sensor") && tokens.length == 4) {
+						int address = Integer.parseInt(tokens[1]);
+						int sw = Integer.parseInt(tokens[2]);
+						int section = Integer.parseInt(tokens[3]);
+						if (address < 1 || address > MAX_SENSOR || (sw != 0 && sw != 1) || section < 1) {
+							throw new NumberFormatException();
+						}
+						sensors[(address << 1) | sw] = section;
+					} else if (tokens[0].equals("section") && tokens.length == 3) {
+						int section = Integer.parseInt(tokens[1]);
+						int length = Integer.parseInt(tokens[2]);
+						if (section < 1 || length < 1) {
+							throw new NumberFormatException();
+						}
+						if (section >= lengths.length) {
+							lengths = Arrays.copyOf(lengths, Math.max(section + 1, lengths.length * 2));
+						}
+						lengths[section] = length;
+					} else if (tokens[0].equals("junction") && tokens.length == 5) {
+						int section = Integer.parseInt(tokens[1]);
+						int turnout = Integer.parseInt(tokens[2]);
+						int closed = Integer.parseInt(tokens[3]);
+						int thrown = Integer.parseInt(tokens[4]);
+						if (section < 1 || turnout < 0 || closed < 1 || thrown < 1) {
+							throw new NumberFormatException();
+						}
+						junctions.add(new Junction(section, turnout, closed, thrown));
+					} else {
+						throw new IOException(file + ":" + lineNumber + ": unrecognised entry");
+					}
+				} catch (NumberFormatException e) {
+					throw new IOException(file + ":" + lineNumber + ": invalid number");
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return new Layout(sensors, lengths, junctions.toArray(new Junction[junctions.size()]));
+	}
+}
@@ -35,6 +35,50 @@ public class Route {
 		this.sections = sections;
 	}
 	
+	/**
+	 * Determine whether this route is a continuous loop or not.
+	 * 
+	 * @return
+	 */
+	public boolean isLoop() {
+		return isLoop;
+	}
+	
+	/**
+	 * The number of sections in this route.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return sections.length;
+	}
+	
+	/**
+	 * Get the ith section of this route.
+	 * 
+	 * @param i
+	 * @return
+	 */
+	public int section(int i) {
+		return sections[i];
+	}
+	
+	/**
+	 * Determine the position of a given section in this route, or -1 if the
+	 * section is not in the route.
+	 * 
+	 * @param section
+	 * @return
+	 */
+	public int indexOf(int section) {
+		for (int i = 0; i != sections.length; ++i) {
+			if (sections[i] == section) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
 	public Integer firstSection() {
 		return sections[0];
 	}
@@ -0,0 +1,81 @@
+package modelrailway.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A route which has been compiled against the junctions of the railway. For
+ * each transition from one section of the route to the next, the plan records
+ * the turnout commands needed for a train to make that transition. A plan is
+ * immutable, and the commands it holds can be sent as often as needed.
+ * 
+ * @author David J. Pearce
+ * 
+ */
+public final class RoutePlan {
+	private final Route route;
+
+	/**
+	 * The turnout commands needed for each transition, where transition i is
+	 * from section i to section i+1 of the route (wrapping for loops).
+	 */
+	private final List<List<Event.TurnoutChanged>> commands;
+
+	/**
+	 * Compile a route against a given set of junctions. An exception is raised
+	 * if the route passes through a junction to a section which the junction
+	 * does not lead to.
+	 * 
+	 * @param route
+	 * @param junctions
+	 */
+	public RoutePlan(Route route, Junction... junctions) {
+		this.route = route;
+		int nTransitions = route.isLoop() ? route.size() : route.size() - 1;
+		List<List<Event.TurnoutChanged>> commands = new ArrayList<List<Event.TurnoutChanged>>();
+		for (int i = 0; i < nTransitions; ++i) {
+			int from = route.section(i);
+			int to = route.section((i + 1) % route.size());
+			List<Event.TurnoutChanged> transition = new ArrayList<Event.TurnoutChanged>();
+			for (Junction j : junctions) {
+				if (j.getSection() != from) {
+					continue;
+				} else if (j.getClosed() == to) {
+					transition.add(new Event.TurnoutChanged(j.getTurnout(), false));
+				} else if (j.getThrown() == to) {
+					transition.add(new Event.TurnoutChanged(j.getTurnout(), true));
+				} else {
+					throw new IllegalArgumentException("Route cannot pass from Section " + from + " to Section " + to
+							+ " via Turnout " + j.getTurnout());
+				}
+			}
+			commands.add(Collections.unmodifiableList(transition));
+		}
+		this.commands = Collections.unmodifiableList(commands);
+	}
+
+	public Route route() {
+		return route;
+	}
+
+	/**
+	 * The number of transitions in one pass over the route.
+	 * 
+	 * @return
+	 */
+	public int transitions() {
+		return commands.size();
+	}
+
+	/**
+	 * Get the turnout commands needed for a given transition, which may be
+	 * empty if the transition does not pass through a junction.
+	 * 
+	 * @param transition
+	 * @return
+	 */
+	public List<Event.TurnoutChanged> commands(int transition) {
+		return commands.get(transition);
+	}
+}
@@ -0,0 +1,99 @@
+package modelrailway.core;
+
+import java.util.Arrays;
+
+/**
+ * Numbers a set of sections densely from 1, so that state kept for each
+ * section can be held in arrays sized by the sections which actually exist,
+ * rather than by the largest section number. Section numbers can be sparse,
+ * e.g. where only the odd sections have sensors, or where the sections of
+ * each bus are offset by a large stride. Looking up a section's index is a
+ * single array access.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class SectionIndex {
+	/**
+	 * The index of each section, or 0 if the section is not indexed.
+	 */
+	private final int[] indexes;
+
+	/**
+	 * The section with each index, where index 0 is unused.
+	 */
+	private final int[] sections;
+
+	/**
+	 * Construct an index over a given set of sections. Duplicates, and
+	 * sections below 1, are ignored.
+	 *
+	 * @param sections
+	 */
+	public SectionIndex(int... sections) {
+		int[] sorted = sections.clone();
+		Arrays.sort(sorted);
+		int max = sorted.length == 0 ? 0 : Math.max(0, sorted[sorted.length - 1]);
+		this.indexes = new int[max + 1];
+		int n = 0;
+		for (int section : sorted) {
+			if (section > 0 && indexes[section] == 0) {
+				indexes[section] = ++n;
+			}
+		}
+		this.sections = new int[n + 1];
+		for (int section = 1; section <= max; ++section) {
+			if (indexes[section] != 0) {
+				this.sections[indexes[section]] = section;
+			}
+		}
+	}
+
+	/**
+	 * Construct an index over every section from 1 up to a given number.
+	 *
+	 * @param nSections
+	 * @return
+	 */
+	public static SectionIndex range(int nSections) {
+		int[] sections = new int[Math.max(0, nSections)];
+		for (int i = 0; i != sections.length; ++i) {
+			sections[i] = i + 1;
+		}
+		return new SectionIndex(sections);
+	}
+
+	/**
+	 * The number of sections indexed.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return sections.length - 1;
+	}
+
+	/**
+	 * Get the index (from 1 up to size()) of a given section, or -1 if the
+	 * section is not indexed.
+	 *
+	 * @param section
+	 * @return
+	 */
+	public int index(int section) {
+		if (section < 1 || section >= indexes.length || indexes[section] == 0) {
+			return -1;
+		}
+		return indexes[section];
+	}
+
+	/**
+	 * Get the section with a given index.
+	 *
+	 * @param index
+	 *            From 1 up to size().
+	 * @return
+	 */
+	public int section(int index) {
+		return sections[index];
+	}
+}
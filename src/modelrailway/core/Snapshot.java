@@ -0,0 +1,77 @@
+package modelrailway.core;
+
+/**
+ * An immutable snapshot of the trains being managed by a controller, as they
+ * were at some point in time. Snapshots are published by a controller after
+ * each batch of updates, and can be read from any thread without locking.
+ * Every snapshot has a version, which increases with each batch of updates.
+ * 
+ * @author David J. Pearce
+ * 
+ */
+public final class Snapshot {
+	private final long version;
+	private final int[] sections;
+	private final boolean[] orientations;
+	private final Route[] routes;
+
+	/**
+	 * Construct a snapshot. The given arrays are owned by the snapshot from
+	 * this point on, and must not be modified.
+	 * 
+	 * @param version
+	 * @param sections
+	 * @param orientations
+	 * @param routes
+	 */
+	public Snapshot(long version, int[] sections, boolean[] orientations, Route[] routes) {
+		this.version = version;
+		this.sections = sections;
+		this.orientations = orientations;
+		this.routes = routes;
+	}
+
+	/**
+	 * The version increases by at least one with each batch of updates.
+	 */
+	public long version() {
+		return version;
+	}
+
+	/**
+	 * The number of trains in this snapshot.
+	 */
+	public int size() {
+		return sections.length;
+	}
+
+	public int section(int trainID) {
+		return sections[trainID];
+	}
+
+	public boolean orientation(int trainID) {
+		return orientations[trainID];
+	}
+
+	/**
+	 * Get the route a given train was following, or <code>null</code> if it
+	 * was not following one.
+	 * 
+	 * @param trainID
+	 * @return
+	 */
+	public Route route(int trainID) {
+		return routes[trainID];
+	}
+
+	/**
+	 * Get a train record for a given train, as of this snapshot. Changing the
+	 * returned record has no effect on the snapshot or the controller.
+	 * 
+	 * @param trainID
+	 * @return
+	 */
+	public Train train(int trainID) {
+		return new Train(sections[trainID], orientations[trainID]);
+	}
+}
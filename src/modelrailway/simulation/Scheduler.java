@@ -0,0 +1,105 @@
+package modelrailway.simulation;
+
+import java.util.PriorityQueue;
+
+/**
+ * A discrete-event scheduler driven by a virtual clock. Actions are scheduled
+ * to happen at some point in virtual time, and are executed in time order.
+ * Actions scheduled for the same time are executed in the order they were
+ * scheduled, which ensures that a run is completely deterministic. Virtual time
+ * jumps directly from one action to the next, meaning a simulation runs as fast
+ * as the actions themselves can be executed.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Scheduler {
+	/**
+	 * The actions waiting to be executed, ordered by time and then sequence.
+	 */
+	private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+
+	/**
+	 * The current virtual time (in milliseconds).
+	 */
+	private long now;
+
+	/**
+	 * Used to order actions scheduled for the same time.
+	 */
+	private long sequence;
+
+	/**
+	 * Get the current virtual time (in milliseconds).
+	 *
+	 * @return
+	 */
+	public long now() {
+		return now;
+	}
+
+	/**
+	 * Schedule an action to be executed at a given virtual time. Actions
+	 * cannot be scheduled in the past.
+	 *
+	 * @param time
+	 * @param action
+	 */
+	public void at(long time, Runnable action) {
+		if (time < now) {
+			throw new IllegalArgumentException("Cannot schedule action in the past");
+		}
+		queue.add(new Entry(time, sequence++, action));
+	}
+
+	/**
+	 * Schedule an action to be executed a given delay after the current virtual
+	 * time.
+	 *
+	 * @param delay
+	 * @param action
+	 */
+	public void after(long delay, Runnable action) {
+		at(now + delay, action);
+	}
+
+	/**
+	 * Execute all actions scheduled up to (and including) a given virtual time.
+	 * Upon return, the virtual time is the given time.
+	 *
+	 * @param until
+	 * @return The number of actions executed.
+	 */
+	public long run(long until) {
+		long count = 0;
+		while (!queue.isEmpty() && queue.peek().time <= until) {
+			Entry entry = queue.poll();
+			now = entry.time;
+			entry.action.run();
+			count = count + 1;
+		}
+		now = Math.max(now, until);
+		return count;
+	}
+
+	private static final class Entry implements Comparable<Entry> {
+		private final long time;
+		private final long sequence;
+		private final Runnable action;
+
+		public Entry(long time, long sequence, Runnable action) {
+			this.time = time;
+			this.sequence = sequence;
+			this.action = action;
+		}
+
+		@Override
+		public int compareTo(Entry o) {
+			if (time != o.time) {
+				return time < o.time ? -1 : 1;
+			} else {
+				return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+			}
+		}
+	}
+}
@@ -0,0 +1,506 @@
+package modelrailway.simulation;
+
+import java.util.Random;
+
+import modelrailway.core.Controller;
+import modelrailway.core.Event;
+import modelrailway.core.Layout;
+import modelrailway.core.Route;
+import modelrailway.core.Train;
+import modelrailway.util.Headway;
+import modelrailway.util.Metrics;
+import modelrailway.util.SimpleController;
+import modelrailway.util.TimerWheel;
+import modelrailway.util.Watchdog;
+
+/**
+ * A harness for driving a controller against a modelled track, rather than the
+ * real railway. The simulation responds to the events generated by the
+ * controller (e.g. speed and turnout changes) by moving trains around the
+ * track, and generates the section changed events the controller would
+ * otherwise receive from the railway. Time is virtual, meaning many hours of
+ * railway operation can be simulated in a few seconds. All randomness (e.g.
+ * variation in motor speed, sensor delays) comes from a single seed, hence a
+ * run is reproducible from its seed.
+ *
+ * Trains are modelled as having a head and a tail, such that a train moving
+ * between two sections occupies both for a short while. Only forwards running
+ * is modelled, and trains set to run backwards simply stand still.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Simulation implements Event.Listener {
+	/**
+	 * Tolerance used when comparing positions (in millimetres).
+	 */
+	private static final double EPSILON = 1e-6;
+
+	private final Scheduler scheduler = new Scheduler();
+	private final Track track;
+	private final Controller controller;
+	private final Random random;
+
+	/**
+	 * The current state of each turnout (true = thrown).
+	 */
+	private final boolean[] turnouts = new boolean[256];
+
+	/**
+	 * The number of train heads or tails in each section.
+	 */
+	private final int[] occupancy;
+
+	// ===============================================================
+	// Train state (indexed by train)
+	// ===============================================================
+	private final int[] heads;
+	private final double[] headPositions;
+	private final int[] tails;
+	private final double[] tailRemaining;
+	private final float[] speeds;
+	private final boolean[] forwards;
+	private final double[] factors;
+	private final long[] lastUpdates;
+	private final int[] generations;
+
+	// ===============================================================
+	// Parameters
+	// ===============================================================
+	private double maxSpeed = 250; // mm per second at full throttle
+	private double trainLength = 300; // mm
+	private int jitter = 20; // maximum sensor delay in ms
+
+	// ===============================================================
+	// Statistics
+	// ===============================================================
+	private long sensorEvents;
+	private long controllerNanos;
+	private long commands;
+	private long emergencyStops;
+	private long conflicts;
+	private long deadEnds;
+	private double distance;
+
+	/**
+	 * Construct a simulation of a given number of trains on a given track,
+	 * controlled by a given controller.
+	 *
+	 * @param track
+	 * @param controller
+	 * @param nTrains
+	 * @param seed
+	 *            Seed from which all randomness in the run is derived.
+	 */
+	public Simulation(Track track, Controller controller, int nTrains, long seed) {
+		this.track = track;
+		this.controller = controller;
+		this.random = new Random(seed);
+		this.occupancy = new int[track.size() + 1];
+		this.heads = new int[nTrains];
+		this.headPositions = new double[nTrains];
+		this.tails = new int[nTrains];
+		this.tailRemaining = new double[nTrains];
+		this.speeds = new float[nTrains];
+		this.forwards = new boolean[nTrains];
+		this.factors = new double[nTrains];
+		this.lastUpdates = new long[nTrains];
+		this.generations = new int[nTrains];
+		for (int i = 0; i != nTrains; ++i) {
+			heads[i] = -1;
+			tails[i] = -1;
+			forwards[i] = true;
+			// Each locomotive runs slightly faster or slower than nominal.
+			factors[i] = 0.9 + (random.nextDouble() * 0.2);
+		}
+		// The simulation only acts on commands from the controller.
+		controller.register(this, Event.SPEED_CHANGED | Event.DIRECTION_CHANGED | Event.EMERGENCY_STOP
+				| Event.EMERGENCY_STOP_ALL | Event.TURNOUT_CHANGED);
+	}
+
+	public void setMaxSpeed(double maxSpeed) {
+		this.maxSpeed = maxSpeed;
+	}
+
+	public void setTrainLength(double trainLength) {
+		this.trainLength = trainLength;
+	}
+
+	public void setJitter(int jitter) {
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Place a given train at the start of a given section.
+	 *
+	 * @param train
+	 * @param section
+	 */
+	public void place(int train, int section) {
+		if (heads[train] >= 0) {
+			occupancy[heads[train]]--;
+		}
+		heads[train] = section;
+		headPositions[train] = 0;
+		occupancy[section]++;
+	}
+
+	/**
+	 * Get the current virtual time (in milliseconds).
+	 *
+	 * @return
+	 */
+	public long now() {
+		return scheduler.now();
+	}
+
+	/**
+	 * Schedule an action (e.g. starting a train) to be executed at a given
+	 * virtual time.
+	 *
+	 * @param time
+	 * @param action
+	 */
+	public void at(long time, Runnable action) {
+		scheduler.at(time, action);
+	}
+
+	/**
+	 * Schedule an action to be executed repeatedly, at a given interval of
+	 * virtual time.
+	 *
+	 * @param period
+	 * @param action
+	 */
+	public void every(final long period, final Runnable action) {
+		scheduler.after(period, new Runnable() {
+			public void run() {
+				action.run();
+				scheduler.after(period, this);
+			}
+		});
+	}
+
+	/**
+	 * Stall a given train, such that it stops moving regardless of the
+	 * commands it receives (e.g. as though it had derailed).
+	 *
+	 * @param train
+	 */
+	public void stall(int train) {
+		advance(train);
+		factors[train] = 0;
+		reschedule(train);
+	}
+
+	/**
+	 * Run the simulation up to a given virtual time.
+	 *
+	 * @param until
+	 * @return The number of simulated actions executed.
+	 */
+	public long run(long until) {
+		return scheduler.run(until);
+	}
+
+	// ===============================================================
+	// Statistics
+	// ===============================================================
+
+	/**
+	 * The number of section changed events delivered to the controller.
+	 */
+	public long getSensorEvents() {
+		return sensorEvents;
+	}
+
+	/**
+	 * The total (wall clock) time spent inside the controller, in nanoseconds.
+	 */
+	public long getControllerNanos() {
+		return controllerNanos;
+	}
+
+	/**
+	 * The number of events received from the controller.
+	 */
+	public long getCommands() {
+		return commands;
+	}
+
+	public long getEmergencyStops() {
+		return emergencyStops;
+	}
+
+	/**
+	 * The number of times a train entered a section already occupied by
+	 * another train.
+	 */
+	public long getConflicts() {
+		return conflicts;
+	}
+
+	/**
+	 * The number of times a train ran into a dead end.
+	 */
+	public long getDeadEnds() {
+		return deadEnds;
+	}
+
+	/**
+	 * The total distance travelled by all trains, in millimetres.
+	 */
+	public double getDistance() {
+		return distance;
+	}
+
+	// ===============================================================
+	// Controller Events
+	// ===============================================================
+
+	@Override
+	public void notify(Event e) {
+		commands++;
+		if (e instanceof Event.SpeedChanged) {
+			Event.SpeedChanged es = (Event.SpeedChanged) e;
+			int train = es.getLocomotive();
+			if (isTrain(train)) {
+				advance(train);
+				speeds[train] = es.getSpeed();
+				reschedule(train);
+			}
+		} else if (e instanceof Event.DirectionChanged) {
+			Event.DirectionChanged ed = (Event.DirectionChanged) e;
+			int train = ed.getLocomotive();
+			if (isTrain(train)) {
+				advance(train);
+				forwards[train] = ed.getDirection();
+				reschedule(train);
+			}
+		} else if (e instanceof Event.EmergencyStop) {
+			int train = ((Event.EmergencyStop) e).getLocomotive();
+			emergencyStops++;
+			if (isTrain(train)) {
+				advance(train);
+				speeds[train] = 0;
+				reschedule(train);
+			}
+		} else if (e instanceof Event.EmergencyStopAll) {
+			emergencyStops++;
+			for (int train = 0; train != heads.length; ++train) {
+				if (isTrain(train)) {
+					advance(train);
+					speeds[train] = 0;
+					reschedule(train);
+				}
+			}
+		} else if (e instanceof Event.TurnoutChanged) {
+			Event.TurnoutChanged et = (Event.TurnoutChanged) e;
+			if (et.getTurnout() >= 0 && et.getTurnout() < turnouts.length) {
+				turnouts[et.getTurnout()] = et.getThrown();
+			}
+		}
+	}
+
+	// ===============================================================
+	// Train Movement
+	// ===============================================================
+
+	private boolean isTrain(int train) {
+		return train >= 0 && train < heads.length && heads[train] >= 0;
+	}
+
+	/**
+	 * Get the current velocity of a train, in millimetres per millisecond.
+	 */
+	private double velocity(int train) {
+		if (forwards[train]) {
+			return speeds[train] * factors[train] * maxSpeed / 1000.0;
+		} else {
+			return 0;
+		}
+	}
+
+	/**
+	 * Bring a train's position up to the current virtual time.
+	 */
+	private void advance(int train) {
+		long now = scheduler.now();
+		double travelled = velocity(train) * (now - lastUpdates[train]);
+		headPositions[train] += travelled;
+		tailRemaining[train] -= travelled;
+		distance += travelled;
+		lastUpdates[train] = now;
+	}
+
+	/**
+	 * Schedule the next point at which a train's head enters a new section, or
+	 * its tail clears an old one. Any previously scheduled step for the train
+	 * is invalidated.
+	 */
+	private void reschedule(final int train) {
+		final int generation = ++generations[train];
+		double v = velocity(train);
+		if (v > 0) {
+			double remaining = track.length(heads[train]) - headPositions[train];
+			if (tails[train] >= 0) {
+				remaining = Math.min(remaining, tailRemaining[train]);
+			}
+			long delay = (long) Math.ceil(Math.max(0, remaining) / v);
+			scheduler.after(delay, new Runnable() {
+				public void run() {
+					if (generations[train] == generation) {
+						step(train);
+					}
+				}
+			});
+		}
+	}
+
+	private void step(int train) {
+		advance(train);
+		if (tails[train] >= 0 && tailRemaining[train] <= EPSILON) {
+			clearTail(train);
+		}
+		int head = heads[train];
+		if (headPositions[train] >= track.length(head) - EPSILON) {
+			int next = track.next(head, turnouts);
+			if (next < 0) {
+				// Train has run into the buffers.
+				deadEnds++;
+				headPositions[train] = track.length(head);
+				speeds[train] = 0;
+			} else {
+				if (tails[train] >= 0) {
+					// Tail is longer than the section, so just clear it.
+					clearTail(train);
+				}
+				if (occupancy[next] > 0) {
+					conflicts++;
+				}
+				occupancy[next]++;
+				tails[train] = head;
+				tailRemaining[train] = trainLength;
+				heads[train] = next;
+				headPositions[train] = 0;
+				report(next, true);
+			}
+		}
+		reschedule(train);
+	}
+
+	private void clearTail(int train) {
+		int section = tails[train];
+		tails[train] = -1;
+		occupancy[section]--;
+		report(section, false);
+	}
+
+	/**
+	 * Report a change in the occupancy of a given section to the controller, if
+	 * that section has a sensor. Reports are subject to a small random delay.
+	 */
+	private void report(int section, boolean into) {
+		int sensor = track.sensor(section);
+		if (sensor >= 0) {
+			final Event event = new Event.SectionChanged(sensor, into);
+			scheduler.after(jitter > 0 ? random.nextInt(jitter + 1) : 0, new Runnable() {
+				public void run() {
+					long start = System.nanoTime();
+					controller.notify(event);
+					controllerNanos += System.nanoTime() - start;
+					sensorEvents++;
+				}
+			});
+		}
+	}
+
+	// ===============================================================
+	// Main entry point
+	// ===============================================================
+
+	/**
+	 * The number of transitions ahead of each train for which the controller
+	 * sets turnouts.
+	 */
+	private static final int LOOKAHEAD = 2;
+
+	/**
+	 * The interval (in milliseconds) at which the watchdog's timer wheel is
+	 * advanced.
+	 */
+	private static final long WATCHDOG_TICK = 100;
+
+	/**
+	 * Run a soak test of the SimpleController, with a given number of trains
+	 * looping around a simple track for a given number of hours. If "headway"
+	 * is given, then trains are spaced out by adjusting their speed rather
+	 * than running at a fixed speed.
+	 *
+	 * @param args
+	 *            Number of trains, number of hours, seed and (optionally)
+	 *            "headway".
+	 */
+	public static void main(String[] args) {
+		int nTrains = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		long hours = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 0;
+		// Construct a loop with eight sections per train, with trains placed
+		// evenly around it.
+		int nSections = Math.max(8, nTrains * 8);
+		Track track = Track.loop(nSections, 1000);
+		Train[] trains = new Train[nTrains];
+		for (int i = 0; i != nTrains; ++i) {
+			trains[i] = new Train((i * 8) + 1, true);
+		}
+		Layout layout = track.layout();
+		final SimpleController controller = new SimpleController(layout.junctions(), LOOKAHEAD, trains);
+		if (args.length > 3 && args[3].equals("headway")) {
+			// Keep a block clear ahead of each train, and a 12s headway
+			// beyond that. Each block takes 4s at full speed.
+			controller.setHeadway(new Headway(0.75f, 1, 4000, 12000, 0.05f));
+		}
+		final Simulation sim = new Simulation(track, controller, nTrains, seed);
+		// Watch for trains which fail to leave a section in time, driving the
+		// timer wheel with virtual time.
+		final TimerWheel wheel = new TimerWheel(512, WATCHDOG_TICK, 0);
+		controller.setWatchdog(new Watchdog(wheel, layout, sim.maxSpeed, 2, 2000, controller));
+		sim.every(WATCHDOG_TICK, new Runnable() {
+			public void run() {
+				wheel.advance(sim.now());
+			}
+		});
+		for (int i = 0; i != nTrains; ++i) {
+			final int train = i;
+			// Each train loops around every section, starting from its initial
+			// section.
+			final int[] sections = new int[nSections];
+			for (int j = 0; j != sections.length; ++j) {
+				sections[j] = ((j + (i * 8)) % nSections) + 1;
+			}
+			sim.place(i, sections[0]);
+			sim.at(i * 1000, new Runnable() {
+				public void run() {
+					controller.start(train, new Route(true, sections));
+				}
+			});
+		}
+		long start = System.currentTimeMillis();
+		long actions = sim.run(hours * 3600 * 1000);
+		long wall = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println("Simulated " + (hours * nTrains) + " train-hours (" + nTrains + " trains, seed " + seed
+				+ ") in " + wall + "ms");
+		System.out.println("Actions: " + actions + " (" + (actions * 1000 / wall) + "/s)");
+		System.out.println("Sensor events: " + sim.getSensorEvents() + " (" + (sim.getSensorEvents() * 1000 / wall)
+				+ "/s)");
+		if (sim.getSensorEvents() > 0) {
+			System.out.println("Mean controller time: " + (sim.getControllerNanos() / sim.getSensorEvents())
+					+ "ns/event");
+		}
+		System.out.println("Commands: " + sim.getCommands());
+		System.out.println("Emergency stops: " + sim.getEmergencyStops());
+		System.out.println("Conflicts: " + sim.getConflicts());
+		System.out.println("Overdue trains: " + Metrics.INSTANCE.getOverdueTrains());
+		System.out.println("Distance: " + (long) (sim.getDistance() / 1000000) + "km");
+	}
+}
@@ -0,0 +1,304 @@
+package modelrailway.simulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import modelrailway.core.Layout;
+import modelrailway.core.Route;
+import modelrailway.core.Train;
+import modelrailway.util.Headway;
+import modelrailway.util.Metrics;
+import modelrailway.util.SimpleController;
+import modelrailway.util.TimerWheel;
+import modelrailway.util.Watchdog;
+
+/**
+ * Searches for a good timetable for a set of trains on a modelled track. A
+ * timetable assigns each train a route (from a set of candidate routes) and a
+ * time at which to start it. Many candidate timetables are generated at
+ * random, and each is scored by running it in its own headless simulation
+ * with its own controller. Each controller counts into its own metrics, and
+ * reports nothing on the console. Since the simulations share nothing, they
+ * are run in parallel using a fork-join pool, and the best timetable is
+ * returned.
+ *
+ * A timetable is scored by the distance covered by all trains (i.e.
+ * throughput), less a penalty for each conflict (two trains in the same
+ * section) and each emergency stop.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class TimetableSearch {
+	/**
+	 * Penalty (in metres) for each conflict between trains.
+	 */
+	private static final double CONFLICT_PENALTY = 100;
+
+	/**
+	 * Penalty (in metres) for each emergency stop.
+	 */
+	private static final double STOP_PENALTY = 1000;
+
+	/**
+	 * The maximum number of candidates evaluated by a single task, before it
+	 * is split.
+	 */
+	private static final int THRESHOLD = 2;
+
+	private final Track track;
+	private final Route[] routes;
+	private final int nTrains;
+	private final long maxStart;
+	private final long duration;
+	private final boolean headway;
+
+	/**
+	 * Construct a search.
+	 *
+	 * @param track
+	 *            The modelled track.
+	 * @param routes
+	 *            Candidate routes, each starting from a different section.
+	 * @param nTrains
+	 *            Number of trains to timetable.
+	 * @param maxStart
+	 *            Latest time (ms) at which a train can be started.
+	 * @param duration
+	 *            Length (ms) of each simulated run.
+	 * @param headway
+	 *            Whether the controller spaces out trains by adjusting their
+	 *            speed.
+	 */
+	public TimetableSearch(Track track, Route[] routes, int nTrains, long maxStart, long duration, boolean headway) {
+		if (routes.length < nTrains) {
+			throw new IllegalArgumentException("Need at least one route per train");
+		}
+		this.track = track;
+		this.routes = routes;
+		this.nTrains = nTrains;
+		this.maxStart = maxStart;
+		this.duration = duration;
+		this.headway = headway;
+	}
+
+	/**
+	 * Evaluate a given number of random candidate timetables in a given pool,
+	 * returning the best. Candidate i is generated from seed + i, hence the
+	 * result does not depend on the number of threads.
+	 *
+	 * @param pool
+	 * @param nCandidates
+	 * @param seed
+	 * @return
+	 */
+	public Timetable search(ForkJoinPool pool, int nCandidates, long seed) {
+		return pool.invoke(new Search(0, nCandidates, seed));
+	}
+
+	/**
+	 * Generate a random candidate timetable. Each train takes a different
+	 * route, since no two trains can start in the same section.
+	 *
+	 * @param random
+	 * @return
+	 */
+	public Timetable candidate(Random random) {
+		ArrayList<Integer> available = new ArrayList<Integer>();
+		for (int i = 0; i != routes.length; ++i) {
+			available.add(i);
+		}
+		int[] assignment = new int[nTrains];
+		long[] starts = new long[nTrains];
+		for (int i = 0; i != nTrains; ++i) {
+			assignment[i] = available.remove(random.nextInt(available.size()));
+			// Start times are rounded to the nearest second.
+			starts[i] = random.nextInt((int) (maxStart / 1000) + 1) * 1000L;
+		}
+		return new Timetable(assignment, starts);
+	}
+
+	/**
+	 * Score a timetable by running it in a fresh simulation.
+	 *
+	 * @param timetable
+	 * @param seed
+	 *            Seed for the simulation.
+	 */
+	public void evaluate(Timetable timetable, long seed) {
+		Train[] trains = new Train[nTrains];
+		for (int i = 0; i != nTrains; ++i) {
+			trains[i] = new Train(routes[timetable.routes[i]].firstSection(), true);
+		}
+		Layout layout = track.layout();
+		final SimpleController controller = new SimpleController(layout.junctions(), 2, trains);
+		Metrics metrics = new Metrics();
+		controller.setMetrics(metrics);
+		controller.setVerbose(false);
+		if (headway) {
+			controller.setHeadway(new Headway(0.75f, 1, 4000, 12000, 0.05f));
+		}
+		final Simulation sim = new Simulation(track, controller, nTrains, seed);
+		final TimerWheel wheel = new TimerWheel(512, 100, 0);
+		controller.setWatchdog(new Watchdog(wheel, layout, 250, 2, 2000, controller));
+		sim.every(100, new Runnable() {
+			public void run() {
+				wheel.advance(sim.now());
+			}
+		});
+		for (int i = 0; i != nTrains; ++i) {
+			final int train = i;
+			final Route route = routes[timetable.routes[i]];
+			sim.place(i, route.firstSection());
+			sim.at(timetable.starts[i], new Runnable() {
+				public void run() {
+					controller.start(train, route);
+				}
+			});
+		}
+		sim.run(duration);
+		timetable.distance = sim.getDistance() / 1000;
+		timetable.conflicts = sim.getConflicts();
+		timetable.emergencyStops = sim.getEmergencyStops();
+		timetable.overdue = metrics.getOverdueTrains();
+		timetable.score = timetable.distance - (timetable.conflicts * CONFLICT_PENALTY)
+				- (timetable.emergencyStops * STOP_PENALTY);
+	}
+
+	/**
+	 * Evaluates a range of candidates, splitting the range in two if it is
+	 * large enough.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private final class Search extends RecursiveTask<Timetable> {
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+		private final long seed;
+
+		public Search(int from, int to, long seed) {
+			this.from = from;
+			this.to = to;
+			this.seed = seed;
+		}
+
+		@Override
+		protected Timetable compute() {
+			if (to - from <= THRESHOLD) {
+				Timetable best = null;
+				for (int i = from; i < to; ++i) {
+					Timetable candidate = candidate(new Random(seed + i));
+					evaluate(candidate, seed + i);
+					if (best == null || candidate.score > best.score) {
+						best = candidate;
+					}
+				}
+				return best;
+			} else {
+				int middle = (from + to) >>> 1;
+				Search left = new Search(from, middle, seed);
+				left.fork();
+				Timetable right = new Search(middle, to, seed).compute();
+				Timetable best = left.join();
+				// Prefer the earlier candidate on a tie, so that the result is
+				// independent of scheduling.
+				return right != null && (best == null || right.score > best.score) ? right : best;
+			}
+		}
+	}
+
+	/**
+	 * A candidate timetable, along with its score once evaluated.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Timetable {
+		/**
+		 * The index of the route taken by each train.
+		 */
+		private final int[] routes;
+
+		/**
+		 * The time (in milliseconds) at which each train is started.
+		 */
+		private final long[] starts;
+
+		private double score;
+		private double distance;
+		private long conflicts;
+		private long emergencyStops;
+		private long overdue;
+
+		public Timetable(int[] routes, long[] starts) {
+			this.routes = routes;
+			this.starts = starts;
+		}
+
+		public int route(int train) {
+			return routes[train];
+		}
+
+		public long start(int train) {
+			return starts[train];
+		}
+
+		public double score() {
+			return score;
+		}
+
+		public String toString() {
+			return "routes " + Arrays.toString(routes) + ", starts " + Arrays.toString(starts) + " (score "
+					+ (long) score + ", " + (long) distance + "m, " + conflicts + " conflicts, " + emergencyStops
+					+ " emergency stops, " + overdue + " overdue)";
+		}
+	}
+
+	// ===============================================================
+	// Main entry point
+	// ===============================================================
+
+	/**
+	 * Search for a timetable for a given number of trains on a simple loop.
+	 * Candidate routes go once around the loop from each detection section.
+	 *
+	 * @param args
+	 *            Number of trains, number of candidates, hours per run, seed,
+	 *            number of threads and (optionally) "headway".
+	 */
+	public static void main(String[] args) {
+		int nTrains = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int nCandidates = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		long hours = args.length > 2 ? Long.parseLong(args[2]) : 1;
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 0;
+		int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+		boolean headway = args.length > 5 && args[5].equals("headway");
+		int nSections = Math.max(8, nTrains * 8);
+		Track track = Track.loop(nSections, 1000);
+		Route[] routes = new Route[nSections / 2];
+		for (int i = 0; i != routes.length; ++i) {
+			int[] sections = new int[nSections];
+			for (int j = 0; j != nSections; ++j) {
+				sections[j] = (((i * 2) + j) % nSections) + 1;
+			}
+			routes[i] = new Route(true, sections);
+		}
+		// Trains may start at any point in the first ten minutes.
+		TimetableSearch search = new TimetableSearch(track, routes, nTrains, 10 * 60 * 1000, hours * 3600 * 1000,
+				headway);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		long start = System.currentTimeMillis();
+		Timetable best = search.search(pool, nCandidates, seed);
+		long wall = Math.max(1, System.currentTimeMillis() - start);
+		pool.shutdown();
+		System.out.println("Evaluated " + nCandidates + " timetables (" + (nCandidates * hours * nTrains)
+				+ " train-hours) on " + threads + " threads in " + wall + "ms");
+		System.out.println("Best: " + best);
+	}
+}
@@ -0,0 +1,188 @@
+package modelrailway.simulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import modelrailway.core.Junction;
+import modelrailway.core.Layout;
+
+/**
+ * A model of the physical track layout, as used by a simulation. The track is
+ * made up of numbered sections (starting from 1), each of which has a length
+ * and may be fitted with a detection sensor. Sections are linked together in
+ * the direction of travel, and a section may end in a turnout which determines
+ * which of two sections follows it.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Track {
+	/**
+	 * Length of each section (in millimetres).
+	 */
+	private final int[] lengths;
+
+	/**
+	 * The section number reported by the detection sensor for each section, or
+	 * -1 if the section has no sensor.
+	 */
+	private final int[] sensors;
+
+	/**
+	 * The section following each section (when its turnout is closed), or -1
+	 * if the section is a dead end.
+	 */
+	private final int[] next;
+
+	/**
+	 * The turnout at the end of each section, or -1 if there is none.
+	 */
+	private final int[] turnouts;
+
+	/**
+	 * The section following each section when its turnout is thrown.
+	 */
+	private final int[] diverging;
+
+	/**
+	 * Construct a track with a given number of sections, which are initially
+	 * unconnected and have no sensors.
+	 *
+	 * @param nSections
+	 */
+	public Track(int nSections) {
+		this.lengths = new int[nSections + 1];
+		this.sensors = new int[nSections + 1];
+		this.next = new int[nSections + 1];
+		this.turnouts = new int[nSections + 1];
+		this.diverging = new int[nSections + 1];
+		Arrays.fill(sensors, -1);
+		Arrays.fill(next, -1);
+		Arrays.fill(turnouts, -1);
+		Arrays.fill(diverging, -1);
+	}
+
+	/**
+	 * Configure a given section.
+	 *
+	 * @param section
+	 * @param length
+	 *            Length of section in millimetres
+	 * @param sensor
+	 *            Section number reported by its sensor, or -1 if none.
+	 */
+	public void section(int section, int length, int sensor) {
+		lengths[section] = length;
+		sensors[section] = sensor;
+	}
+
+	/**
+	 * Link one section directly into another.
+	 *
+	 * @param from
+	 * @param to
+	 */
+	public void link(int from, int to) {
+		next[from] = to;
+		turnouts[from] = -1;
+	}
+
+	/**
+	 * Link one section into two others via a turnout.
+	 *
+	 * @param from
+	 * @param turnout
+	 * @param closed
+	 *            Section followed when the turnout is closed.
+	 * @param thrown
+	 *            Section followed when the turnout is thrown.
+	 */
+	public void junction(int from, int turnout, int closed, int thrown) {
+		next[from] = closed;
+		turnouts[from] = turnout;
+		diverging[from] = thrown;
+	}
+
+	public int size() {
+		return lengths.length - 1;
+	}
+
+	public int length(int section) {
+		return lengths[section];
+	}
+
+	public int sensor(int section) {
+		return sensors[section];
+	}
+
+	public int turnout(int section) {
+		return turnouts[section];
+	}
+
+	/**
+	 * Get the junctions of this track, as needed by a controller to plan
+	 * routes. This assumes sections are numbered the same way by the
+	 * controller.
+	 *
+	 * @return
+	 */
+	public Junction[] junctions() {
+		ArrayList<Junction> junctions = new ArrayList<Junction>();
+		for (int i = 1; i < turnouts.length; ++i) {
+			if (turnouts[i] >= 0) {
+				junctions.add(new Junction(i, turnouts[i], next[i], diverging[i]));
+			}
+		}
+		return junctions.toArray(new Junction[junctions.size()]);
+	}
+
+	/**
+	 * Get the layout of this track, as needed by a controller. Since
+	 * simulated sensors report sections directly, the layout maps no sensors.
+	 *
+	 * @return
+	 */
+	public Layout layout() {
+		return new Layout(new int[0], lengths.clone(), junctions());
+	}
+
+	/**
+	 * Determine the section following a given section, based on the current
+	 * state of the turnouts.
+	 *
+	 * @param section
+	 * @param thrown
+	 *            The state of each turnout (true = thrown).
+	 * @return The following section, or -1 for a dead end.
+	 */
+	public int next(int section, boolean[] thrown) {
+		int turnout = turnouts[section];
+		if (turnout >= 0 && turnout < thrown.length && thrown[turnout]) {
+			return diverging[section];
+		} else {
+			return next[section];
+		}
+	}
+
+	/**
+	 * Construct a simple loop of sections, where every odd section has a
+	 * detection sensor and every even section does not. Each sensor reports
+	 * its own section number, as the railway does once sensors are mapped by
+	 * the layout.
+	 *
+	 * @param nSections
+	 *            Number of sections (must be even).
+	 * @param length
+	 *            Length of each section in millimetres.
+	 * @return
+	 */
+	public static Track loop(int nSections, int length) {
+		Track track = new Track(nSections);
+		for (int i = 1; i <= nSections; ++i) {
+			int sensor = (i % 2) == 1 ? i : -1;
+			track.section(i, length, sensor);
+			track.link(i, (i % nSections) + 1);
+		}
+		return track;
+	}
+}
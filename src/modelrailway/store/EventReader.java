@@ -0,0 +1,332 @@
+package modelrailway.store;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import modelrailway.core.Event;
+
+/**
+ * Reads events from a file written by EventStore. The file is memory mapped
+ * and blocks are read sequentially, with the index used to skip blocks outside
+ * the time range of interest. Events are passed to a visitor field by field,
+ * rather than being turned back into Event objects, so that scanning millions
+ * of events is cheap.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class EventReader implements Closeable {
+
+	/**
+	 * Receives events as they are read from the store.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface Visitor {
+		/**
+		 * Visit a single event.
+		 *
+		 * @param time
+		 *            Time of the event (in milliseconds)
+		 * @param type
+		 *            Type of event (see EventStore)
+		 * @param key
+		 *            Section, locomotive, turnout or train (where applicable)
+		 * @param flag
+		 *            Into, direction, thrown or power on (where applicable)
+		 * @param value
+		 *            Speed (scaled by SPEED_SCALE), function mask (upper 16
+		 *            bits) and functions (lower 16 bits), pattern, or the
+		 *            section a train was located in (where applicable)
+		 */
+		public void visit(long time, int type, int key, boolean flag, int value);
+	}
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer buffer;
+
+	/**
+	 * Index entries for each block (first time, last time, offset, count).
+	 */
+	private final ArrayList<long[]> index = new ArrayList<long[]>();
+
+	private final Inflater inflater = new Inflater();
+	private byte[] compressed = new byte[0];
+	private byte[] raw = new byte[0];
+
+	public EventReader(File f) throws IOException {
+		this.file = new RandomAccessFile(f, "r");
+		FileChannel channel = file.getChannel();
+		if (channel.size() > Integer.MAX_VALUE) {
+			throw new IOException("Event store too large to map: " + f);
+		}
+		this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		if (buffer.limit() < 8 || buffer.getInt(0) != EventStore.MAGIC) {
+			throw new IOException("Not an event store: " + f);
+		} else if (buffer.getInt(4) < 1 || buffer.getInt(4) > EventStore.VERSION) {
+			throw new IOException("Unsupported event store version: " + buffer.getInt(4));
+		}
+		readIndex();
+	}
+
+	/**
+	 * The number of blocks in the store.
+	 */
+	public int blocks() {
+		return index.size();
+	}
+
+	/**
+	 * The time of the first event in the store, or Long.MAX_VALUE if empty.
+	 */
+	public long firstTime() {
+		return index.isEmpty() ? Long.MAX_VALUE : index.get(0)[0];
+	}
+
+	/**
+	 * The time of the last event in the store, or Long.MIN_VALUE if empty.
+	 */
+	public long lastTime() {
+		return index.isEmpty() ? Long.MIN_VALUE : index.get(index.size() - 1)[1];
+	}
+
+	/**
+	 * Visit all events in the store, in order.
+	 *
+	 * @param visitor
+	 * @throws IOException
+	 */
+	public void scan(Visitor visitor) throws IOException {
+		scan(Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+	}
+
+	/**
+	 * Visit all events within a given time range (inclusive), in order.
+	 *
+	 * @param from
+	 * @param to
+	 * @param visitor
+	 * @throws IOException
+	 */
+	public void scan(long from, long to, Visitor visitor) throws IOException {
+		for (long[] entry : index) {
+			if (entry[1] >= from && entry[0] <= to) {
+				scanBlock((int) entry[2], from, to, visitor);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflater.end();
+		file.close();
+	}
+
+	/**
+	 * Describe an event from its fields, as passed to a visitor.
+	 *
+	 * @param type
+	 * @param key
+	 * @param flag
+	 * @param value
+	 * @return
+	 */
+	public static String describe(int type, int key, boolean flag, int value) {
+		if (type == EventStore.TRAIN_LOCATED) {
+			return "TrainLocated(" + key + ", " + value + ")";
+		}
+		return toEvent(type, key, flag, value).toString();
+	}
+
+	/**
+	 * Reconstruct an event from its fields, as passed to a visitor. A
+	 * TRAIN_LOCATED record is not an event, and so cannot be reconstructed.
+	 *
+	 * @param type
+	 * @param key
+	 * @param flag
+	 * @param value
+	 * @return
+	 */
+	public static Event toEvent(int type, int key, boolean flag, int value) {
+		switch (type) {
+		case EventStore.POWER_CHANGED:
+			return new Event.PowerChanged(flag);
+		case EventStore.SECTION_CHANGED:
+			return new Event.SectionChanged(key, flag);
+		case EventStore.SPEED_CHANGED:
+			return new Event.SpeedChanged(key, value / (float) EventStore.SPEED_SCALE);
+		case EventStore.DIRECTION_CHANGED:
+			return new Event.DirectionChanged(key, flag);
+		case EventStore.FUNCTIONS_CHANGED:
+			return new Event.FunctionsChanged(key, value >>> 16, value & 0xFFFF);
+		case EventStore.EMERGENCY_STOP:
+			return new Event.EmergencyStop(key);
+		case EventStore.TURNOUT_CHANGED:
+			return new Event.TurnoutChanged(key, flag);
+		case EventStore.EMERGENCY_STOP_ALL:
+			return new Event.EmergencyStopAll();
+		case EventStore.PATTERN_MATCHED:
+			return new Event.PatternMatched(value, key);
+		default:
+			throw new IllegalArgumentException("Unknown event type: " + type);
+		}
+	}
+
+	// ===============================================================
+	// Helpers
+	// ===============================================================
+
+	/**
+	 * Read the index from the end of the file. If the index is missing (e.g.
+	 * because the store was not closed properly), then it is reconstructed by
+	 * walking the block headers.
+	 */
+	private void readIndex() {
+		int limit = buffer.limit();
+		if (limit >= 24 && buffer.getInt(limit - 4) == EventStore.INDEX_MAGIC) {
+			int blocks = buffer.getInt(limit - 8);
+			int position = (int) buffer.getLong(limit - 16);
+			for (int i = 0; i != blocks; ++i) {
+				int p = position + (i * 28);
+				index.add(new long[] { buffer.getLong(p), buffer.getLong(p + 8), buffer.getLong(p + 16),
+						buffer.getInt(p + 24) });
+			}
+		} else {
+			int position = 8;
+			while (position + EventStore.BLOCK_HEADER <= limit) {
+				int count = buffer.getInt(position);
+				int length = buffer.getInt(position + 24);
+				if (position + EventStore.BLOCK_HEADER + length > limit) {
+					// Truncated block
+					break;
+				}
+				index.add(new long[] { buffer.getLong(position + 4), buffer.getLong(position + 12), position, count });
+				position += EventStore.BLOCK_HEADER + length;
+			}
+		}
+	}
+
+	private void scanBlock(int position, long from, long to, Visitor visitor) throws IOException {
+		int count = buffer.getInt(position);
+		long time = buffer.getLong(position + 4);
+		int rawLength = buffer.getInt(position + 20);
+		int length = buffer.getInt(position + 24);
+		// Decompress the block
+		if (compressed.length < length) {
+			compressed = new byte[length];
+		}
+		if (raw.length < rawLength) {
+			raw = new byte[rawLength];
+		}
+		buffer.position(position + EventStore.BLOCK_HEADER);
+		buffer.get(compressed, 0, length);
+		inflater.reset();
+		inflater.setInput(compressed, 0, length);
+		try {
+			int n = 0;
+			while (n < rawLength && !inflater.finished()) {
+				n += inflater.inflate(raw, n, rawLength - n);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt block at " + position, e);
+		}
+		// Locate each column
+		Cursor cursor = new Cursor(raw, 0);
+		Cursor times = column(cursor);
+		Cursor types = column(cursor);
+		Cursor keys = column(cursor);
+		Cursor flags = column(cursor);
+		Cursor values = column(cursor);
+		// Visit each event
+		for (int i = 0; i != count; ++i) {
+			time += times.readVarLong();
+			int type = types.read();
+			int key = 0;
+			boolean flag = false;
+			int value = 0;
+			switch (type) {
+			case EventStore.POWER_CHANGED:
+				flag = flags.read() != 0;
+				break;
+			case EventStore.SECTION_CHANGED:
+			case EventStore.DIRECTION_CHANGED:
+			case EventStore.TURNOUT_CHANGED:
+				key = keys.readVarInt();
+				flag = flags.read() != 0;
+				break;
+			case EventStore.SPEED_CHANGED:
+				key = keys.readVarInt();
+				value = values.readVarInt();
+				break;
+			case EventStore.FUNCTIONS_CHANGED:
+				key = keys.readVarInt();
+				value = (values.readVarInt() << 16) | values.readVarInt();
+				break;
+			case EventStore.EMERGENCY_STOP:
+				key = keys.readVarInt();
+				break;
+			case EventStore.EMERGENCY_STOP_ALL:
+				break;
+			case EventStore.TRAIN_LOCATED:
+			case EventStore.PATTERN_MATCHED:
+				key = keys.readVarInt();
+				value = values.readVarInt();
+				break;
+			default:
+				throw new IOException("Unknown event type " + type + " in block at " + position);
+			}
+			if (time > to) {
+				return;
+			} else if (time >= from) {
+				visitor.visit(time, type, key, flag, value);
+			}
+		}
+	}
+
+	private static Cursor column(Cursor cursor) {
+		int length = cursor.readVarInt();
+		Cursor column = new Cursor(cursor.bytes, cursor.position);
+		cursor.position += length;
+		return column;
+	}
+
+	/**
+	 * A position within a column of bytes.
+	 */
+	private static final class Cursor {
+		private final byte[] bytes;
+		private int position;
+
+		public Cursor(byte[] bytes, int position) {
+			this.bytes = bytes;
+			this.position = position;
+		}
+
+		public int read() {
+			return bytes[position++] & 0xFF;
+		}
+
+		public int readVarInt() {
+			return (int) readVarLong();
+		}
+
+		public long readVarLong() {
+			long value = 0;
+			int shift = 0;
+			while (true) {
+				int b = read();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+				shift += 7;
+			}
+		}
+	}
+}
@@ -0,0 +1,544 @@
+package modelrailway.store;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import modelrailway.core.Controller;
+import modelrailway.core.Event;
+import modelrailway.core.Snapshot;
+
+/**
+ * Records events into a compact, columnar file for later analysis. Events are
+ * gathered into blocks, and each block stores its fields column by column:
+ * timestamps (delta encoded), event types, keys (i.e. section, locomotive or
+ * turnout), boolean flags and values (e.g. speed). A column only holds entries
+ * for those events which have the corresponding field. Each block is
+ * compressed separately, and an index of the time range covered by each block
+ * is written at the end of the file to allow time-range scans.
+ *
+ * Events are usually recorded on the threads which deliver them (e.g. the
+ * loconet thread), so these must never wait for compression or the disk.
+ * Instead, each block is handed to a writer thread once full, which
+ * compresses and writes it. Recording never waits for the writer: if it falls
+ * a long way behind (i.e. by more than QUEUE blocks), then further full blocks
+ * are discarded. These events, and those which arrive after the store is
+ * closed or after the writer has failed, are counted rather than thrown back
+ * at the thread delivering them.
+ *
+ * Sensor events do not identify the train which caused them. Therefore, if
+ * the store follows a controller, then each time a train is located in a new
+ * section (according to the controller's snapshots) a TRAIN_LOCATED record is
+ * stored as well. The controller may publish its snapshot after the sensor
+ * event has been stored, so the time a train entered a section is that of the
+ * most recent sensor event into the section, not that of this record.
+ *
+ * <pre>
+ * File   := "MREV" version:int Block* Index
+ * Block  := count:int firstTime:long lastTime:long rawLength:int length:int data:byte[length]
+ * Index  := (firstTime:long lastTime:long offset:long count:int)* offset:long blocks:int "MRIX"
+ * </pre>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class EventStore implements Event.Listener, Closeable {
+	public static final int MAGIC = 0x4D524556; // "MREV"
+	public static final int INDEX_MAGIC = 0x4D524958; // "MRIX"
+	public static final int VERSION = 2;
+
+	/**
+	 * The size (in bytes) of the header of each block.
+	 */
+	public static final int BLOCK_HEADER = 28;
+
+	// Event types as stored in the type column
+	public static final int POWER_CHANGED = 0;
+	public static final int SECTION_CHANGED = 1;
+	public static final int SPEED_CHANGED = 2;
+	public static final int DIRECTION_CHANGED = 3;
+	public static final int FUNCTIONS_CHANGED = 4;
+	public static final int EMERGENCY_STOP = 5;
+	public static final int TURNOUT_CHANGED = 6;
+	public static final int EMERGENCY_STOP_ALL = 7;
+	public static final int TRAIN_LOCATED = 8;
+	public static final int PATTERN_MATCHED = 9;
+
+	/**
+	 * Speeds are stored as an integer in this many parts per unit.
+	 */
+	public static final int SPEED_SCALE = 10000;
+
+	/**
+	 * The most full blocks waiting for the writer thread.
+	 */
+	public static final int QUEUE = 16;
+
+	/**
+	 * The number of events in each block.
+	 */
+	private final int blockSize;
+
+	/**
+	 * Full blocks waiting to be compressed and written, ending with END once
+	 * the store is closed.
+	 */
+	private final ArrayBlockingQueue<Block> queue = new ArrayBlockingQueue<Block>(QUEUE);
+	private final Thread writer;
+
+	// Owned by the writer thread
+	private final DataOutputStream out;
+	private final Deflater deflater = new Deflater();
+	private long offset;
+	private IOException error;
+
+	// Columns of the current block
+	private final Column times = new Column();
+	private final Column types = new Column();
+	private final Column keys = new Column();
+	private final Column flags = new Column();
+	private final Column values = new Column();
+	private int count;
+	private long firstTime;
+	private long lastTime;
+	private boolean closed;
+
+	/**
+	 * The number of events discarded, because the writer was too far behind,
+	 * or they arrived after the store was closed or the writer failed.
+	 */
+	private final AtomicLong discarded = new AtomicLong();
+
+	/**
+	 * The controller being followed (if any), and the section each train was
+	 * last recorded in.
+	 */
+	private Controller controller;
+	private long version = -1;
+	private int[] located = new int[0];
+
+	/**
+	 * The index entries for each block written so far (by the writer thread).
+	 */
+	private final ArrayList<long[]> index = new ArrayList<long[]>();
+
+	public EventStore(File file) throws IOException {
+		this(file, 65536);
+	}
+
+	public EventStore(File file, int blockSize) throws IOException {
+		this.blockSize = blockSize;
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		offset = 8;
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeBlocks();
+			}
+		}, "EventStore");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Record the train located in each section by a given controller, as well
+	 * as the events themselves. This should be called before any events are
+	 * recorded.
+	 *
+	 * @param controller
+	 */
+	public synchronized void follow(Controller controller) {
+		this.controller = controller;
+	}
+
+	/**
+	 * Get the number of events discarded, because the writer was too far
+	 * behind, or they arrived after the store was closed or after writing
+	 * failed.
+	 */
+	public long getDiscarded() {
+		return discarded.get();
+	}
+
+	/**
+	 * Record an event as happening now.
+	 */
+	@Override
+	public void notify(Event e) {
+		append(System.currentTimeMillis(), e);
+	}
+
+	/**
+	 * Record an event as happening at a given time. Times should not go
+	 * backwards.
+	 *
+	 * @param time
+	 * @param e
+	 */
+	public synchronized void append(long time, Event e) {
+		if (closed) {
+			discarded.incrementAndGet();
+			return;
+		}
+		if (e instanceof Event.PowerChanged) {
+			time(time);
+			types.write(POWER_CHANGED);
+			flags.write(((Event.PowerChanged) e).isPowerOn() ? 1 : 0);
+		} else if (e instanceof Event.SectionChanged) {
+			Event.SectionChanged es = (Event.SectionChanged) e;
+			time(time);
+			types.write(SECTION_CHANGED);
+			keys.writeVarInt(es.getSection());
+			flags.write(es.getInto() ? 1 : 0);
+		} else if (e instanceof Event.SpeedChanged) {
+			Event.SpeedChanged es = (Event.SpeedChanged) e;
+			time(time);
+			types.write(SPEED_CHANGED);
+			keys.writeVarInt(es.getLocomotive());
+			values.writeVarInt(Math.round(es.getSpeed() * SPEED_SCALE));
+		} else if (e instanceof Event.DirectionChanged) {
+			Event.DirectionChanged ed = (Event.DirectionChanged) e;
+			time(time);
+			types.write(DIRECTION_CHANGED);
+			keys.writeVarInt(ed.getLocomotive());
+			flags.write(ed.getDirection() ? 1 : 0);
+		} else if (e instanceof Event.FunctionsChanged) {
+			Event.FunctionsChanged ef = (Event.FunctionsChanged) e;
+			time(time);
+			types.write(FUNCTIONS_CHANGED);
+			keys.writeVarInt(ef.getLocomotive());
+			values.writeVarInt(ef.getMask());
+			values.writeVarInt(ef.getFunctions());
+		} else if (e instanceof Event.EmergencyStop) {
+			time(time);
+			types.write(EMERGENCY_STOP);
+			keys.writeVarInt(((Event.EmergencyStop) e).getLocomotive());
+		} else if (e instanceof Event.EmergencyStopAll) {
+			time(time);
+			types.write(EMERGENCY_STOP_ALL);
+		} else if (e instanceof Event.TurnoutChanged) {
+			Event.TurnoutChanged et = (Event.TurnoutChanged) e;
+			time(time);
+			types.write(TURNOUT_CHANGED);
+			keys.writeVarInt(et.getTurnout());
+			flags.write(et.getThrown() ? 1 : 0);
+		} else if (e instanceof Event.PatternMatched) {
+			Event.PatternMatched ep = (Event.PatternMatched) e;
+			time(time);
+			types.write(PATTERN_MATCHED);
+			keys.writeVarInt(ep.key());
+			values.writeVarInt(ep.getPattern());
+		} else {
+			throw new IllegalArgumentException("Unknown event: " + e);
+		}
+		end();
+		if (controller != null) {
+			locate(time);
+		}
+	}
+
+	/**
+	 * Record the trains which the controller has located in new sections
+	 * since the last snapshot seen.
+	 */
+	private void locate(long time) {
+		Snapshot snapshot = controller.snapshot();
+		if (snapshot.version() == version) {
+			return;
+		}
+		version = snapshot.version();
+		if (located.length != snapshot.size()) {
+			located = new int[snapshot.size()];
+		}
+		for (int i = 0; i != located.length; ++i) {
+			int section = snapshot.section(i);
+			if (section != located[i]) {
+				located[i] = section;
+				time(time);
+				types.write(TRAIN_LOCATED);
+				keys.writeVarInt(i);
+				values.writeVarInt(section);
+				end();
+			}
+		}
+	}
+
+	/**
+	 * Write the time of the next event in the current block.
+	 */
+	private void time(long time) {
+		if (count == 0) {
+			firstTime = time;
+			lastTime = time;
+		}
+		times.writeVarLong(Math.max(0, time - lastTime));
+		lastTime = Math.max(time, lastTime);
+	}
+
+	/**
+	 * Complete the next event in the current block, handing the block to the
+	 * writer if it is now full.
+	 */
+	private void end() {
+		if (++count == blockSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Hand the current block (if not empty) to the writer thread. If the
+	 * writer is too far behind, the block is discarded instead.
+	 */
+	public synchronized void flush() {
+		flush(false);
+	}
+
+	/**
+	 * Hand the current block (if not empty) to the writer thread, waiting for
+	 * room if the writer is too far behind or, otherwise, discarding it.
+	 */
+	private void flush(boolean wait) {
+		if (count == 0) {
+			return;
+		}
+		// Concatenate columns, each prefixed with its length. Varint lengths
+		// take at most five bytes each.
+		Column[] columns = { times, types, keys, flags, values };
+		int size = 0;
+		for (Column c : columns) {
+			size += 5 + c.size();
+		}
+		Column raw = new Column(size);
+		for (Column c : columns) {
+			raw.writeVarInt(c.size());
+			raw.write(c.bytes(), c.size());
+		}
+		Block block = new Block(count, firstTime, lastTime, raw.bytes(), raw.size());
+		// Reset
+		count = 0;
+		times.clear();
+		types.clear();
+		keys.clear();
+		flags.clear();
+		values.clear();
+		if (!wait) {
+			if (!queue.offer(block)) {
+				discarded.addAndGet(block.count);
+			}
+			return;
+		}
+		try {
+			queue.put(block);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			discarded.addAndGet(block.count);
+		}
+	}
+
+	/**
+	 * Write out any remaining events, along with the index, and close the
+	 * file. This waits for the writer thread to finish, and reports the first
+	 * error it encountered (if any). Closing a store more than once has no
+	 * effect.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			flush(true);
+			closed = true;
+		}
+		try {
+			queue.put(END);
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted whilst closing event store");
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	// ===============================================================
+	// Writer
+	// ===============================================================
+
+	/**
+	 * The writer thread's main loop. This compresses and writes each block in
+	 * turn, followed by the index once the store is closed. After an error,
+	 * remaining blocks are discarded (so that recording never waits on a
+	 * writer which has failed).
+	 */
+	private void writeBlocks() {
+		byte[] buffer = new byte[0];
+		try {
+			while (true) {
+				Block block = queue.take();
+				if (block == END) {
+					break;
+				} else if (error != null) {
+					discarded.addAndGet(block.count);
+					continue;
+				}
+				try {
+					buffer = write(block, buffer);
+				} catch (IOException e) {
+					error = e;
+					discarded.addAndGet(block.count);
+				}
+			}
+			if (error == null) {
+				writeIndex();
+			}
+		} catch (IOException e) {
+			error = e;
+		} catch (InterruptedException e) {
+			error = new InterruptedIOException("Event store writer interrupted");
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				if (error == null) {
+					error = e;
+				}
+			}
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Compress and write a block, using a given buffer (or a larger one if
+	 * needed), which is returned for reuse.
+	 */
+	private byte[] write(Block block, byte[] buffer) throws IOException {
+		deflater.reset();
+		deflater.setInput(block.raw, 0, block.length);
+		deflater.finish();
+		if (buffer.length < block.length + 64) {
+			buffer = new byte[block.length + 64];
+		}
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			length += deflater.deflate(buffer, length, buffer.length - length);
+		}
+		index.add(new long[] { block.firstTime, block.lastTime, offset, block.count });
+		out.writeInt(block.count);
+		out.writeLong(block.firstTime);
+		out.writeLong(block.lastTime);
+		out.writeInt(block.length);
+		out.writeInt(length);
+		out.write(buffer, 0, length);
+		offset += BLOCK_HEADER + length;
+		return buffer;
+	}
+
+	private void writeIndex() throws IOException {
+		for (long[] entry : index) {
+			out.writeLong(entry[0]);
+			out.writeLong(entry[1]);
+			out.writeLong(entry[2]);
+			out.writeInt((int) entry[3]);
+		}
+		out.writeLong(offset);
+		out.writeInt(index.size());
+		out.writeInt(INDEX_MAGIC);
+	}
+
+	/**
+	 * Marks the end of the blocks handed to the writer.
+	 */
+	private static final Block END = new Block(0, 0, 0, null, 0);
+
+	/**
+	 * A full block, with its columns concatenated but not yet compressed.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Block {
+		private final int count;
+		private final long firstTime;
+		private final long lastTime;
+		private final byte[] raw;
+		private final int length;
+
+		public Block(int count, long firstTime, long lastTime, byte[] raw, int length) {
+			this.count = count;
+			this.firstTime = firstTime;
+			this.lastTime = lastTime;
+			this.raw = raw;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * A growable column of bytes.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Column {
+		private byte[] bytes;
+		private int size;
+
+		public Column() {
+			this(1024);
+		}
+
+		public Column(int capacity) {
+			bytes = new byte[capacity];
+		}
+
+		public void write(int b) {
+			if (size == bytes.length) {
+				byte[] tmp = new byte[bytes.length * 2];
+				System.arraycopy(bytes, 0, tmp, 0, size);
+				bytes = tmp;
+			}
+			bytes[size++] = (byte) b;
+		}
+
+		public void write(byte[] data, int length) {
+			if (size + length > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+			}
+			System.arraycopy(data, 0, bytes, size, length);
+			size += length;
+		}
+
+		public void writeVarInt(int value) {
+			writeVarLong(value & 0xFFFFFFFFL);
+		}
+
+		public void writeVarLong(long value) {
+			while ((value & ~0x7FL) != 0) {
+				write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+
+		public byte[] bytes() {
+			return bytes;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public void clear() {
+			size = 0;
+		}
+	}
+}
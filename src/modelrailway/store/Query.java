@@ -0,0 +1,189 @@
+package modelrailway.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A simple command-line tool for answering questions about events recorded by
+ * an EventStore. The following queries are supported:
+ *
+ * <ul>
+ * <li><b>dwell [from to]</b>: how long trains spend in each section.</li>
+ * <li><b>laps [from to]</b>: the lap time of each train, i.e. the time between
+ * successive entries of the train into the first section it was located in.
+ * This requires the store to have followed the controller.</li>
+ * <li><b>estop [window]</b>: the events leading up to each emergency stop
+ * (default window is 5000ms).</li>
+ * <li><b>dump [from to]</b>: all events in a given time range.</li>
+ * </ul>
+ *
+ * Times are given in milliseconds since the epoch.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Query {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("usage: Query <file> (dwell|laps|estop|dump) [args]");
+			System.exit(1);
+		}
+		EventReader reader = new EventReader(new File(args[0]));
+		try {
+			String query = args[1];
+			if (query.equals("dwell")) {
+				dwell(reader, from(args), to(args));
+			} else if (query.equals("laps")) {
+				laps(reader, from(args), to(args));
+			} else if (query.equals("estop")) {
+				estop(reader, args.length > 2 ? Long.parseLong(args[2]) : 5000);
+			} else if (query.equals("dump")) {
+				dump(reader, from(args), to(args));
+			} else {
+				System.out.println("Unknown query: " + query);
+				System.exit(1);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Report the time spent in each section, measured from a train moving into
+	 * the section until it moves out.
+	 */
+	private static void dwell(EventReader reader, long from, long to) throws IOException {
+		final Map<Integer, Long> entered = new TreeMap<Integer, Long>();
+		final Map<Integer, Statistics> stats = new TreeMap<Integer, Statistics>();
+		reader.scan(from, to, new EventReader.Visitor() {
+			public void visit(long time, int type, int section, boolean into, int value) {
+				if (type == EventStore.SECTION_CHANGED) {
+					if (into) {
+						entered.put(section, time);
+					} else {
+						Long start = entered.remove(section);
+						if (start != null) {
+							statistics(stats, section).add(time - start);
+						}
+					}
+				}
+			}
+		});
+		print("Section", "Dwell time", stats);
+	}
+
+	/**
+	 * Report the lap time of each train. A TRAIN_LOCATED record may be stored
+	 * some time after the sensor event which located the train, so the train
+	 * is taken to have entered the section at the most recent sensor event
+	 * into it.
+	 */
+	private static void laps(EventReader reader, long from, long to) throws IOException {
+		final Map<Integer, Long> entered = new HashMap<Integer, Long>();
+		final Map<Integer, Integer> start = new HashMap<Integer, Integer>();
+		final Map<Integer, Long> last = new HashMap<Integer, Long>();
+		final Map<Integer, Statistics> stats = new TreeMap<Integer, Statistics>();
+		reader.scan(from, to, new EventReader.Visitor() {
+			public void visit(long time, int type, int key, boolean into, int value) {
+				if (type == EventStore.SECTION_CHANGED && into) {
+					entered.put(key, time);
+				} else if (type == EventStore.TRAIN_LOCATED) {
+					Long when = entered.get(value);
+					if (when == null) {
+						// Located without passing a sensor (e.g. by the
+						// user), so the time is not known.
+						return;
+					}
+					Integer section = start.get(key);
+					if (section == null) {
+						start.put(key, value);
+						last.put(key, when);
+					} else if (section == value) {
+						statistics(stats, key).add(when - last.put(key, when));
+					}
+				}
+			}
+		});
+		print("Train", "Lap time", stats);
+	}
+
+	/**
+	 * Print the events leading up to each emergency stop.
+	 */
+	private static void estop(EventReader reader, final long window) throws IOException {
+		final ArrayDeque<long[]> recent = new ArrayDeque<long[]>();
+		reader.scan(new EventReader.Visitor() {
+			public void visit(long time, int type, int key, boolean flag, int value) {
+				while (!recent.isEmpty() && recent.peekFirst()[0] < time - window) {
+					recent.removeFirst();
+				}
+				if (type == EventStore.EMERGENCY_STOP || type == EventStore.EMERGENCY_STOP_ALL) {
+					String who = type == EventStore.EMERGENCY_STOP ? "locomotive " + key : "all locomotives";
+					System.out.println("Emergency stop of " + who + " at " + time + ":");
+					for (long[] e : recent) {
+						System.out.println("\t-" + (time - e[0]) + "ms: "
+								+ EventReader.describe((int) e[1], (int) e[2], e[3] != 0, (int) e[4]));
+					}
+				}
+				recent.addLast(new long[] { time, type, key, flag ? 1 : 0, value });
+			}
+		});
+	}
+
+	private static void dump(EventReader reader, long from, long to) throws IOException {
+		reader.scan(from, to, new EventReader.Visitor() {
+			public void visit(long time, int type, int key, boolean flag, int value) {
+				System.out.println(time + ": " + EventReader.describe(type, key, flag, value));
+			}
+		});
+	}
+
+	// ===============================================================
+	// Helpers
+	// ===============================================================
+
+	private static long from(String[] args) {
+		return args.length > 3 ? Long.parseLong(args[2]) : Long.MIN_VALUE;
+	}
+
+	private static long to(String[] args) {
+		return args.length > 3 ? Long.parseLong(args[3]) : Long.MAX_VALUE;
+	}
+
+	private static Statistics statistics(Map<Integer, Statistics> stats, int key) {
+		Statistics s = stats.get(key);
+		if (s == null) {
+			s = new Statistics();
+			stats.put(key, s);
+		}
+		return s;
+	}
+
+	private static void print(String key, String title, Map<Integer, Statistics> stats) {
+		System.out.println(key + "\tCount\tMean\tMin\tMax (" + title + ", ms)");
+		for (Map.Entry<Integer, Statistics> e : stats.entrySet()) {
+			Statistics s = e.getValue();
+			System.out.println(e.getKey() + "\t" + s.count + "\t" + (s.total / s.count) + "\t" + s.min + "\t"
+					+ s.max);
+		}
+	}
+
+	private static final class Statistics {
+		private long count;
+		private long total;
+		private long min = Long.MAX_VALUE;
+		private long max = Long.MIN_VALUE;
+
+		public void add(long value) {
+			count++;
+			total += value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package modelrailway.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import modelrailway.core.*;
+import modelrailway.core.Event.Listener;
+
+/**
+ * A controller which confines another controller to a single thread. Every
+ * operation on the controller (e.g. events from the railway, or commands from
+ * the user) is turned into a command and placed in a mailbox. A single owner
+ * thread takes commands from the mailbox and applies them to the underlying
+ * controller, meaning the underlying controller is never contended and need
+ * not take a lock of its own (as SimpleController does not). After each batch
+ * of commands, the owner thread republishes the underlying controller's
+ * snapshot, so readers only ever see the state between batches.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ActorController implements Controller {
+	/**
+	 * The controller being confined to the owner thread.
+	 */
+	private final Controller controller;
+
+	/**
+	 * The mailbox of commands waiting to be processed.
+	 */
+	private final LinkedBlockingQueue<Runnable> mailbox = new LinkedBlockingQueue<Runnable>();
+
+	/**
+	 * The single thread which applies commands to the controller.
+	 */
+	private final Thread owner;
+
+	/**
+	 * The most recently published snapshot.
+	 */
+	private volatile Snapshot snapshot;
+
+	public ActorController(Controller controller) {
+		this.controller = controller;
+		this.snapshot = controller.snapshot();
+		this.owner = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				processMailbox();
+			}
+		}, "Controller");
+		this.owner.setDaemon(true);
+		this.owner.start();
+	}
+
+	@Override
+	public void register(final Listener listener) {
+		post(new Runnable() {
+			public void run() {
+				controller.register(listener);
+			}
+		});
+	}
+
+	@Override
+	public void register(final Listener listener, final int types, final int... keys) {
+		post(new Runnable() {
+			public void run() {
+				controller.register(listener, types, keys);
+			}
+		});
+	}
+
+	@Override
+	public void notify(final Event e) {
+		post(new Runnable() {
+			public void run() {
+				controller.notify(e);
+			}
+		});
+	}
+
+	@Override
+	public boolean start(final int trainID, final Route route) {
+		return call(new Callable<Boolean>() {
+			public Boolean call() {
+				return controller.start(trainID, route);
+			}
+		});
+	}
+
+	@Override
+	public void stop(final int trainID) {
+		post(new Runnable() {
+			public void run() {
+				controller.stop(trainID);
+			}
+		});
+	}
+
+	@Override
+	public void locate(final int trainID, final int section) {
+		post(new Runnable() {
+			public void run() {
+				controller.locate(trainID, section);
+			}
+		});
+	}
+
+	@Override
+	public void set(final int turnoutID, final boolean thrown) {
+		post(new Runnable() {
+			public void run() {
+				controller.set(turnoutID, thrown);
+			}
+		});
+	}
+
+	/**
+	 * Get a copy of the train record for a given train, as of the most recent
+	 * snapshot. Changing the returned record has no effect on the controller.
+	 */
+	@Override
+	public Train train(int trainID) {
+		return snapshot.train(trainID);
+	}
+
+	/**
+	 * Get the snapshot published after the most recent batch of commands.
+	 */
+	@Override
+	public Snapshot snapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Confine a watchdog handler to the owner thread. The returned handler
+	 * posts each overdue train to the mailbox as a command, rather than
+	 * calling the given handler from the thread advancing the watchdog's
+	 * timer.
+	 *
+	 * @param handler
+	 *            Typically, the underlying controller.
+	 * @return
+	 */
+	public Watchdog.Handler confine(final Watchdog.Handler handler) {
+		return new Watchdog.Handler() {
+			@Override
+			public void overdue(final int train, final int section) {
+				post(new Runnable() {
+					public void run() {
+						handler.overdue(train, section);
+					}
+				});
+			}
+		};
+	}
+
+	/**
+	 * Get the number of commands waiting in the mailbox.
+	 *
+	 * @return
+	 */
+	public int pending() {
+		return mailbox.size();
+	}
+
+	// ===============================================================
+	// Mailbox
+	// ===============================================================
+
+	private void post(Runnable command) {
+		if (Thread.currentThread() == owner) {
+			// This happens when a listener of the controller calls back into
+			// it. Since we already own the controller, just apply the command.
+			command.run();
+		} else {
+			mailbox.add(command);
+		}
+	}
+
+	private <T> T call(Callable<T> command) {
+		FutureTask<T> task = new FutureTask<T>(command);
+		post(task);
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			// Commands are only Runnables and Callables over the controller,
+			// so anything else should not happen, but is wrapped regardless.
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			} else {
+				throw new RuntimeException(cause);
+			}
+		}
+	}
+
+	/**
+	 * The owner thread's main loop. This repeatedly takes all commands
+	 * currently in the mailbox, applies them and then publishes a snapshot.
+	 */
+	private void processMailbox() {
+		while (true) {
+			try {
+				Runnable command = mailbox.take();
+				while (command != null) {
+					try {
+						command.run();
+					} catch (Throwable e) {
+						// A failing command must never take the owner thread
+						// down, since nothing would then drain the mailbox.
+						e.printStackTrace();
+					}
+					command = mailbox.poll();
+				}
+				snapshot = controller.snapshot();
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+}
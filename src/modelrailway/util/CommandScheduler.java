@@ -0,0 +1,284 @@
+package modelrailway.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import modelrailway.core.Event;
+
+/**
+ * Schedules commands (e.g. speed changes, turnout changes, etc) being sent to
+ * the railway. Commands are divided into priority classes: emergency stops are
+ * always sent first, followed by throttle commands (speed and direction) and,
+ * finally, turnout commands. Routine commands (i.e. throttle and turnout) are
+ * limited by a token bucket, so that they never consume more than a given
+ * share of the loconet bandwidth. Emergency stops are never held back by the
+ * token bucket, and therefore never wait behind routine traffic. They do
+ * consume tokens, but never take the bucket below empty, so a flood of
+ * emergency stops cannot hold back routine commands afterwards. Messages sent
+ * to the railway by other means (e.g. probes of the bus) can also be counted
+ * against the budget.
+ *
+ * Pending routine commands are coalesced, such that only the most recent speed
+ * (or direction) for each locomotive, and the most recent setting for each
+ * turnout, is sent. An emergency stop discards any pending speed change for
+ * the locomotive concerned, so that it cannot restart the locomotive.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CommandScheduler implements Event.Listener {
+	// Priority classes
+	public static final int EMERGENCY = 0;
+	public static final int THROTTLE = 1;
+	public static final int TURNOUT = 2;
+
+	/**
+	 * The names of each priority class.
+	 */
+	public static final String[] CLASSES = { "Emergency", "Throttle", "Turnout" };
+
+	/**
+	 * Where commands are sent when they are scheduled.
+	 */
+	private final Event.Listener output;
+
+	/**
+	 * The number of routine commands permitted per nanosecond.
+	 */
+	private final double rate;
+
+	/**
+	 * The maximum number of routine commands that can be sent back-to-back.
+	 */
+	private final double burst;
+
+	/**
+	 * The number of routine commands which can be sent right now.
+	 */
+	private double tokens;
+
+	/**
+	 * The time at which the tokens were last refilled (in nanoseconds).
+	 */
+	private long refilled;
+
+	/**
+	 * Whether the sender has taken a command which has not yet reached the
+	 * output.
+	 */
+	private boolean sending;
+
+	private final ArrayDeque<Pending> emergencies = new ArrayDeque<Pending>();
+	private final LinkedHashMap<Integer, Pending> throttles = new LinkedHashMap<Integer, Pending>();
+	private final LinkedHashMap<Integer, Pending> turnouts = new LinkedHashMap<Integer, Pending>();
+
+	/**
+	 * Construct a scheduler sending commands to a given output.
+	 *
+	 * @param output
+	 * @param rate
+	 *            The number of routine commands permitted per second.
+	 * @param burst
+	 *            The maximum number of routine commands that can be sent
+	 *            back-to-back.
+	 */
+	public CommandScheduler(Event.Listener output, double rate, int burst) {
+		this.output = output;
+		this.rate = rate / 1e9;
+		this.burst = burst;
+		this.tokens = burst;
+		this.refilled = System.nanoTime();
+		Thread sender = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				send();
+			}
+		}, "Commands");
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	/**
+	 * Schedule a command to be sent. Events which are not commands are
+	 * ignored.
+	 */
+	@Override
+	public synchronized void notify(Event e) {
+		Pending command = new Pending(e);
+		if (e instanceof Event.EmergencyStop) {
+			throttles.remove(key(((Event.EmergencyStop) e).getLocomotive(), false));
+			emergencies.add(command);
+		} else if (e instanceof Event.EmergencyStopAll) {
+			// Discard all pending speed changes, since every locomotive is
+			// being stopped.
+			Iterator<Integer> keys = throttles.keySet().iterator();
+			while (keys.hasNext()) {
+				if ((keys.next() & 1) == 0) {
+					keys.remove();
+				}
+			}
+			emergencies.add(command);
+		} else if (e instanceof Event.SpeedChanged) {
+			queue(throttles, key(((Event.SpeedChanged) e).getLocomotive(), false), command);
+		} else if (e instanceof Event.DirectionChanged) {
+			queue(throttles, key(((Event.DirectionChanged) e).getLocomotive(), true), command);
+		} else if (e instanceof Event.TurnoutChanged) {
+			queue(turnouts, ((Event.TurnoutChanged) e).getTurnout(), command);
+		} else {
+			return;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Account for a message sent to the railway other than through this
+	 * scheduler (e.g. a probe of the bus), so that it counts against the
+	 * budget for routine commands. Such messages are not held back, so may
+	 * leave the bucket in debt; they should therefore be occasional.
+	 */
+	public synchronized void account() {
+		refill();
+		tokens -= 1;
+	}
+
+	/**
+	 * Get the number of commands waiting to be sent.
+	 *
+	 * @return
+	 */
+	public synchronized int pending() {
+		return emergencies.size() + throttles.size() + turnouts.size();
+	}
+
+	/**
+	 * Wait until every pending command (including any being sent right now)
+	 * has reached the output, or a given time has passed.
+	 *
+	 * @param timeout
+	 *            The longest time to wait (in milliseconds).
+	 * @return True if no commands remain.
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean drain(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (sending || pending() > 0) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	// ===============================================================
+	// Helpers
+	// ===============================================================
+
+	private static int key(int locomotive, boolean direction) {
+		return (locomotive << 1) | (direction ? 1 : 0);
+	}
+
+	/**
+	 * Queue a routine command, replacing any pending command with the same key.
+	 * The replacement moves to the back of the queue, so that it is never
+	 * sent before commands submitted ahead of it (e.g. a speed change before
+	 * the direction change preceding it), but keeps the original's submission
+	 * time.
+	 */
+	private static void queue(LinkedHashMap<Integer, Pending> queue, int key, Pending command) {
+		Pending old = queue.remove(key);
+		if (old != null) {
+			old.event = command.event;
+			queue.put(key, old);
+		} else {
+			queue.put(key, command);
+		}
+	}
+
+	/**
+	 * The sender's main loop. This repeatedly picks the next command to send,
+	 * waiting if necessary for the token bucket to refill.
+	 */
+	private void send() {
+		while (true) {
+			Pending next;
+			int priority;
+			synchronized (this) {
+				try {
+					while (true) {
+						refill();
+						if (!emergencies.isEmpty()) {
+							next = emergencies.poll();
+							priority = EMERGENCY;
+							// Emergency stops still consume bandwidth, but are
+							// never held back (and never leave the bucket in
+							// debt).
+							tokens = Math.max(0, tokens - 1);
+							break;
+						} else if (throttles.isEmpty() && turnouts.isEmpty()) {
+							wait();
+						} else if (tokens >= 1) {
+							if (!throttles.isEmpty()) {
+								next = poll(throttles);
+								priority = THROTTLE;
+							} else {
+								next = poll(turnouts);
+								priority = TURNOUT;
+							}
+							tokens -= 1;
+							break;
+						} else {
+							// Wait for enough tokens to accumulate, or for an
+							// emergency stop to arrive.
+							long nanos = (long) Math.ceil((1 - tokens) / rate);
+							wait(Math.max(1, nanos / 1000000), 0);
+						}
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				sending = true;
+			}
+			try {
+				output.notify(next.event);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			} finally {
+				synchronized (this) {
+					sending = false;
+					// Wake anyone draining the scheduler.
+					notifyAll();
+				}
+			}
+			Metrics.INSTANCE.commandSent(priority, System.nanoTime() - next.submitted);
+		}
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + ((now - refilled) * rate));
+		refilled = now;
+	}
+
+	private static Pending poll(LinkedHashMap<Integer, Pending> queue) {
+		Iterator<Pending> i = queue.values().iterator();
+		Pending p = i.next();
+		i.remove();
+		return p;
+	}
+
+	/**
+	 * A command waiting to be sent.
+	 */
+	private static final class Pending {
+		private Event event;
+		private final long submitted;
+
+		public Pending(Event event) {
+			this.event = event;
+			this.submitted = System.nanoTime();
+		}
+	}
+}
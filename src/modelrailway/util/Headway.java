@@ -0,0 +1,98 @@
+package modelrailway.util;
+
+/**
+ * A policy for choosing a train's speed based on the gap to the train ahead of
+ * it along its route. The gap is measured in blocks (i.e. sections), and a
+ * minimum number of blocks is always kept clear so that no two trains ever
+ * share a block. Beyond this, a train is allowed to travel only as fast as
+ * would let it cover the remaining clear blocks in no less than a given
+ * headway time. The time to cover a block is estimated from the nominal time
+ * a block takes at full speed.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Headway {
+	/**
+	 * The speed at which trains run when the line ahead is clear.
+	 */
+	private final float cruise;
+
+	/**
+	 * The number of blocks which must be kept clear ahead of every train.
+	 */
+	private final int minGap;
+
+	/**
+	 * The nominal time (in milliseconds) to travel one block at full speed.
+	 */
+	private final double blockTime;
+
+	/**
+	 * The time (in milliseconds) which should separate a train from the block
+	 * it must not enter.
+	 */
+	private final double headway;
+
+	/**
+	 * The smallest change in speed worth sending to the railway.
+	 */
+	private final float threshold;
+
+	/**
+	 * Construct a headway policy.
+	 *
+	 * @param cruise
+	 *            Speed when the line ahead is clear.
+	 * @param minGap
+	 *            Number of blocks always kept clear ahead of a train.
+	 * @param blockTime
+	 *            Nominal time (ms) to travel one block at full speed.
+	 * @param headway
+	 *            Target time (ms) between a train and the first block it must
+	 *            not enter.
+	 * @param threshold
+	 *            Smallest change in speed worth sending.
+	 */
+	public Headway(float cruise, int minGap, double blockTime, double headway, float threshold) {
+		this.cruise = cruise;
+		this.minGap = minGap;
+		this.blockTime = blockTime;
+		this.headway = headway;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Determine the speed for a train, given the number of blocks from it to
+	 * the next train ahead (where 1 means the train ahead is in the very next
+	 * block).
+	 *
+	 * @param gap
+	 * @return
+	 */
+	public float speed(int gap) {
+		if (gap <= minGap) {
+			return 0;
+		}
+		// Time to clear the free blocks at speed v is free * blockTime / v,
+		// which must not be less than the headway.
+		double free = gap - minGap;
+		return (float) Math.min(cruise, (free * blockTime) / headway);
+	}
+
+	/**
+	 * Determine whether a new speed differs enough from the current speed to
+	 * be worth sending. Stopping and starting are always worth sending.
+	 *
+	 * @param current
+	 * @param target
+	 * @return
+	 */
+	public boolean changed(float current, float target) {
+		if (target == 0 || current == 0) {
+			return target != current;
+		} else {
+			return Math.abs(target - current) >= threshold;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package modelrailway.util;
+
+import modelrailway.core.*;
+import modelrailway.core.Event.Listener;
+
+/**
+ * A controller which lets several threads share another controller by taking
+ * a lock around every operation on it (e.g. events from the railway, commands
+ * from the user, or overdue trains reported by a watchdog). The underlying
+ * controller therefore need not be thread-safe. Snapshots and listener
+ * registrations are passed straight through, since they are expected to be
+ * thread-safe already (as in SimpleController). Where the controller can be
+ * confined to a single thread instead, an ActorController avoids the lock.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class LockedController implements Controller, Watchdog.Handler {
+	/**
+	 * The controller being shared.
+	 */
+	private final Controller controller;
+
+	public LockedController(Controller controller) {
+		this.controller = controller;
+	}
+
+	@Override
+	public void register(Listener listener) {
+		controller.register(listener);
+	}
+
+	@Override
+	public void register(Listener listener, int types, int... keys) {
+		controller.register(listener, types, keys);
+	}
+
+	@Override
+	public synchronized void notify(Event e) {
+		controller.notify(e);
+	}
+
+	@Override
+	public synchronized boolean start(int trainID, Route route) {
+		return controller.start(trainID, route);
+	}
+
+	@Override
+	public synchronized void stop(int trainID) {
+		controller.stop(trainID);
+	}
+
+	@Override
+	public synchronized void locate(int trainID, int section) {
+		controller.locate(trainID, section);
+	}
+
+	@Override
+	public synchronized void set(int turnoutID, boolean thrown) {
+		controller.set(turnoutID, thrown);
+	}
+
+	/**
+	 * Report an overdue train to the controller, if it handles them.
+	 */
+	@Override
+	public synchronized void overdue(int trainID, int section) {
+		if (controller instanceof Watchdog.Handler) {
+			((Watchdog.Handler) controller).overdue(trainID, section);
+		}
+	}
+
+	@Override
+	public Train train(int trainID) {
+		return controller.train(trainID);
+	}
+
+	@Override
+	public Snapshot snapshot() {
+		return controller.snapshot();
+	}
+}
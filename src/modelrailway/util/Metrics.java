@@ -0,0 +1,355 @@
+package modelrailway.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import modelrailway.core.Event;
+
+/**
+ * Records metrics about the running railway, and publishes them over JMX.
+ * Recording a metric is lock-free, and so can be done safely from the loconet
+ * and controller threads without affecting them.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Metrics implements MetricsMBean {
+	/**
+	 * The name under which metrics are published over JMX.
+	 */
+	public static final String NAME = "modelrailway:type=Metrics";
+
+	/**
+	 * The event types being counted, in the order of their type bits.
+	 */
+	private static final Class<?>[] EVENT_TYPES = {
+		Event.PowerChanged.class,
+		Event.SectionChanged.class,
+		Event.SpeedChanged.class,
+		Event.DirectionChanged.class,
+		Event.FunctionsChanged.class,
+		Event.EmergencyStop.class,
+		Event.EmergencyStopAll.class,
+		Event.TurnoutChanged.class,
+		Event.PatternMatched.class
+	};
+
+	/**
+	 * The single set of metrics for the running railway.
+	 */
+	public static final Metrics INSTANCE = new Metrics();
+
+	/**
+	 * A gauge provides the current value of some quantity, such as the depth of
+	 * a queue.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface Gauge {
+		public long value();
+	}
+
+	private final AtomicLongArray messagesByOpcode = new AtomicLongArray(256);
+	private final Meter messages = new Meter();
+	private final AtomicLongArray eventsByType = new AtomicLongArray(EVENT_TYPES.length);
+	private final Meter events = new Meter();
+	private final Meter recognitionFailures = new Meter();
+	private final Meter overdueTrains = new Meter();
+	private final Meter emergencyStops = new Meter();
+	private final Meter throttleCommands = new Meter();
+	private final Meter turnoutCommands = new Meter();
+	private final AtomicLongArray commandCounts = new AtomicLongArray(CommandScheduler.CLASSES.length);
+	private final AtomicLongArray commandLatencies = new AtomicLongArray(CommandScheduler.CLASSES.length);
+	private final AtomicLongArray commandMaxLatencies = new AtomicLongArray(CommandScheduler.CLASSES.length);
+	private final Map<String, Gauge> queues = new ConcurrentSkipListMap<String, Gauge>();
+
+	/**
+	 * Publish the metrics over JMX, using the platform MBean server.
+	 */
+	public static void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(NAME));
+		} catch (JMException e) {
+			throw new RuntimeException("Unable to register metrics", e);
+		}
+	}
+
+	/**
+	 * Clear all counts, rates and latencies (e.g. after a warm-up, so that
+	 * synthetic traffic is not reported). Gauges are unaffected.
+	 */
+	public void reset() {
+		for (Meter meter : new Meter[] { messages, events, recognitionFailures, overdueTrains, emergencyStops,
+				throttleCommands, turnoutCommands }) {
+			meter.reset();
+		}
+		for (AtomicLongArray counters : new AtomicLongArray[] { messagesByOpcode, eventsByType, commandCounts,
+				commandLatencies, commandMaxLatencies }) {
+			for (int i = 0; i != counters.length(); ++i) {
+				counters.set(i, 0);
+			}
+		}
+	}
+
+	// ===============================================================
+	// Recording
+	// ===============================================================
+
+	public void messageDecoded(int opcode) {
+		messagesByOpcode.incrementAndGet(opcode & 0xFF);
+		messages.mark();
+	}
+
+	public void eventDispatched(Event e) {
+		eventsByType.incrementAndGet(Integer.numberOfTrailingZeros(e.type()));
+		events.mark();
+	}
+
+	public void recognitionFailed() {
+		recognitionFailures.mark();
+	}
+
+	public void trainOverdue() {
+		overdueTrains.mark();
+	}
+
+	public void emergencyStopped() {
+		emergencyStops.mark();
+	}
+
+	public void throttleCommandSent() {
+		throttleCommands.mark();
+	}
+
+	public void turnoutCommandSent() {
+		turnoutCommands.mark();
+	}
+
+	/**
+	 * Record that a command of a given priority class was sent, having waited
+	 * a given time (in nanoseconds) since it was submitted.
+	 *
+	 * @param priority
+	 * @param latency
+	 */
+	public void commandSent(int priority, long latency) {
+		commandCounts.incrementAndGet(priority);
+		commandLatencies.addAndGet(priority, latency);
+		long max = commandMaxLatencies.get(priority);
+		while (latency > max && !commandMaxLatencies.compareAndSet(priority, max, latency)) {
+			max = commandMaxLatencies.get(priority);
+		}
+	}
+
+	/**
+	 * Monitor the depth of a given queue.
+	 *
+	 * @param name
+	 * @param depth
+	 */
+	public void queue(String name, Gauge depth) {
+		queues.put(name, depth);
+	}
+
+	// ===============================================================
+	// MBean
+	// ===============================================================
+
+	@Override
+	public long getMessagesDecoded() {
+		return messages.count();
+	}
+
+	@Override
+	public double getMessageRate() {
+		return messages.rate();
+	}
+
+	@Override
+	public long[] getMessagesByOpcode() {
+		return toArray(messagesByOpcode);
+	}
+
+	@Override
+	public long getEventsDispatched() {
+		return events.count();
+	}
+
+	@Override
+	public double getEventRate() {
+		return events.rate();
+	}
+
+	@Override
+	public String[] getEventTypes() {
+		String[] names = new String[EVENT_TYPES.length];
+		for (int i = 0; i != EVENT_TYPES.length; ++i) {
+			names[i] = EVENT_TYPES[i].getSimpleName();
+		}
+		return names;
+	}
+
+	@Override
+	public long[] getEventsByType() {
+		return toArray(eventsByType);
+	}
+
+	@Override
+	public long getRecognitionFailures() {
+		return recognitionFailures.count();
+	}
+
+	@Override
+	public double getRecognitionFailureRate() {
+		return recognitionFailures.rate();
+	}
+
+	@Override
+	public long getOverdueTrains() {
+		return overdueTrains.count();
+	}
+
+	@Override
+	public long getEmergencyStops() {
+		return emergencyStops.count();
+	}
+
+	@Override
+	public double getEmergencyStopRate() {
+		return emergencyStops.rate();
+	}
+
+	@Override
+	public long getThrottleCommands() {
+		return throttleCommands.count();
+	}
+
+	@Override
+	public double getThrottleCommandRate() {
+		return throttleCommands.rate();
+	}
+
+	@Override
+	public long getTurnoutCommands() {
+		return turnoutCommands.count();
+	}
+
+	@Override
+	public double getTurnoutCommandRate() {
+		return turnoutCommands.rate();
+	}
+
+	@Override
+	public String[] getCommandClasses() {
+		return CommandScheduler.CLASSES.clone();
+	}
+
+	@Override
+	public double[] getMeanCommandLatency() {
+		double[] means = new double[commandCounts.length()];
+		for (int i = 0; i != means.length; ++i) {
+			long count = commandCounts.get(i);
+			means[i] = count == 0 ? 0 : commandLatencies.get(i) / (count * 1e6);
+		}
+		return means;
+	}
+
+	@Override
+	public double[] getMaxCommandLatency() {
+		double[] maxima = new double[commandMaxLatencies.length()];
+		for (int i = 0; i != maxima.length; ++i) {
+			maxima[i] = commandMaxLatencies.get(i) / 1e6;
+		}
+		return maxima;
+	}
+
+	@Override
+	public String[] getQueues() {
+		return queues.keySet().toArray(new String[0]);
+	}
+
+	@Override
+	public long[] getQueueDepths() {
+		Gauge[] gauges = queues.values().toArray(new Gauge[0]);
+		long[] depths = new long[gauges.length];
+		for (int i = 0; i != gauges.length; ++i) {
+			depths[i] = gauges[i].value();
+		}
+		return depths;
+	}
+
+	// ===============================================================
+	// Helpers
+	// ===============================================================
+
+	private static long[] toArray(AtomicLongArray counters) {
+		long[] result = new long[counters.length()];
+		for (int i = 0; i != result.length; ++i) {
+			result[i] = counters.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Counts occurrences of something, and determines the rate at which they
+	 * have recently occurred. Occurrences are counted into one-second buckets,
+	 * and the rate is averaged over the last few complete seconds. Marking is
+	 * lock-free; occasionally an occurrence may be missed from the rate (but
+	 * never from the count) when a bucket rolls over.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Meter {
+		/**
+		 * The number of complete seconds over which the rate is averaged.
+		 */
+		private static final int WINDOW = 10;
+
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLongArray buckets = new AtomicLongArray(WINDOW + 1);
+		private final AtomicLongArray seconds = new AtomicLongArray(WINDOW + 1);
+
+		public void mark() {
+			count.incrementAndGet();
+			long second = System.currentTimeMillis() / 1000;
+			int index = (int) (second % buckets.length());
+			long stamp = seconds.get(index);
+			if (stamp != second && seconds.compareAndSet(index, stamp, second)) {
+				// This bucket was last used for an earlier second.
+				buckets.set(index, 0);
+			}
+			buckets.incrementAndGet(index);
+		}
+
+		public long count() {
+			return count.get();
+		}
+
+		public void reset() {
+			count.set(0);
+			for (int i = 0; i != buckets.length(); ++i) {
+				buckets.set(i, 0);
+			}
+		}
+
+		public double rate() {
+			long now = System.currentTimeMillis() / 1000;
+			long total = 0;
+			for (long second = now - WINDOW; second < now; ++second) {
+				int index = (int) (second % buckets.length());
+				if (seconds.get(index) == second) {
+					total += buckets.get(index);
+				}
+			}
+			return total / (double) WINDOW;
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package modelrailway.util;
+
+/**
+ * The management interface through which railway metrics are published over
+ * JMX. Rates are given in events per second, averaged over the last few
+ * seconds.
+ *
+ * @author David J. Pearce
+ *
+ */
+public interface MetricsMBean {
+	/**
+	 * The total number of loconet messages decoded.
+	 */
+	public long getMessagesDecoded();
+
+	public double getMessageRate();
+
+	/**
+	 * The number of loconet messages decoded, indexed by opcode.
+	 */
+	public long[] getMessagesByOpcode();
+
+	/**
+	 * The total number of events dispatched from the railway.
+	 */
+	public long getEventsDispatched();
+
+	public double getEventRate();
+
+	/**
+	 * The names of each event type, in the order used by getEventsByType().
+	 */
+	public String[] getEventTypes();
+
+	/**
+	 * The number of events dispatched, indexed by event type.
+	 */
+	public long[] getEventsByType();
+
+	/**
+	 * The number of section changes which could not be matched to a train.
+	 */
+	public long getRecognitionFailures();
+
+	public double getRecognitionFailureRate();
+
+	/**
+	 * The number of trains stopped by the watchdog for failing to leave a
+	 * section in time.
+	 */
+	public long getOverdueTrains();
+
+	public long getEmergencyStops();
+
+	public double getEmergencyStopRate();
+
+	/**
+	 * The number of speed and direction commands sent to the railway.
+	 */
+	public long getThrottleCommands();
+
+	public double getThrottleCommandRate();
+
+	/**
+	 * The number of turnout commands sent to the railway.
+	 */
+	public long getTurnoutCommands();
+
+	public double getTurnoutCommandRate();
+
+	/**
+	 * The names of each command priority class, in the order used by the
+	 * command latency attributes.
+	 */
+	public String[] getCommandClasses();
+
+	/**
+	 * The mean time (in milliseconds) commands of each priority class waited
+	 * before being sent.
+	 */
+	public double[] getMeanCommandLatency();
+
+	/**
+	 * The longest time (in milliseconds) a command of each priority class
+	 * waited before being sent.
+	 */
+	public double[] getMaxCommandLatency();
+
+	/**
+	 * The names of each monitored queue, in the order used by
+	 * getQueueDepths().
+	 */
+	public String[] getQueues();
+
+	/**
+	 * The current depth of each monitored queue.
+	 */
+	public long[] getQueueDepths();
+}
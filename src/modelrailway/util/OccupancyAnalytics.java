@@ -0,0 +1,380 @@
+package modelrailway.util;
+
+import java.util.Arrays;
+
+import modelrailway.core.Event;
+import modelrailway.core.SectionIndex;
+
+/**
+ * Maintains live statistics on how each section of the railway is being used,
+ * based on section changed events. Statistics are maintained over a sliding
+ * window of time for each section. These include the proportion of time the
+ * section is occupied, the mean and 99th percentile dwell time, and the number
+ * of trains passing through per hour. Sections with high occupancy are
+ * bottlenecks which limit how much traffic the railway can carry.
+ *
+ * The window is divided into SLICES slices, and each occupancy interval (i.e.
+ * from a train moving into the section until it moves out) is counted in the
+ * slice it ended in, whilst its occupied time is spread over the slices it
+ * covers. Thus, the counts, dwell times and occupancy are exact for any amount
+ * of traffic, although the start of the window moves a slice at a time. The
+ * 99th percentile dwell time is taken from the most recent intervals in the
+ * window, which are kept in a fixed-size ring buffer.
+ *
+ * All state is held in primitive arrays allocated up front, so memory use does
+ * not grow with uptime, and each event is processed in bounded time.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class OccupancyAnalytics implements Event.Listener {
+	/**
+	 * The number of histogram buckets used for dwell times in each section.
+	 * Buckets are exact below 8ms, and thereafter there are 8 buckets per
+	 * doubling.
+	 */
+	private static final int BUCKETS = 232;
+
+	/**
+	 * The number of slices the window is divided into.
+	 */
+	private static final int SLICES = 60;
+
+	/**
+	 * The sections covered, whose state is held by index (from 1).
+	 */
+	private final SectionIndex sections;
+	private final int capacity;
+	private final long window;
+	private final long slice;
+
+	// The state of each section is held at its index, rather than at the
+	// section itself.
+
+	/**
+	 * The time at which each section became occupied, or -1 if unoccupied.
+	 */
+	private final long[] entered;
+
+	// Ring buffer of intervals for each section (indexed by section * capacity)
+	private final long[] starts;
+	private final long[] ends;
+	private final int[] heads;
+	private final int[] counts;
+
+	// Histogram of dwell times in the ring buffer (indexed by section * BUCKETS)
+	private final int[] histograms;
+
+	// Statistics for each slice of the window (indexed by section * SLICES). A
+	// slice is identified by its start time divided by the slice length.
+	private final long[] slices;
+	private final int[] sliceCounts;
+	private final long[] sliceDwells;
+	private final long[] sliceOccupied;
+
+	/**
+	 * Construct analytics for a given number of sections.
+	 *
+	 * @param nSections
+	 *            Sections are numbered from 1 up to this number.
+	 * @param capacity
+	 *            Maximum number of intervals retained for each section, from
+	 *            which the 99th percentile dwell time is determined.
+	 * @param window
+	 *            Length of the sliding window (in milliseconds).
+	 */
+	public OccupancyAnalytics(int nSections, int capacity, long window) {
+		this(SectionIndex.range(nSections), capacity, window);
+	}
+
+	/**
+	 * Construct analytics for a given set of sections. Events for other
+	 * sections are ignored.
+	 *
+	 * @param sections
+	 * @param capacity
+	 *            Maximum number of intervals retained for each section, from
+	 *            which the 99th percentile dwell time is determined.
+	 * @param window
+	 *            Length of the sliding window (in milliseconds).
+	 */
+	public OccupancyAnalytics(SectionIndex sections, int capacity, long window) {
+		int nSections = sections.size();
+		this.sections = sections;
+		this.capacity = capacity;
+		this.slice = Math.max(1, (window + SLICES - 1) / SLICES);
+		this.window = slice * SLICES;
+		this.entered = new long[nSections + 1];
+		this.starts = new long[(nSections + 1) * capacity];
+		this.ends = new long[(nSections + 1) * capacity];
+		this.heads = new int[nSections + 1];
+		this.counts = new int[nSections + 1];
+		this.histograms = new int[(nSections + 1) * BUCKETS];
+		this.slices = new long[(nSections + 1) * SLICES];
+		this.sliceCounts = new int[(nSections + 1) * SLICES];
+		this.sliceDwells = new long[(nSections + 1) * SLICES];
+		this.sliceOccupied = new long[(nSections + 1) * SLICES];
+		Arrays.fill(entered, -1);
+		Arrays.fill(slices, -1);
+	}
+
+	/**
+	 * Get the sections covered.
+	 *
+	 * @return
+	 */
+	public SectionIndex sections() {
+		return sections;
+	}
+
+	@Override
+	public void notify(Event e) {
+		if (e instanceof Event.SectionChanged) {
+			Event.SectionChanged es = (Event.SectionChanged) e;
+			record(es.getSection(), es.getInto(), System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Record a train moving into or out of a given section at a given time.
+	 *
+	 * @param section
+	 * @param into
+	 * @param time
+	 */
+	public synchronized void record(int section, boolean into, long time) {
+		int at = sections.index(section);
+		if (at < 0) {
+			return;
+		} else if (into) {
+			entered[at] = time;
+		} else if (entered[at] >= 0) {
+			add(at, entered[at], time);
+			entered[at] = -1;
+		}
+		expire(at, time);
+	}
+
+	// ===============================================================
+	// Queries
+	// ===============================================================
+
+	/**
+	 * Determine the proportion of the window for which a given section was
+	 * occupied (between 0.0 and 1.0).
+	 *
+	 * @param section
+	 * @param now
+	 * @return
+	 */
+	public synchronized double occupancy(int section, long now) {
+		int at = sections.index(section);
+		if (at < 0) {
+			return 0;
+		}
+		long occupied = 0;
+		for (int i = 0; i != SLICES; ++i) {
+			int index = slice(at, (now / slice) - i);
+			if (index >= 0) {
+				occupied += sliceOccupied[index];
+			}
+		}
+		if (entered[at] >= 0) {
+			occupied += now - Math.max(entered[at], start(now));
+		}
+		return Math.min(1.0, occupied / (double) span(now));
+	}
+
+	/**
+	 * Determine the mean dwell time (in milliseconds) for a given section over
+	 * the window, or 0 if no trains passed through.
+	 *
+	 * @param section
+	 * @param now
+	 * @return
+	 */
+	public synchronized long meanDwell(int section, long now) {
+		int at = sections.index(section);
+		if (at < 0) {
+			return 0;
+		}
+		long count = 0;
+		long total = 0;
+		for (int i = 0; i != SLICES; ++i) {
+			int index = slice(at, (now / slice) - i);
+			if (index >= 0) {
+				count += sliceCounts[index];
+				total += sliceDwells[index];
+			}
+		}
+		return count == 0 ? 0 : total / count;
+	}
+
+	/**
+	 * Determine the 99th percentile dwell time (in milliseconds) for a given
+	 * section over the window. This is accurate to within one histogram
+	 * bucket (i.e. around 12%), and only considers the most recent intervals
+	 * if more passed through than are retained.
+	 *
+	 * @param section
+	 * @param now
+	 * @return
+	 */
+	public synchronized long p99Dwell(int section, long now) {
+		int at = sections.index(section);
+		if (at < 0) {
+			return 0;
+		}
+		expire(at, now);
+		int count = counts[at];
+		if (count == 0) {
+			return 0;
+		}
+		int threshold = count - (count / 100);
+		int seen = 0;
+		int base = at * BUCKETS;
+		for (int i = 0; i != BUCKETS; ++i) {
+			seen += histograms[base + i];
+			if (seen >= threshold) {
+				return upperBound(i);
+			}
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	/**
+	 * Determine the number of trains passing through a given section per hour,
+	 * based on the window.
+	 *
+	 * @param section
+	 * @param now
+	 * @return
+	 */
+	public synchronized double trainsPerHour(int section, long now) {
+		int at = sections.index(section);
+		if (at < 0) {
+			return 0;
+		}
+		long count = 0;
+		for (int i = 0; i != SLICES; ++i) {
+			int index = slice(at, (now / slice) - i);
+			if (index >= 0) {
+				count += sliceCounts[index];
+			}
+		}
+		return count * (3600000.0 / span(now));
+	}
+
+	// ===============================================================
+	// Helpers
+	// ===============================================================
+
+	// Sections are given here by their index, rather than their number.
+
+	/**
+	 * Add a completed interval to the slices of the window for a given
+	 * section, and to its ring buffer (displacing the oldest if the buffer is
+	 * full).
+	 */
+	private void add(int section, long start, long end) {
+		long last = end / slice;
+		int index = touch(section, last);
+		sliceCounts[index]++;
+		sliceDwells[index] += end - start;
+		// Spread the occupied time over the slices covered, ignoring any part
+		// before the window.
+		for (long s = Math.max(start / slice, last - SLICES + 1); s <= last; ++s) {
+			long from = Math.max(start, s * slice);
+			long to = Math.min(end, (s + 1) * slice);
+			sliceOccupied[touch(section, s)] += to - from;
+		}
+		if (counts[section] == capacity) {
+			remove(section);
+		}
+		int slot = (section * capacity) + ((heads[section] + counts[section]) % capacity);
+		starts[slot] = start;
+		ends[slot] = end;
+		counts[section]++;
+		histograms[(section * BUCKETS) + bucket(end - start)]++;
+	}
+
+	/**
+	 * Get the index of a given slice for a given section, clearing whatever
+	 * older slice previously occupied it.
+	 */
+	private int touch(int section, long s) {
+		int index = (section * SLICES) + (int) (s % SLICES);
+		if (slices[index] != s) {
+			slices[index] = s;
+			sliceCounts[index] = 0;
+			sliceDwells[index] = 0;
+			sliceOccupied[index] = 0;
+		}
+		return index;
+	}
+
+	/**
+	 * Get the index of a given slice for a given section, or -1 if nothing has
+	 * been recorded in it.
+	 */
+	private int slice(int section, long s) {
+		int index = (section * SLICES) + (int) (s % SLICES);
+		return slices[index] == s ? index : -1;
+	}
+
+	/**
+	 * Determine the start of the window, which begins with the oldest slice
+	 * it covers.
+	 */
+	private long start(long now) {
+		return ((now / slice) - SLICES + 1) * slice;
+	}
+
+	/**
+	 * Determine the length of time covered by the window (in milliseconds).
+	 */
+	private long span(long now) {
+		return Math.max(1, now - start(now));
+	}
+
+	/**
+	 * Remove the oldest interval for a given section.
+	 */
+	private void remove(int section) {
+		int slot = (section * capacity) + heads[section];
+		long dwell = ends[slot] - starts[slot];
+		heads[section] = (heads[section] + 1) % capacity;
+		counts[section]--;
+		histograms[(section * BUCKETS) + bucket(dwell)]--;
+	}
+
+	/**
+	 * Remove all intervals for a given section which ended before the window.
+	 */
+	private void expire(int section, long now) {
+		long limit = now - window;
+		while (counts[section] > 0 && ends[(section * capacity) + heads[section]] < limit) {
+			remove(section);
+		}
+	}
+
+	private static int bucket(long dwell) {
+		if (dwell < 8) {
+			return (int) Math.max(0, dwell);
+		} else {
+			int octave = 63 - Long.numberOfLeadingZeros(dwell);
+			int sub = (int) (dwell >>> (octave - 3)) & 7;
+			return Math.min(BUCKETS - 1, ((octave - 2) * 8) + sub);
+		}
+	}
+
+	private static long upperBound(int bucket) {
+		int next = bucket + 1;
+		if (next < 8) {
+			return next;
+		} else {
+			int octave = (next / 8) + 2;
+			return (long) (8 + (next % 8)) << (octave - 3);
+		}
+	}
+}
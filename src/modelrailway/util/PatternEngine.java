@@ -0,0 +1,655 @@
+package modelrailway.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import modelrailway.core.Controller;
+import modelrailway.core.Event;
+import modelrailway.core.EventBus;
+import modelrailway.core.Route;
+import modelrailway.core.SectionIndex;
+import modelrailway.core.Snapshot;
+
+/**
+ * Watches the stream of events for patterns, such as a section whose sensor
+ * is flapping, or a locomotive which is given a speed but never seems to
+ * move. Each pattern is a small state machine which is advanced by every
+ * event of the types it observes, and whose state for each key (i.e. section
+ * or locomotive) is held in arrays allocated up front. Patterns are indexed by
+ * the types of event they observe, so each event is passed only to those
+ * patterns interested in it, in a single pass.
+ *
+ * Patterns about trains (rather than sections or locomotives) follow the
+ * locations of trains as predicted by a controller, since block detectors
+ * only tell whether a section is occupied, and not by how many trains.
+ *
+ * When a pattern matches, a PatternMatched event is raised. This is passed to
+ * any patterns observing such events (so patterns can be built from other
+ * patterns), and then to the engine's listeners.
+ *
+ * Time is taken from a timer wheel, which is also used to notice the absence
+ * of expected events. Hence, times are only as precise as the wheel's tick,
+ * and the wheel must be advanced by its owner.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class PatternEngine implements Event.Listener {
+	private static final Pattern[] NONE = new Pattern[0];
+
+	private final TimerWheel wheel;
+	private final EventBus listeners = new EventBus();
+	private final ArrayList<Pattern> patterns = new ArrayList<Pattern>();
+
+	/**
+	 * The patterns observing each type of event.
+	 */
+	private final Pattern[][] observers = new Pattern[Event.TYPES][];
+
+	public PatternEngine(TimerWheel wheel) {
+		this.wheel = wheel;
+		Arrays.fill(observers, NONE);
+	}
+
+	/**
+	 * Add a pattern to the engine.
+	 *
+	 * @param pattern
+	 * @return The id of the pattern, as given in its PatternMatched events.
+	 */
+	public synchronized int add(Pattern pattern) {
+		if (pattern.engine != null) {
+			throw new IllegalArgumentException("Pattern already added to an engine");
+		}
+		pattern.engine = this;
+		pattern.id = patterns.size();
+		patterns.add(pattern);
+		for (int i = 0; i != Event.TYPES; ++i) {
+			if ((pattern.types() & (1 << i)) != 0) {
+				Pattern[] ps = Arrays.copyOf(observers[i], observers[i].length + 1);
+				ps[ps.length - 1] = pattern;
+				observers[i] = ps;
+			}
+		}
+		return pattern.id;
+	}
+
+	/**
+	 * Get the pattern with a given id.
+	 *
+	 * @param id
+	 * @return
+	 */
+	public synchronized Pattern pattern(int id) {
+		return patterns.get(id);
+	}
+
+	public synchronized int size() {
+		return patterns.size();
+	}
+
+	public void register(Event.Listener listener) {
+		listeners.register(listener);
+	}
+
+	public void register(Event.Listener listener, int types, int... keys) {
+		listeners.register(listener, types, keys);
+	}
+
+	@Override
+	public synchronized void notify(Event e) {
+		long now = wheel.now();
+		for (Pattern pattern : observers[Integer.numberOfTrailingZeros(e.type())]) {
+			pattern.observe(e, now);
+		}
+	}
+
+	/**
+	 * Raise an event for a pattern which has matched.
+	 */
+	private synchronized void matched(int id, int key) {
+		Event e = new Event.PatternMatched(id, key);
+		notify(e);
+		listeners.notify(e);
+	}
+
+	/**
+	 * A pattern over the stream of events. Keys outside the range given when
+	 * the pattern is constructed are ignored, so the state held by a pattern
+	 * is bounded.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static abstract class Pattern {
+		private final String name;
+		private PatternEngine engine;
+		private int id;
+
+		public Pattern(String name) {
+			this.name = name;
+		}
+
+		public String name() {
+			return name;
+		}
+
+		/**
+		 * Get the mask of event types which this pattern observes.
+		 *
+		 * @return
+		 */
+		public abstract int types();
+
+		/**
+		 * Advance the pattern with an event of one of its types, which is
+		 * called with the engine's lock held.
+		 *
+		 * @param e
+		 * @param now
+		 *            The current time (in milliseconds).
+		 */
+		protected abstract void observe(Event e, long now);
+
+		/**
+		 * Report that this pattern has matched for a given key.
+		 *
+		 * @param key
+		 */
+		protected final void matched(int key) {
+			engine.matched(id, key);
+		}
+
+		/**
+		 * Get the wheel from which the engine takes its time.
+		 *
+		 * @return
+		 */
+		protected final TimerWheel wheel() {
+			return engine.wheel;
+		}
+
+		/**
+		 * Get the lock held whilst the engine processes an event.
+		 *
+		 * @return
+		 */
+		protected final Object lock() {
+			return engine;
+		}
+
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * Matches when events of given types occur for the same key a given
+	 * number of times within a window (e.g. a section flapping). Once matched,
+	 * counting starts afresh for that key.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class Repeated extends Pattern {
+		private final int types;
+		private final int count;
+		private final long window;
+		private final int maxKey;
+
+		/**
+		 * The sections counted (by index), or null if keys are counted
+		 * directly.
+		 */
+		private final SectionIndex sections;
+
+		/**
+		 * The times of the most recent events for each key, held in a ring
+		 * (indexed by key * count).
+		 */
+		private final long[] times;
+		private final int[] heads;
+		private final int[] sizes;
+
+		/**
+		 * Construct a pattern which matches a given number of events within a
+		 * window.
+		 *
+		 * @param name
+		 * @param types
+		 *            Mask of event types counted.
+		 * @param count
+		 *            Number of events needed to match.
+		 * @param window
+		 *            Length of the window (in milliseconds).
+		 * @param maxKey
+		 *            Largest key considered.
+		 */
+		public Repeated(String name, int types, int count, long window, int maxKey) {
+			this(name, types, count, window, maxKey, null);
+		}
+
+		/**
+		 * Construct a pattern which matches a given number of events for the
+		 * same section within a window, where the events' keys are sections.
+		 * Sections not in the given index are ignored.
+		 *
+		 * @param name
+		 * @param types
+		 *            Mask of event types counted.
+		 * @param count
+		 *            Number of events needed to match.
+		 * @param window
+		 *            Length of the window (in milliseconds).
+		 * @param sections
+		 *            Sections considered.
+		 */
+		public Repeated(String name, int types, int count, long window, SectionIndex sections) {
+			this(name, types, count, window, sections.size(), sections);
+		}
+
+		private Repeated(String name, int types, int count, long window, int maxKey, SectionIndex sections) {
+			super(name);
+			this.types = types;
+			this.count = count;
+			this.window = window;
+			this.maxKey = maxKey;
+			this.sections = sections;
+			this.times = new long[(maxKey + 1) * count];
+			this.heads = new int[maxKey + 1];
+			this.sizes = new int[maxKey + 1];
+		}
+
+		@Override
+		public int types() {
+			return types;
+		}
+
+		@Override
+		protected void observe(Event e, long now) {
+			int key = sections == null ? e.key() : sections.index(e.key());
+			if (key < 0 || key > maxKey) {
+				return;
+			}
+			int base = key * count;
+			// The head is the oldest entry, which is overwritten once the ring
+			// is full.
+			times[base + ((heads[key] + sizes[key]) % count)] = now;
+			if (sizes[key] < count) {
+				sizes[key]++;
+			} else {
+				heads[key] = (heads[key] + 1) % count;
+			}
+			if (sizes[key] == count && now - times[base + heads[key]] <= window) {
+				sizes[key] = 0;
+				matched(e.key());
+			}
+		}
+	}
+
+	/**
+	 * Matches when an event of given types (the trigger) is not followed
+	 * within a timeout by an event of other given types (the response) for the
+	 * same key, e.g. a locomotive being given a speed without moving on. Where
+	 * responses concern different things from triggers (e.g. sections rather
+	 * than locomotives), the key each response answers can be given by
+	 * overriding <code>responder()</code>.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class Silence extends Pattern {
+		private final int triggers;
+		private final int responses;
+		private final long timeout;
+
+		/**
+		 * The pending timeout for each key, or null if none.
+		 */
+		private final TimerWheel.Timeout[] pending;
+
+		/**
+		 * The number of keys with pending timeouts.
+		 */
+		private int nPending;
+
+		/**
+		 * Construct a pattern which matches the absence of a response.
+		 *
+		 * @param name
+		 * @param triggers
+		 *            Mask of event types which start the timeout.
+		 * @param responses
+		 *            Mask of event types which cancel the timeout.
+		 * @param timeout
+		 *            Time (in milliseconds) within which a response is
+		 *            expected.
+		 * @param maxKey
+		 *            Largest key considered.
+		 */
+		public Silence(String name, int triggers, int responses, long timeout, int maxKey) {
+			super(name);
+			this.triggers = triggers;
+			this.responses = responses;
+			this.timeout = timeout;
+			this.pending = new TimerWheel.Timeout[maxKey + 1];
+		}
+
+		@Override
+		public int types() {
+			return triggers | responses;
+		}
+
+		/**
+		 * Determine whether a given event of a trigger type starts the
+		 * timeout. By default, all do, but this can be overridden (e.g. to
+		 * ignore a locomotive being stopped).
+		 *
+		 * @param e
+		 * @return
+		 */
+		protected boolean triggers(Event e) {
+			return true;
+		}
+
+		/**
+		 * Determine the key whose timeout is cancelled by a given event of a
+		 * response type, or -1 if none. By default, this is the event's own
+		 * key. This is only called while some timeout is pending.
+		 *
+		 * @param e
+		 * @return
+		 */
+		protected int responder(Event e) {
+			return e.key();
+		}
+
+		@Override
+		protected void observe(Event e, long now) {
+			if ((e.type() & responses) != 0 && nPending > 0) {
+				int key = responder(e);
+				if (key >= 0 && key < pending.length) {
+					cancel(key);
+				}
+			}
+			int key = e.key();
+			if ((e.type() & triggers) != 0 && key >= 0 && key < pending.length) {
+				cancel(key);
+				if (triggers(e)) {
+					schedule(key, now);
+				}
+			}
+		}
+
+		private void schedule(final int key, long now) {
+			final TimerWheel.Timeout[] timeout = new TimerWheel.Timeout[1];
+			timeout[0] = wheel().schedule(now + this.timeout, new Runnable() {
+				public void run() {
+					synchronized (lock()) {
+						// Check the timeout was not cancelled after it fired,
+						// but before the lock was acquired.
+						if (pending[key] == timeout[0]) {
+							pending[key] = null;
+							nPending--;
+							matched(key);
+						}
+					}
+				}
+			});
+			pending[key] = timeout[0];
+			nPending++;
+		}
+
+		private void cancel(int key) {
+			if (pending[key] != null) {
+				wheel().cancel(pending[key]);
+				pending[key] = null;
+				nPending--;
+			}
+		}
+	}
+
+	/**
+	 * Matches when two trains are predicted to be in the same section, as
+	 * judged from the snapshots published by a controller. Predictions are
+	 * brought up to date with each sensor event, so a match is raised at the
+	 * first sensor event after the controller has located a second train in a
+	 * section. It is raised again only if the section is vacated by all but
+	 * one train, and then entered by another.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class DoubleOccupancy extends Pattern {
+		private final Predictions predictions;
+
+		public DoubleOccupancy(String name, Controller controller, int maxSection) {
+			this(name, controller, SectionIndex.range(maxSection));
+		}
+
+		public DoubleOccupancy(String name, Controller controller, SectionIndex sections) {
+			super(name);
+			this.predictions = new Predictions(controller, sections);
+		}
+
+		@Override
+		public int types() {
+			return Event.SECTION_CHANGED;
+		}
+
+		@Override
+		protected void observe(Event e, long now) {
+			if (predictions.refresh()) {
+				for (int i = 0; i != predictions.nCrowded; ++i) {
+					matched(predictions.crowded[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Follows the locations of trains, as predicted by a controller, so that
+	 * sensor events can be related to trains. The controller's latest
+	 * snapshot is compared with the one last seen, and only trains whose
+	 * section or route has changed are updated. Thus, each section can be
+	 * looked up in constant time to find the train located in it (or expected
+	 * to enter it next), and the number of trains located in it.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Predictions {
+		private final Controller controller;
+
+		/**
+		 * The version of the snapshot last seen.
+		 */
+		private long version = -1;
+
+		/**
+		 * The section and route of each train, as last seen.
+		 */
+		private int[] located = new int[0];
+		private Route[] routes = new Route[0];
+
+		/**
+		 * The section each train was expected to enter next, as last seen, or
+		 * -1 if none.
+		 */
+		private int[] nexts = new int[0];
+
+		/**
+		 * The sections followed. The state of each section is held at its
+		 * index, rather than at the section itself.
+		 */
+		private final SectionIndex sections;
+
+		/**
+		 * The number of trains located in each section.
+		 */
+		private final int[] occupants;
+
+		/**
+		 * A train located in each section, and the train expected to enter
+		 * each section next, or -1 if none.
+		 */
+		private final int[] locatedIn;
+		private final int[] expectedIn;
+
+		/**
+		 * The sections which became occupied by more than one train when the
+		 * predictions last changed.
+		 */
+		private int[] crowded = new int[8];
+		private int nCrowded;
+
+		/**
+		 * Construct predictions following a given controller.
+		 *
+		 * @param controller
+		 * @param maxSection
+		 *            Largest section considered.
+		 */
+		public Predictions(Controller controller, int maxSection) {
+			this(controller, SectionIndex.range(maxSection));
+		}
+
+		/**
+		 * Construct predictions following a given controller, for a given
+		 * set of sections. Other sections are ignored.
+		 *
+		 * @param controller
+		 * @param sections
+		 */
+		public Predictions(Controller controller, SectionIndex sections) {
+			this.controller = controller;
+			this.sections = sections;
+			this.occupants = new int[sections.size() + 1];
+			this.locatedIn = new int[sections.size() + 1];
+			this.expectedIn = new int[sections.size() + 1];
+			Arrays.fill(locatedIn, -1);
+			Arrays.fill(expectedIn, -1);
+		}
+
+		/**
+		 * Bring the predictions up to date with the controller's latest
+		 * snapshot.
+		 *
+		 * @return True if the snapshot has changed since last seen.
+		 */
+		public boolean refresh() {
+			Snapshot snapshot = controller.snapshot();
+			if (snapshot.version() == version) {
+				return false;
+			}
+			version = snapshot.version();
+			nCrowded = 0;
+			if (located.length != snapshot.size()) {
+				located = new int[snapshot.size()];
+				routes = new Route[snapshot.size()];
+				nexts = new int[snapshot.size()];
+				Arrays.fill(nexts, -1);
+			}
+			for (int i = 0; i != located.length; ++i) {
+				int section = snapshot.section(i);
+				Route route = snapshot.route(i);
+				if (section != located[i]) {
+					move(i, located[i], section);
+					located[i] = section;
+				} else if (route == routes[i]) {
+					continue;
+				}
+				routes[i] = route;
+				int next = route == null ? -1 : next(route, section);
+				if (next != nexts[i]) {
+					int from = sections.index(nexts[i]);
+					if (from >= 0 && expectedIn[from] == i) {
+						expectedIn[from] = -1;
+					}
+					int to = sections.index(next);
+					if (to >= 0) {
+						expectedIn[to] = i;
+					}
+					nexts[i] = next;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Get the train located in a given section or, failing that, the
+		 * train expected to enter it next. If there is no such train, -1 is
+		 * returned.
+		 *
+		 * @param section
+		 * @return
+		 */
+		public int train(int section) {
+			int at = sections.index(section);
+			if (at < 0) {
+				return -1;
+			}
+			return locatedIn[at] >= 0 ? locatedIn[at] : expectedIn[at];
+		}
+
+		/**
+		 * Get the number of trains located in a given section.
+		 *
+		 * @param section
+		 * @return
+		 */
+		public int occupants(int section) {
+			int at = sections.index(section);
+			return at >= 0 ? occupants[at] : 0;
+		}
+
+		/**
+		 * Find a train other than a given one which is located in a given
+		 * section, or -1 if there is none. This is only needed when a train
+		 * leaves a section it shared, so it is rare enough to scan.
+		 */
+		private int occupant(int section, int except) {
+			if (occupants[sections.index(section)] == 0) {
+				return -1;
+			}
+			for (int i = 0; i != located.length; ++i) {
+				if (i != except && located[i] == section) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Move a train between sections. Sections which are not followed
+		 * (including section 0, e.g. a train not yet placed) are ignored.
+		 */
+		private void move(int train, int from, int to) {
+			int at = sections.index(from);
+			if (at >= 0) {
+				occupants[at]--;
+				if (locatedIn[at] == train) {
+					locatedIn[at] = occupant(from, train);
+				}
+			}
+			at = sections.index(to);
+			if (at >= 0) {
+				if (++occupants[at] == 2) {
+					if (nCrowded == crowded.length) {
+						crowded = Arrays.copyOf(crowded, nCrowded * 2);
+					}
+					crowded[nCrowded++] = to;
+				}
+				locatedIn[at] = train;
+			}
+		}
+
+		private static int next(Route route, int section) {
+			int index = route.indexOf(section);
+			if (index < 0 || (index == route.size() - 1 && !route.isLoop())) {
+				return -1;
+			}
+			return route.section((index + 1) % route.size());
+		}
+	}
+}
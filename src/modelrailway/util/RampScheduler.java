@@ -0,0 +1,290 @@
+package modelrailway.util;
+
+import modelrailway.core.Event;
+
+/**
+ * Ramps the speed of locomotives smoothly, rather than changing it in a single
+ * step. This sits between a controller and the railway: speed changes are
+ * taken as targets, towards which each locomotive is accelerated (or
+ * decelerated) according to its momentum profile, whilst all other commands
+ * pass straight through. An emergency stop also passes straight through, and
+ * abandons any ramp for the locomotive(s) concerned, so that a ramp can never
+ * restart a stopped locomotive.
+ *
+ * Ramps for every locomotive are advanced together on a single thread, at a
+ * fixed tick. The state of each locomotive is held in arrays, and only those
+ * which are ramping are visited on each tick. A speed is sent only when it
+ * changes the speed step seen by the locomotive's decoder (of which there
+ * are 128), and at most a given number are sent on each tick. Locomotives
+ * which are slowing down are sent their speeds first, and the speed which
+ * finally stops a locomotive is always sent, regardless of the budget. When
+ * more locomotives are ramping than this allows, they take turns, and each
+ * sends its latest speed when its turn comes. Hence, ramps never produce
+ * bursts of traffic on the bus, but may be coarser when many locomotives
+ * ramp at once.
+ *
+ * A locomotive takes time to stop, during which it keeps moving. Hence, a
+ * controller whose trains stop at a given point (e.g. the end of a route, or
+ * short of the train ahead) must allow for the distance travelled whilst
+ * braking, which is at most the square of the top speed over twice the
+ * deceleration (in full speed seconds).
+ *
+ * @author David J. Pearce
+ *
+ */
+public class RampScheduler implements Event.Listener {
+	private final Event.Listener output;
+
+	/**
+	 * The most speeds sent on each tick.
+	 */
+	private final int budget;
+
+	/**
+	 * The speed each locomotive has reached, and the speed it is ramping
+	 * towards.
+	 */
+	private final float[] current;
+	private final float[] target;
+
+	/**
+	 * The rates (in full speed per second) at which each locomotive
+	 * accelerates and decelerates.
+	 */
+	private final float[] acceleration;
+	private final float[] deceleration;
+
+	/**
+	 * The speed step (as given by step()) last sent for each locomotive, or -1
+	 * if none has been sent.
+	 */
+	private final int[] sent;
+
+	/**
+	 * The locomotives which are ramping, in the first nActive elements, and
+	 * the position of each locomotive in this list (or -1 if it is not
+	 * ramping).
+	 */
+	private final int[] active;
+	private final int[] positions;
+	private int nActive;
+
+	/**
+	 * The position in the active list from which speeds are next sent.
+	 */
+	private int cursor;
+
+	/**
+	 * The time (from System.nanoTime()) of the last tick, or -1 if there has
+	 * been none.
+	 */
+	private long last = -1;
+
+	/**
+	 * Construct a ramp scheduler, with the same momentum profile for every
+	 * locomotive.
+	 *
+	 * @param locomotives
+	 *            The number of locomotives. Speed changes for others are
+	 *            passed straight through.
+	 * @param acceleration
+	 *            Rate (in full speed per second) at which locomotives
+	 *            accelerate, or zero to change speed in a single step.
+	 * @param deceleration
+	 *            Rate (in full speed per second) at which locomotives
+	 *            decelerate, or zero to change speed in a single step.
+	 * @param budget
+	 *            The most speeds sent on each tick.
+	 * @param output
+	 *            Where commands are sent.
+	 */
+	public RampScheduler(int locomotives, float acceleration, float deceleration, int budget,
+			Event.Listener output) {
+		if (budget <= 0) {
+			throw new IllegalArgumentException("Budget must be positive");
+		}
+		this.output = output;
+		this.budget = budget;
+		this.current = new float[locomotives];
+		this.target = new float[locomotives];
+		this.acceleration = new float[locomotives];
+		this.deceleration = new float[locomotives];
+		this.sent = new int[locomotives];
+		this.active = new int[locomotives];
+		this.positions = new int[locomotives];
+		for (int i = 0; i != locomotives; ++i) {
+			setProfile(i, acceleration, deceleration);
+			sent[i] = -1;
+			positions[i] = -1;
+		}
+	}
+
+	/**
+	 * Set the momentum profile of a given locomotive.
+	 *
+	 * @param locomotive
+	 * @param acceleration
+	 *            Rate (in full speed per second) at which it accelerates, or
+	 *            zero to change speed in a single step.
+	 * @param deceleration
+	 *            Rate (in full speed per second) at which it decelerates, or
+	 *            zero to change speed in a single step.
+	 */
+	public synchronized void setProfile(int locomotive, float acceleration, float deceleration) {
+		this.acceleration[locomotive] = acceleration <= 0 ? Float.POSITIVE_INFINITY : acceleration;
+		this.deceleration[locomotive] = deceleration <= 0 ? Float.POSITIVE_INFINITY : deceleration;
+	}
+
+	/**
+	 * Get the number of locomotives currently ramping.
+	 *
+	 * @return
+	 */
+	public synchronized int ramping() {
+		return nActive;
+	}
+
+	@Override
+	public synchronized void notify(Event e) {
+		if (e instanceof Event.SpeedChanged) {
+			Event.SpeedChanged es = (Event.SpeedChanged) e;
+			int locomotive = es.getLocomotive();
+			if (locomotive >= 0 && locomotive < current.length) {
+				target[locomotive] = es.getSpeed();
+				if (positions[locomotive] < 0) {
+					positions[locomotive] = nActive;
+					active[nActive++] = locomotive;
+				}
+				return;
+			}
+		} else if (e instanceof Event.EmergencyStop) {
+			int locomotive = ((Event.EmergencyStop) e).getLocomotive();
+			if (locomotive >= 0 && locomotive < current.length) {
+				halt(locomotive);
+			}
+		} else if (e instanceof Event.EmergencyStopAll) {
+			for (int i = 0; i != current.length; ++i) {
+				halt(i);
+			}
+		}
+		output.notify(e);
+	}
+
+	/**
+	 * Advance every ramp by the time elapsed since the last tick, and send
+	 * those speeds which have changed step (within the budget). This is called
+	 * periodically by the scheduler's thread, but can also be called directly.
+	 */
+	public synchronized void tick() {
+		long now = System.nanoTime();
+		float elapsed = last < 0 ? 0 : (now - last) / 1e9f;
+		last = now;
+		// First, advance every ramp together.
+		for (int i = 0; i != nActive; ++i) {
+			int loco = active[i];
+			float speed = current[loco];
+			float goal = target[loco];
+			if (speed < goal) {
+				current[loco] = Math.min(goal, speed + (acceleration[loco] * elapsed));
+			} else if (speed > goal) {
+				current[loco] = Math.max(goal, speed - (deceleration[loco] * elapsed));
+			}
+		}
+		// Second, send speeds which have changed step, taking turns from where
+		// the last tick left off. Locomotives slowing down are visited first,
+		// and are only held back by the budget if they are not stopping.
+		// Commands are sent with the lock held, so they cannot be overtaken
+		// by an emergency stop.
+		int sends = 0;
+		int resume = -1;
+		for (int pass = 0; pass != 2; ++pass) {
+			boolean slowing = pass == 0;
+			for (int visited = 0; visited != nActive; ++visited) {
+				int position = (cursor + visited) % nActive;
+				int loco = active[position];
+				int step = step(current[loco]);
+				if (step == sent[loco] || slowing != (step < sent[loco])) {
+					continue;
+				} else if (step != 0 && sends == budget) {
+					// This locomotive's turn comes first on the next tick.
+					if (resume < 0) {
+						resume = position;
+					}
+					continue;
+				} else if (step != 0) {
+					sends++;
+				}
+				sent[loco] = step;
+				output.notify(new Event.SpeedChanged(loco, current[loco]));
+			}
+		}
+		cursor = Math.max(0, resume);
+		// Finally, retire ramps which are complete and sent.
+		for (int i = nActive - 1; i >= 0; --i) {
+			int loco = active[i];
+			if (current[loco] == target[loco] && sent[loco] == step(target[loco])) {
+				remove(loco);
+			}
+		}
+	}
+
+	/**
+	 * Start a thread which ticks periodically.
+	 *
+	 * @param period
+	 *            Interval (in milliseconds) between ticks.
+	 */
+	public void start(final long period) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						tick();
+						Thread.sleep(period);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "Ramps");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Get the speed step (out of 128) which a locomotive's decoder uses for a
+	 * given speed. Step 0 is stopped and step 1 is an emergency stop, so
+	 * moving speeds take steps 2 to 127.
+	 */
+	private static int step(float speed) {
+		if (speed <= 0) {
+			return 0;
+		} else {
+			return Math.min(127, Math.max(2, Math.round(speed * 126f) + 1));
+		}
+	}
+
+	/**
+	 * Abandon any ramp for a given locomotive, which is now stopped.
+	 */
+	private void halt(int locomotive) {
+		remove(locomotive);
+		current[locomotive] = 0;
+		target[locomotive] = 0;
+		sent[locomotive] = 0;
+	}
+
+	/**
+	 * Remove a locomotive from the active list, if present, by moving the last
+	 * active locomotive into its place.
+	 */
+	private void remove(int locomotive) {
+		int position = positions[locomotive];
+		if (position >= 0) {
+			int moved = active[--nActive];
+			active[position] = moved;
+			positions[moved] = position;
+			positions[locomotive] = -1;
+		}
+	}
+}
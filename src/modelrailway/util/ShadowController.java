@@ -0,0 +1,488 @@
+package modelrailway.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import modelrailway.core.*;
+import modelrailway.core.Event.Listener;
+
+/**
+ * A controller which runs a candidate controller in the shadow of a live one.
+ * Every operation (e.g. events from the railway, commands from the user,
+ * overdue trains reported by a watchdog or changes to the speed scale) is
+ * applied to the live controller on the caller's thread, exactly as though
+ * there were no shadow, and its output goes to the registered listeners. The
+ * same operation is then posted to a shadow thread, which applies it to the
+ * candidate. The candidate's output is captured, but never sent anywhere.
+ * Hence, a watchdog (or bus monitor) should act on the shadow controller
+ * rather than on the live one, so that both controllers see its actions.
+ *
+ * For each operation (a step), the events produced by each controller are
+ * encoded and compared, and the time each controller took is recorded. Hence,
+ * a replacement for the live controller can be qualified on real traffic
+ * without risk. The live controller must produce its output on the thread
+ * which calls it (as SimpleController does); to confine it to a single
+ * thread, wrap the shadow controller in an ActorController instead. The live
+ * output is held back until the step has been timed, and only then passed to
+ * the listeners, so that the times of both controllers cover their own
+ * decisions alone. Events produced outside of any step are passed on
+ * straight away, and counted, but not compared.
+ *
+ * The shadow thread must never hold up the live controller. Therefore, if it
+ * falls too far behind, steps are dropped (and counted). After this, the
+ * candidate has not seen the whole stream, so differences are to be expected.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ShadowController implements Controller, Watchdog.Handler {
+	/**
+	 * The most steps waiting for the shadow thread.
+	 */
+	private static final int CAPACITY = 4096;
+
+	/**
+	 * The number of recent steps whose times are kept.
+	 */
+	private static final int WINDOW = 10000;
+
+	/**
+	 * The number of recent mismatches which are kept.
+	 */
+	private static final int MISMATCHES = 16;
+
+	private final Controller live;
+	private final Controller candidate;
+
+	/**
+	 * The listeners to which the live output is passed.
+	 */
+	private final EventBus listeners = new EventBus();
+
+	/**
+	 * Captures the output of each controller during a step.
+	 */
+	private final Capture liveOutput = new Capture(listeners);
+	private final Capture candidateOutput = new Capture(null);
+
+	/**
+	 * The steps applied to the live controller, but not yet to the candidate.
+	 */
+	private final ArrayBlockingQueue<Step> steps = new ArrayBlockingQueue<Step>(CAPACITY);
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * The times (in nanoseconds) each controller took over recent steps, held
+	 * in rings. These, and the counts below, are only written by the shadow
+	 * thread.
+	 */
+	private final long[] liveTimes = new long[WINDOW];
+	private final long[] candidateTimes = new long[WINDOW];
+	private int next;
+	private int count;
+
+	private long compared;
+	private long mismatched;
+	private final ArrayList<String> mismatches = new ArrayList<String>();
+
+	public ShadowController(Controller live, Controller candidate) {
+		this.live = live;
+		this.candidate = candidate;
+		live.register(liveOutput);
+		candidate.register(candidateOutput);
+		Thread shadow = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				processSteps();
+			}
+		}, "Shadow");
+		shadow.setDaemon(true);
+		shadow.start();
+	}
+
+	/**
+	 * Register a listener for the live controller's output. The candidate's
+	 * output is never passed on.
+	 */
+	@Override
+	public void register(Listener listener) {
+		listeners.register(listener);
+	}
+
+	@Override
+	public void register(Listener listener, int types, int... keys) {
+		listeners.register(listener, types, keys);
+	}
+
+	@Override
+	public void notify(final Event e) {
+		apply(new Step() {
+			boolean apply(Controller controller) {
+				controller.notify(e);
+				return true;
+			}
+
+			public String toString() {
+				return e.toString();
+			}
+		});
+	}
+
+	@Override
+	public boolean start(final int trainID, final Route route) {
+		return apply(new Step() {
+			boolean apply(Controller controller) {
+				return controller.start(trainID, route);
+			}
+
+			public String toString() {
+				return "start(" + trainID + ", route from " + route.firstSection() + ")";
+			}
+		});
+	}
+
+	@Override
+	public void stop(final int trainID) {
+		apply(new Step() {
+			boolean apply(Controller controller) {
+				controller.stop(trainID);
+				return true;
+			}
+
+			public String toString() {
+				return "stop(" + trainID + ")";
+			}
+		});
+	}
+
+	@Override
+	public void locate(final int trainID, final int section) {
+		apply(new Step() {
+			boolean apply(Controller controller) {
+				controller.locate(trainID, section);
+				return true;
+			}
+
+			public String toString() {
+				return "locate(" + trainID + ", " + section + ")";
+			}
+		});
+	}
+
+	@Override
+	public void set(final int turnoutID, final boolean thrown) {
+		apply(new Step() {
+			boolean apply(Controller controller) {
+				controller.set(turnoutID, thrown);
+				return true;
+			}
+
+			public String toString() {
+				return "set(" + turnoutID + ", " + thrown + ")";
+			}
+		});
+	}
+
+	/**
+	 * Report an overdue train to those controllers which handle them.
+	 */
+	@Override
+	public void overdue(final int trainID, final int section) {
+		apply(new Step() {
+			boolean apply(Controller controller) {
+				if (controller instanceof Watchdog.Handler) {
+					((Watchdog.Handler) controller).overdue(trainID, section);
+				}
+				return true;
+			}
+
+			public String toString() {
+				return "overdue(" + trainID + ", " + section + ")";
+			}
+		});
+	}
+
+	/**
+	 * Set the speed scale of those controllers which have one (see
+	 * SimpleController.setSpeedScale()).
+	 */
+	public void setSpeedScale(final float scale) {
+		apply(new Step() {
+			boolean apply(Controller controller) {
+				if (controller instanceof SimpleController) {
+					((SimpleController) controller).setSpeedScale(scale);
+				}
+				return true;
+			}
+
+			public String toString() {
+				return "setSpeedScale(" + scale + ")";
+			}
+		});
+	}
+
+	@Override
+	public Train train(int trainID) {
+		return live.train(trainID);
+	}
+
+	@Override
+	public Snapshot snapshot() {
+		return live.snapshot();
+	}
+
+	// ===============================================================
+	// Comparison
+	// ===============================================================
+
+	/**
+	 * Get the number of steps compared so far.
+	 */
+	public synchronized long getCompared() {
+		return compared;
+	}
+
+	/**
+	 * Get the number of steps for which the controllers differed.
+	 */
+	public synchronized long getMismatched() {
+		return mismatched;
+	}
+
+	/**
+	 * Get the number of steps not given to the candidate, because the shadow
+	 * thread had fallen behind.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Get the number of events produced by the live controller outside of any
+	 * step.
+	 */
+	public long getLiveUnprompted() {
+		return liveOutput.unprompted.get();
+	}
+
+	/**
+	 * Get the number of events produced by the candidate outside of any step.
+	 */
+	public long getCandidateUnprompted() {
+		return candidateOutput.unprompted.get();
+	}
+
+	/**
+	 * Get descriptions of the most recent mismatches, oldest first.
+	 */
+	public synchronized List<String> getMismatches() {
+		return new ArrayList<String>(mismatches);
+	}
+
+	/**
+	 * Get a given percentile of the time (in microseconds) taken by either
+	 * controller over recent steps. If no steps have been compared, then
+	 * zero is returned.
+	 *
+	 * @param candidate
+	 *            Whether to report the candidate (rather than the live)
+	 *            controller.
+	 * @param percentile
+	 *            Between 0 and 100.
+	 * @return
+	 */
+	public synchronized double percentile(boolean candidate, double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(candidate ? candidateTimes : liveTimes, count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil((percentile / 100) * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, index))] / 1e3;
+	}
+
+	// ===============================================================
+	// Steps
+	// ===============================================================
+
+	/**
+	 * An operation applied to both controllers.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static abstract class Step {
+		/**
+		 * The live controller's output, result and time taken.
+		 */
+		private byte[] output;
+		private boolean result;
+		private long time;
+
+		/**
+		 * Apply this step to a given controller.
+		 *
+		 * @return The controller's result, or true if it has none.
+		 */
+		abstract boolean apply(Controller controller);
+	}
+
+	/**
+	 * Apply a step to the live controller, pass its output on to the
+	 * listeners, and pass the step on to the shadow thread. Steps are applied
+	 * one at a time, so that the live output can be attributed to each.
+	 */
+	private boolean apply(Step step) {
+		synchronized (liveOutput) {
+			liveOutput.begin();
+			long start = System.nanoTime();
+			try {
+				step.result = step.apply(live);
+			} finally {
+				step.time = System.nanoTime() - start;
+				step.output = liveOutput.end();
+				for (Event e : liveOutput.events()) {
+					listeners.notify(e);
+				}
+			}
+		}
+		if (!steps.offer(step)) {
+			dropped.incrementAndGet();
+		}
+		return step.result;
+	}
+
+	/**
+	 * The shadow thread's main loop. This takes each step in turn, applies it
+	 * to the candidate, and compares the outcome with that of the live
+	 * controller.
+	 */
+	private void processSteps() {
+		while (true) {
+			Step step;
+			try {
+				step = steps.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			boolean result = false;
+			Throwable error = null;
+			candidateOutput.begin();
+			long start = System.nanoTime();
+			try {
+				result = step.apply(candidate);
+			} catch (Throwable e) {
+				// Even an Error (e.g. a stack overflow in a bad candidate) is
+				// just a mismatch, and must not stop the shadow thread.
+				error = e;
+			}
+			long time = System.nanoTime() - start;
+			byte[] output = candidateOutput.end();
+			synchronized (this) {
+				liveTimes[next] = step.time;
+				candidateTimes[next] = time;
+				next = (next + 1) % WINDOW;
+				count = Math.min(count + 1, WINDOW);
+				compared++;
+				if (error != null || result != step.result || !Arrays.equals(output, step.output)) {
+					mismatched++;
+					if (mismatches.size() == MISMATCHES) {
+						mismatches.remove(0);
+					}
+					mismatches.add(step + ": live " + describe(step.output) + (step.result ? "" : " (failed)")
+							+ ", candidate "
+							+ (error != null ? "threw " + error : describe(output) + (result ? "" : " (failed)")));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Describe the events in a captured output.
+	 */
+	private static String describe(byte[] output) {
+		final ArrayList<Event> events = new ArrayList<Event>();
+		ByteBuffer buffer = ByteBuffer.wrap(output);
+		EventCodec.Replay replay = new EventCodec.Replay(new Event.Listener() {
+			@Override
+			public void notify(Event e) {
+				events.add(e);
+			}
+		});
+		while (buffer.hasRemaining()) {
+			EventCodec.decodeEvent(buffer, replay);
+		}
+		return events.toString();
+	}
+
+	/**
+	 * Encodes the events produced by a controller during a step. Only events
+	 * produced on the thread applying the step are captured. If the events are
+	 * to be passed on, they are also kept until the step ends, whilst any
+	 * produced outside of a step are passed on straight away.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Capture implements Event.Listener {
+		private static final Event[] NONE = new Event[0];
+
+		private ByteBuffer buffer = ByteBuffer.allocate(1024);
+		private final ArrayList<Event> events = new ArrayList<Event>();
+		private volatile Thread recording;
+		private final AtomicLong unprompted = new AtomicLong();
+
+		/**
+		 * Where the events are passed on, or null if they are not.
+		 */
+		private final Event.Listener output;
+
+		Capture(Event.Listener output) {
+			this.output = output;
+		}
+
+		void begin() {
+			buffer.clear();
+			events.clear();
+			recording = Thread.currentThread();
+		}
+
+		byte[] end() {
+			recording = null;
+			return Arrays.copyOf(buffer.array(), buffer.position());
+		}
+
+		/**
+		 * Get the events kept during the last step, which must have ended.
+		 */
+		Event[] events() {
+			return events.isEmpty() ? NONE : events.toArray(new Event[events.size()]);
+		}
+
+		@Override
+		public void notify(Event e) {
+			if (recording != Thread.currentThread()) {
+				unprompted.incrementAndGet();
+				if (output != null) {
+					output.notify(e);
+				}
+				return;
+			}
+			if (output != null) {
+				events.add(e);
+			}
+			if (buffer.remaining() < EventCodec.MAX_EVENT_SIZE) {
+				ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+				buffer.flip();
+				larger.put(buffer);
+				buffer = larger;
+			}
+			EventCodec.encode(e, buffer);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package modelrailway.util;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 import modelrailway.core.*;
 import modelrailway.core.Event.Listener;
@@ -10,58 +11,272 @@ import modelrailway.core.Event.TurnoutChanged;
  * A very simplistic implementation of the controller interface. This manages
  * trains as they progress through specific routes. 
  * 
+ * The controller takes no lock, and so must only be used from one thread at a
+ * time. To share it between threads, either confine it to a single thread
+ * (with an ActorController), or wrap it in a LockedController. Snapshots and
+ * listener registrations are thread-safe regardless, as is the speed scale.
+ * Everything else (e.g. the headway policy and watchdog) must be set before
+ * the controller is shared.
+ * 
  * @author David J. Pearce
  *
  */
-public class SimpleController implements Controller {
+public class SimpleController implements Controller, Watchdog.Handler {
 	/**
-	 * The set of listeners for events generated by this controller.
+	 * The listeners for events generated by this controller.
 	 */
-	private ArrayList<Event.Listener> listeners = new ArrayList<Event.Listener>();
+	private final EventBus listeners = new EventBus();
 	
 	/**
-	 * The current trains being tracked on the network.
+	 * The current trains being tracked on the network, along with the route
+	 * each is taking (if any). A route is essentially a sequence of sections
+	 * linked together.
 	 */
-	private Train[] trains;
-	
+	private final TrainTable trains;
+
+	/**
+	 * The junctions of the railway, against which each route is compiled.
+	 */
+	private final Junction[] junctions;
+
+	/**
+	 * The number of transitions ahead of each train for which turnouts are
+	 * set. Turnouts are therefore set well before a train arrives, and at
+	 * most one transition's worth of commands is sent each time a train
+	 * advances.
+	 */
+	private final int lookahead;
+
+	/**
+	 * The compiled plan for each train's current route, or null if the train
+	 * is not following a route.
+	 */
+	private RoutePlan[] plans;
+
+	/**
+	 * The number of transitions each train has made since starting its route,
+	 * or since it was last located (in which case it counts from the start of
+	 * the route).
+	 */
+	private int[] progress;
+
 	/**
-	 * The current routes each train is taking. A route is essentially a
-	 * sequence of sections linked together. They can be null if the train is
-	 * stopped and not currently following a route.
+	 * The number of transitions of each train's route for which turnout
+	 * commands have been sent.
 	 */
-	private Route[] routes;
+	private int[] issued;
+
+	/**
+	 * The last known setting of each turnout, either as commanded or as
+	 * reported by the railway. This avoids resending commands for turnouts
+	 * which are already set correctly.
+	 */
+	private final HashMap<Integer, Boolean> turnouts = new HashMap<Integer, Boolean>();
+
+	/**
+	 * The reservation of each turnout by the trains whose plans pass through
+	 * it. A train cannot change a turnout which another train has reserved.
+	 */
+	private final HashMap<Integer, Reservation> reservations = new HashMap<Integer, Reservation>();
+
+	/**
+	 * Whether each train is held (i.e. stopped short of a turnout reserved by
+	 * another train) until the turnout is released.
+	 */
+	private boolean[] held;
+
+	/**
+	 * The policy used to set each train's speed from the gap to the train
+	 * ahead, or null if trains simply run at a fixed speed.
+	 */
+	private Headway headway;
+
+	/**
+	 * The factor by which every speed is scaled before being sent, e.g.
+	 * because the railway is slow to respond to commands.
+	 */
+	private volatile float scale = 1.0f;
+
+	/**
+	 * The (scaled) speed most recently sent for each train.
+	 */
+	private float[] sent;
+
+	/**
+	 * The watchdog which notices trains failing to arrive in the next section
+	 * in time, or null if there is none.
+	 */
+	private Watchdog watchdog;
+
+	/**
+	 * Where failures (e.g. recognition failures) and overdue trains are
+	 * counted.
+	 */
+	private Metrics metrics = Metrics.INSTANCE;
+
+	/**
+	 * Whether the controller reports what it is doing (e.g. trains held or
+	 * stopped) on the console.
+	 */
+	private boolean verbose = true;
+
+	/**
+	 * The most recently published snapshot of the trains. This is replaced
+	 * (never modified) after each update, so readers on other threads always
+	 * see a consistent view without waiting for the controller.
+	 */
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>();
+
+	/**
+	 * The number of snapshots published so far.
+	 */
+	private long version;
 		
 	public SimpleController(Train... trains) {
-		this.routes = new Route[trains.length];
-		this.trains = trains;
+		this(new Junction[0], 0, trains);
+	}
+
+	/**
+	 * Construct a controller for a railway with a given set of junctions.
+	 * 
+	 * @param junctions
+	 * @param lookahead
+	 *            The number of transitions ahead of each train for which
+	 *            turnouts are set.
+	 * @param trains
+	 */
+	public SimpleController(Junction[] junctions, int lookahead, Train... trains) {
+		this.plans = new RoutePlan[trains.length];
+		this.progress = new int[trains.length];
+		this.issued = new int[trains.length];
+		this.held = new boolean[trains.length];
+		this.sent = new float[trains.length];
+		this.trains = new TrainTable(trains);
+		this.junctions = junctions;
+		this.lookahead = lookahead;
+		publish();
 	}
 	
+	/**
+	 * Set the policy used to adjust each train's speed according to the gap
+	 * to the train ahead. If null, trains run at a fixed speed.
+	 * 
+	 * @param headway
+	 */
+	public void setHeadway(Headway headway) {
+		this.headway = headway;
+	}
+
+	/**
+	 * Set the watchdog used to notice trains which fail to arrive in the next
+	 * section in time. The watchdog should report to this controller.
+	 * 
+	 * @param watchdog
+	 */
+	public void setWatchdog(Watchdog watchdog) {
+		this.watchdog = watchdog;
+	}
+
+	/**
+	 * Set where this controller counts failures and overdue trains, e.g. so
+	 * that several controllers running side by side are counted separately.
+	 * By default, they are counted in the metrics of the running railway.
+	 * 
+	 * @param metrics
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Set whether the controller reports what it is doing on the console.
+	 * This is on by default.
+	 * 
+	 * @param verbose
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Set the factor by which the speed of every train is scaled, e.g. to slow
+	 * trains down while the railway is slow to respond to commands. Nothing is
+	 * sent straight away, since the railway is likely to be struggling
+	 * already. Instead, each moving train picks up the new scale when its
+	 * speed next changes, or when it next enters a section, so that the
+	 * resends are spread out. This can be called from any thread.
+	 * 
+	 * @param scale
+	 *            Between 0.0 and 1.0.
+	 */
+	public void setSpeedScale(float scale) {
+		this.scale = scale;
+	}
+
 	@Override
 	public void register(Listener listener) {
-		listeners.add(listener);
+		listeners.register(listener);
+	}
+
+	@Override
+	public void register(Listener listener, int types, int... keys) {
+		listeners.register(listener, types, keys);
 	}
 	
 	@Override
 	public Train train(int trainID) {
-		return trains[trainID];
+		return snapshot.get().train(trainID);
+	}
+
+	@Override
+	public Snapshot snapshot() {
+		return snapshot.get();
 	}
 
 	@Override
 	public boolean start(int trainID, Route route) {
-		Train train = trains[trainID];
+		try {
+			return startTrain(trainID, route);
+		} finally {
+			publish();
+		}
+	}
+
+	private boolean startTrain(int trainID, Route route) {
 		// Now, check whether the train is on the starting section.
-		if (route.firstSection() == train.currentSection()) {
-			routes[trainID] = route;
+		RoutePlan plan = null;
+		if (route.firstSection() == trains.section(trainID)) {
+			// Compile the route first, since this fails if the route cannot
+			// be followed.
+			try {
+				plan = new RoutePlan(route, junctions);
+			} catch (IllegalArgumentException e) {
+				log("ROUTE REJECTED: " + e.getMessage());
+			}
+		}
+		if (plan != null) {
+			abandon(trainID);
+			resume();
+			plans[trainID] = plan;
+			progress[trainID] = 0;
+			issued[trainID] = 0;
+			trains.setRoute(trainID, route);
 			// In the simple controller, trains always move in the forwards
 			// direction. This is necessary because the controller has no
 			// knowledge of the network topology and cannot make any
 			// distinctions about what directions make sense.
+			trains.setOrientation(trainID, true);
 			send(new Event.DirectionChanged(trainID,true));
-			// In the simple controller, trains always move at a fixed velocity.
-			send(new Event.SpeedChanged(trainID,0.75f));
+			// Set the turnouts ahead of the train before it moves, unless
+			// they are reserved by another train.
+			if (lookAhead(trainID)) {
+				go(trainID);
+			}
 			return true;
 		} else {
-			routes[trainID] = null;
+			trains.setRoute(trainID, null);
+			abandon(trainID);
+			resume();
 			stop(trainID);
 			return false;
 		}
@@ -69,26 +284,56 @@ public class SimpleController implements Controller {
 
 	@Override
 	public void stop(int trainID) {
-		send(new Event.SpeedChanged(trainID,0.0f));		
+		setSpeed(trainID, 0);
 	}
 
 
+	@Override
+	public void locate(int trainID, int section) {
+		trains.locate(trainID, section);
+		if (trains.route(trainID) == null) {
+			// The train is no longer on its route, which is abandoned.
+			abandon(trainID);
+			resume();
+		} else if (plans[trainID] != null) {
+			// The train has moved elsewhere along its route, so its
+			// look-ahead restarts from there. Its old reservations refer to
+			// where it was, so they are released first.
+			for (Reservation r : reservations.values()) {
+				r.until[trainID] = -1;
+			}
+			progress[trainID] = trains.position(trainID);
+			issued[trainID] = progress[trainID];
+			if (lookAhead(trainID)) {
+				if (held[trainID]) {
+					held[trainID] = false;
+					go(trainID);
+				} else {
+					arm(trainID);
+				}
+			}
+			// Other trains may have been held for the released turnouts.
+			resume();
+		}
+		publish();
+	}
+
 	@Override
 	public void set(int turnoutID, boolean thrown) {
+		turnouts.put(turnoutID, thrown);
 		send(new Event.TurnoutChanged(turnoutID,thrown));
 	}
 	
 	@Override
-	public synchronized void notify(Event e) {
+	public void notify(Event e) {
 		// This function listens only to section changed events and makes sure
 		// that the trains are progressing correctly along each section in their
 		// route.
 		if(e instanceof Event.SectionChanged) {
 			Event.SectionChanged es = (Event.SectionChanged) e;
-			// The following calculation assumes that each detection section is
-			// an odd number, and that we have alternative
-			// detection/non-detection sections.
-			int section = 1 + ((es.getSection()-1) * 2);
+			// Sensors are mapped to sections by the railway's layout, so the
+			// section is exactly as reported.
+			int section = es.getSection();
 			// At this point, there are two things to do. Firstly, we need to
 			// confirm that this section changed event was the expected event
 			// for a route.  Second, we need to update the train with its
@@ -100,73 +345,319 @@ public class SimpleController implements Controller {
 				// section. To figure out which train, we need to look at the
 				// next expected section for each train to see whether it
 				// matches any of them.
-				for(int i=0;i!=trains.length;++i) {
-					Route route = routes[i];
-					if(route != null) {
-						Integer expected = route.nextSection(trains[i].currentSection());
-						if (expected != null && expected == section) {
-							// Matched
-							//System.out.println("MATCHED TRAIN " + i + " ENTERING SECTION " + section);
-							trainID = i;
-							break;
-						}
-					}
-				}
+				trainID = trains.expecting(section);
 			} else {
 				// This indicates that a train has moved out of a given
 				// detection section. To figure out which train, we need simply
-				// need to decide which train was in that section.
-				for(int i=0;i!=trains.length;++i) {
-					if(trains[i].currentSection() == section) {
-						// Matched
-						//System.out.println("MATCHED TRAIN " + i + " LEAVING SECTION " + section);
-						trainID = i;
-						break;
-					}
-				}
+				// need to decide which train was in that section. Trains which are
+				// not following a route (e.g. because they were stopped) are not
+				// expected to move.
+				trainID = trains.following(section);
 			}
 			
 			if(trainID == -1) {
 				// this indicates a recognition failure. At this point, we just
 				// stop all trains as a simplistic emergency procedure.
+				metrics.recognitionFailed();
 				//emergencyStopAll();
 			} else {
 				// We managed to determine which train caused this event,
 				// therefore we now update it's position.
-				Train train = trains[trainID];
-				Route route = routes[trainID];
-				Integer nextSection = route.nextSection(train.currentSection());
-				if(nextSection == null) {
+				if(trains.remaining(trainID) == 0) {
 					// This indicates something went wrong.
 					emergencyStopAll();
 				} else {
-					train.setSection(nextSection);
-					if(nextSection == route.lastSection()) {
+					trains.advance(trainID);
+					if(trains.remaining(trainID) == 0) {
 						// The train has reached the last section of its route.
 						stop(trainID);
-						routes[trainID] = null;
-					}					
+						trains.setRoute(trainID, null);
+						abandon(trainID);
+					} else {
+						progress[trainID]++;
+						release(trainID);
+						if(lookAhead(trainID)) {
+							if(sent[trainID] != trains.speed(trainID) * scale) {
+								// The speed scale has changed since this
+								// train's speed was sent.
+								setSpeed(trainID, trains.speed(trainID));
+							} else {
+								arm(trainID);
+							}
+						}
+					}
+					// Trains held for turnouts which this train has now
+					// released can proceed.
+					resume();
+					if(headway != null) {
+						// The gaps between this train and those either side
+						// of it have changed.
+						regulate();
+					}
 				}
 			}
+			publish();
+		} else if(e instanceof Event.TurnoutChanged) {
+			// The railway reported a turnout's actual setting.
+			Event.TurnoutChanged et = (Event.TurnoutChanged) e;
+			turnouts.put(et.getTurnout(), et.getThrown());
 		}
 	}
-	
+
+	/**
+	 * Send any turnout commands needed for the next few transitions of a
+	 * given train's route. In steady state, this sends the commands for one
+	 * transition each time the train advances, so that commands are spread
+	 * out rather than sent in bursts.
+	 * 
+	 * The turnouts of each transition are reserved for the train until it
+	 * has moved one section beyond the junction. A transition needing a
+	 * turnout which another train has reserved in the other setting is not
+	 * issued (nor are those after it) until the turnout is released. If the
+	 * train has reached that transition, it is held (i.e. stopped) until
+	 * then.
+	 * 
+	 * @param trainID
+	 * @return false if the train is held.
+	 */
+	private boolean lookAhead(int trainID) {
+		RoutePlan plan = plans[trainID];
+		int limit = progress[trainID] + lookahead;
+		if (!plan.route().isLoop()) {
+			limit = Math.min(limit, plan.transitions());
+		}
+		while (issued[trainID] < limit) {
+			int transition = issued[trainID] % plan.transitions();
+			List<Event.TurnoutChanged> commands = plan.commands(transition);
+			for (Event.TurnoutChanged command : commands) {
+				if (conflicts(trainID, command)) {
+					if (issued[trainID] == progress[trainID]) {
+						hold(trainID, command.getTurnout());
+						return false;
+					}
+					return true;
+				}
+			}
+			for (Event.TurnoutChanged command : commands) {
+				reserve(trainID, command, issued[trainID] + 2);
+				Boolean current = turnouts.get(command.getTurnout());
+				if (current == null || current != command.getThrown()) {
+					turnouts.put(command.getTurnout(), command.getThrown());
+					send(command);
+				}
+			}
+			issued[trainID]++;
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether a turnout command for a given train conflicts with the
+	 * reservation of another train.
+	 */
+	private boolean conflicts(int trainID, Event.TurnoutChanged command) {
+		Reservation r = reservations.get(command.getTurnout());
+		if (r == null || r.thrown == command.getThrown()) {
+			return false;
+		}
+		for (int i = 0; i != r.until.length; ++i) {
+			if (i != trainID && r.until[i] >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reserve the turnout of a given command for a train, until the train has
+	 * made a given number of transitions.
+	 */
+	private void reserve(int trainID, Event.TurnoutChanged command, int until) {
+		Reservation r = reservations.get(command.getTurnout());
+		if (r == null) {
+			r = new Reservation(trains.size());
+			reservations.put(command.getTurnout(), r);
+		}
+		r.thrown = command.getThrown();
+		r.until[trainID] = Math.max(r.until[trainID], until);
+	}
+
+	/**
+	 * Release the turnouts which a given train has moved past.
+	 */
+	private void release(int trainID) {
+		for (Reservation r : reservations.values()) {
+			if (r.until[trainID] >= 0 && r.until[trainID] <= progress[trainID]) {
+				r.until[trainID] = -1;
+			}
+		}
+	}
+
+	/**
+	 * Abandon a given train's plan (if any), releasing all its turnouts.
+	 */
+	private void abandon(int trainID) {
+		plans[trainID] = null;
+		held[trainID] = false;
+		for (Reservation r : reservations.values()) {
+			r.until[trainID] = -1;
+		}
+	}
+
+	/**
+	 * Stop a given train short of a turnout reserved by another train.
+	 */
+	private void hold(int trainID, int turnout) {
+		if (!held[trainID]) {
+			log("TRAIN " + trainID + " HELD FOR TURNOUT " + turnout);
+			held[trainID] = true;
+		}
+		setSpeed(trainID, 0);
+	}
+
+	/**
+	 * Restart any held trains whose turnouts have now been released.
+	 */
+	private void resume() {
+		for (int i = 0; i != plans.length; ++i) {
+			if (held[i] && plans[i] != null && lookAhead(i)) {
+				held[i] = false;
+				go(i);
+			}
+		}
+	}
+
+	/**
+	 * Set a train following a route moving. Without a headway policy, trains
+	 * always move at a fixed velocity.
+	 */
+	private void go(int trainID) {
+		setSpeed(trainID, headway == null ? 0.75f : headway.speed(trains.gap(trainID)));
+	}
+
 	private void emergencyStopAll() {
-		System.out.println("INVOKING EMERGENCY STOP");
-		for(int i=0;i!=trains.length;++i) {
-			routes[i] = null;
-			send(new Event.EmergencyStop(i));
+		log("INVOKING EMERGENCY STOP");
+		trains.stopAll();
+		Arrays.fill(sent, 0);
+		for (int i = 0; i != plans.length; ++i) {
+			abandon(i);
+		}
+		if (watchdog != null) {
+			for (int i = 0; i != trains.size(); ++i) {
+				watchdog.disarm(i);
+			}
 		}
+		// A single global stop reaches every train at once, rather than
+		// stopping them one by one.
+		send(new Event.EmergencyStopAll());
 	}
 	
+	/**
+	 * Stop a train which has failed to leave a section in time, since it may
+	 * have stalled or derailed. Its route is abandoned, so that it is not
+	 * restarted.
+	 */
+	@Override
+	public void overdue(int trainID, int section) {
+		if (trains.route(trainID) != null && trains.section(trainID) == section) {
+			log("TRAIN " + trainID + " OVERDUE IN SECTION " + section);
+			metrics.trainOverdue();
+			trains.setRoute(trainID, null);
+			abandon(trainID);
+			trains.setSpeed(trainID, 0);
+			sent[trainID] = 0;
+			resume();
+			send(new Event.EmergencyStop(trainID));
+			publish();
+		}
+	}
+
+	/**
+	 * Arm the watchdog for a given train, based on its current section and
+	 * speed. A stopped train has no deadline.
+	 * 
+	 * @param trainID
+	 */
+	private void arm(int trainID) {
+		if (watchdog != null) {
+			watchdog.arm(trainID, trains.section(trainID), trains.speed(trainID) * scale);
+		}
+	}
+
+	/**
+	 * Set the speed of a given train, sending it (scaled) to the railway and
+	 * rearming the watchdog accordingly.
+	 * 
+	 * @param trainID
+	 * @param speed
+	 */
+	private void setSpeed(int trainID, float speed) {
+		trains.setSpeed(trainID, speed);
+		sent[trainID] = speed * scale;
+		arm(trainID);
+		send(new Event.SpeedChanged(trainID, speed * scale));
+	}
+
+	/**
+	 * Adjust the speed of every train following a route according to the gap
+	 * to the train ahead. Only changes exceeding the headway policy's
+	 * threshold are sent.
+	 */
+	private void regulate() {
+		for (int i = 0; i != trains.size(); ++i) {
+			if (trains.route(i) != null && !held[i]) {
+				float target = headway.speed(trains.gap(i));
+				if (headway.changed(trains.speed(i), target)) {
+					setSpeed(i, target);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Publish a new snapshot reflecting the current state of the trains. This
+	 * must be called by the thread currently using the controller.
+	 */
+	private void publish() {
+		snapshot.set(trains.snapshot(++version));
+	}
+
 	/**
 	 * A helper function for broadcasting events to all registered listeners.
 	 * 
 	 * @param e
 	 */
 	private void send(Event e) {
-		for(Listener l : listeners) {
-			l.notify(e);
+		listeners.notify(e);
+	}
+
+	/**
+	 * Report something on the console, unless the controller is quiet.
+	 *
+	 * @param message
+	 */
+	private void log(String message) {
+		if (verbose) {
+			System.out.println(message);
+		}
+	}
+
+	/**
+	 * The setting in which a turnout is reserved, and the number of
+	 * transitions each train must make before it releases the turnout (or -1
+	 * if it does not hold it). Several trains can hold a turnout in the same
+	 * setting.
+	 * 
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Reservation {
+		private boolean thrown;
+		private final int[] until;
+
+		public Reservation(int nTrains) {
+			until = new int[nTrains];
+			Arrays.fill(until, -1);
 		}
 	}
 }
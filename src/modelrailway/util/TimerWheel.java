@@ -0,0 +1,207 @@
+package modelrailway.util;
+
+import java.util.ArrayList;
+
+/**
+ * A hashed timer wheel, for managing large numbers of deadlines cheaply. Time
+ * is divided into ticks, and each deadline is placed in the slot of the wheel
+ * for the tick in which it falls, along with the number of complete turns of
+ * the wheel remaining before it is due. Scheduling and cancelling a deadline
+ * are therefore constant time, regardless of how many are pending. The wheel
+ * has no thread of its own; rather, its owner calls <code>advance()</code>
+ * periodically with the current time, which runs any tasks whose deadlines
+ * have passed.
+ *
+ * Times are in milliseconds, but need not be wall-clock times (e.g. a
+ * simulation can drive the wheel with virtual time).
+ *
+ * @author David J. Pearce
+ *
+ */
+public class TimerWheel {
+	/**
+	 * The length of each tick (in milliseconds).
+	 */
+	private final long tick;
+
+	/**
+	 * The time at which tick zero began.
+	 */
+	private final long start;
+
+	/**
+	 * The slots of the wheel, each holding a doubly-linked list of timeouts.
+	 * The number of slots is a power of two.
+	 */
+	private final Timeout[] slots;
+
+	/**
+	 * The next tick to be processed.
+	 */
+	private long next;
+
+	/**
+	 * The number of timeouts currently scheduled.
+	 */
+	private int size;
+
+	/**
+	 * Construct a timer wheel.
+	 *
+	 * @param nSlots
+	 *            Number of slots, which is rounded up to a power of two.
+	 * @param tick
+	 *            Length of each tick (in milliseconds).
+	 * @param start
+	 *            The current time.
+	 */
+	public TimerWheel(int nSlots, long tick, long start) {
+		this.slots = new Timeout[Integer.highestOneBit(Math.max(1, nSlots - 1)) << 1];
+		this.tick = tick;
+		this.start = start;
+	}
+
+	/**
+	 * Get the time up to which the wheel has been advanced.
+	 *
+	 * @return
+	 */
+	public synchronized long now() {
+		return start + (next * tick);
+	}
+
+	/**
+	 * Get the number of timeouts currently scheduled.
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Schedule a task to run at a given time. The task runs on whichever
+	 * thread advances the wheel past the deadline, at most one tick late.
+	 *
+	 * @param deadline
+	 * @param task
+	 * @return A handle through which the timeout can be cancelled.
+	 */
+	public synchronized Timeout schedule(long deadline, Runnable task) {
+		long target = Math.max(next, (deadline - start + tick - 1) / tick);
+		Timeout timeout = new Timeout(task, (target - next) / slots.length);
+		int slot = (int) (target & (slots.length - 1));
+		timeout.slot = slot;
+		timeout.next = slots[slot];
+		if (slots[slot] != null) {
+			slots[slot].prev = timeout;
+		}
+		slots[slot] = timeout;
+		size++;
+		return timeout;
+	}
+
+	/**
+	 * Cancel a timeout, if it has not already run or been cancelled.
+	 *
+	 * @param timeout
+	 * @return True if the timeout was cancelled.
+	 */
+	public synchronized boolean cancel(Timeout timeout) {
+		if (timeout.slot < 0) {
+			return false;
+		}
+		unlink(timeout);
+		return true;
+	}
+
+	/**
+	 * Advance the wheel to a given time, running every task whose deadline
+	 * has passed. Tasks are run without holding the wheel's lock, so they may
+	 * schedule or cancel other timeouts.
+	 *
+	 * @param now
+	 * @return The number of tasks run.
+	 */
+	public int advance(long now) {
+		ArrayList<Runnable> expired = new ArrayList<Runnable>();
+		synchronized (this) {
+			while (start + (next * tick) <= now) {
+				Timeout timeout = slots[(int) (next & (slots.length - 1))];
+				while (timeout != null) {
+					Timeout following = timeout.next;
+					if (timeout.rounds == 0) {
+						unlink(timeout);
+						expired.add(timeout.task);
+					} else {
+						timeout.rounds--;
+					}
+					timeout = following;
+				}
+				next++;
+			}
+		}
+		for (Runnable task : expired) {
+			task.run();
+		}
+		return expired.size();
+	}
+
+	/**
+	 * Start a thread which advances the wheel in real time. This is not
+	 * needed when the wheel is driven by a simulation.
+	 *
+	 * @param interval
+	 *            Interval (in milliseconds) between advancing the wheel.
+	 */
+	public void start(final long interval) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						advance(System.currentTimeMillis());
+						Thread.sleep(interval);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "TimerWheel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			slots[timeout.slot] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.slot = -1;
+		size--;
+	}
+
+	/**
+	 * A task scheduled to run at a given time.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Timeout {
+		private final Runnable task;
+		private long rounds;
+		private int slot;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(Runnable task, long rounds) {
+			this.task = task;
+			this.rounds = rounds;
+		}
+	}
+}
@@ -0,0 +1,368 @@
+package modelrailway.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import modelrailway.core.Route;
+import modelrailway.core.Snapshot;
+import modelrailway.core.Train;
+
+/**
+ * The state of every train managed by a controller, held as a table of
+ * parallel columns (one array per field) rather than as one object per train.
+ * Passes over the whole fleet (e.g. matching a sensor event, stopping every
+ * train or taking a snapshot) therefore scan contiguous arrays rather than
+ * chasing pointers. Routes are stored as small integer ids, which are
+ * released (and later reused) once no train follows the route. The table also
+ * keeps a count of the trains in each section, so that the gap between trains
+ * can be found without scanning the fleet.
+ *
+ * The table is not thread-safe, and is owned by its controller.
+ *
+ * @author David J. Pearce
+ *
+ */
+final class TrainTable {
+	/**
+	 * The section each train is in.
+	 */
+	private final int[] sections;
+
+	/**
+	 * The orientation of each train (true = clockwise).
+	 */
+	private final boolean[] orientations;
+
+	/**
+	 * The id of the route each train is following, or -1 if none.
+	 */
+	private final int[] routeIds;
+
+	/**
+	 * The position of each train within its route.
+	 */
+	private final int[] positions;
+
+	/**
+	 * The next section each train is expected to enter, or -1 if none. This
+	 * is derived from the route and position, but is kept so that matching a
+	 * sensor event to a train scans only this column.
+	 */
+	private final int[] nexts;
+
+	/**
+	 * The speed most recently sent for each train.
+	 */
+	private final float[] speeds;
+
+	/**
+	 * The routes currently being followed, indexed by id. Ids which have
+	 * been released hold null.
+	 */
+	private final ArrayList<Route> routes = new ArrayList<Route>();
+	private final IdentityHashMap<Route, Integer> ids = new IdentityHashMap<Route, Integer>();
+
+	/**
+	 * The number of trains following each route, indexed by id.
+	 */
+	private int[] references = new int[8];
+
+	/**
+	 * The ids which have been released, and can be reused.
+	 */
+	private int[] free = new int[8];
+	private int nFree;
+
+	/**
+	 * The number of trains in each section.
+	 */
+	private int[] occupancy = new int[64];
+
+	public TrainTable(Train[] trains) {
+		this.sections = new int[trains.length];
+		this.orientations = new boolean[trains.length];
+		this.routeIds = new int[trains.length];
+		this.positions = new int[trains.length];
+		this.nexts = new int[trains.length];
+		this.speeds = new float[trains.length];
+		Arrays.fill(routeIds, -1);
+		Arrays.fill(nexts, -1);
+		for (int i = 0; i != trains.length; ++i) {
+			sections[i] = trains[i].currentSection();
+			orientations[i] = trains[i].currentOrientation();
+			occupy(sections[i], 1);
+		}
+	}
+
+	public int size() {
+		return sections.length;
+	}
+
+	public int section(int train) {
+		return sections[train];
+	}
+
+	public float speed(int train) {
+		return speeds[train];
+	}
+
+	public void setSpeed(int train, float speed) {
+		speeds[train] = speed;
+	}
+
+	/**
+	 * Set the orientation of a given train, e.g. when its direction is
+	 * changed.
+	 *
+	 * @param train
+	 * @param orientation
+	 *            True for clockwise.
+	 */
+	public void setOrientation(int train, boolean orientation) {
+		orientations[train] = orientation;
+	}
+
+	/**
+	 * Get the route a given train is following, or null if none.
+	 *
+	 * @param train
+	 * @return
+	 */
+	public Route route(int train) {
+		int id = routeIds[train];
+		return id < 0 ? null : routes.get(id);
+	}
+
+	/**
+	 * Get the position of a given train within its route, which is only
+	 * meaningful if it is following a route.
+	 *
+	 * @param train
+	 * @return
+	 */
+	public int position(int train) {
+		return positions[train];
+	}
+
+	/**
+	 * Get the number of transitions left before a given train reaches the end
+	 * of its route, or Integer.MAX_VALUE if the route is a loop.
+	 *
+	 * @param train
+	 * @return
+	 */
+	public int remaining(int train) {
+		Route route = route(train);
+		return route.isLoop() ? Integer.MAX_VALUE : route.size() - 1 - positions[train];
+	}
+
+	/**
+	 * Set the route for a given train, which must include its current
+	 * section. A null route means the train is not following any route.
+	 *
+	 * @param train
+	 * @param route
+	 */
+	public void setRoute(int train, Route route) {
+		if (route == null) {
+			release(train);
+			nexts[train] = -1;
+		} else {
+			Integer id = ids.get(route);
+			if (id == null) {
+				if (nFree > 0) {
+					id = free[--nFree];
+					routes.set(id, route);
+				} else {
+					id = routes.size();
+					routes.add(route);
+					if (id == references.length) {
+						references = Arrays.copyOf(references, id * 2);
+					}
+				}
+				ids.put(route, id);
+			}
+			// Take the new reference before releasing the old one, in case
+			// they are the same.
+			references[id]++;
+			release(train);
+			routeIds[train] = id;
+			positions[train] = route.indexOf(sections[train]);
+			nexts[train] = next(train);
+		}
+	}
+
+	/**
+	 * Stop a given train following its route (if any), releasing the route's
+	 * id if no other train follows it.
+	 *
+	 * @param train
+	 */
+	private void release(int train) {
+		int id = routeIds[train];
+		if (id >= 0) {
+			routeIds[train] = -1;
+			if (--references[id] == 0) {
+				ids.remove(routes.get(id));
+				routes.set(id, null);
+				if (nFree == free.length) {
+					free = Arrays.copyOf(free, nFree * 2);
+				}
+				free[nFree++] = id;
+			}
+		}
+	}
+
+	/**
+	 * Set the section of a given train. If the train is following a route
+	 * which does not include the section, then the route is abandoned.
+	 *
+	 * @param train
+	 * @param section
+	 */
+	public void locate(int train, int section) {
+		occupy(sections[train], -1);
+		sections[train] = section;
+		occupy(section, 1);
+		Route route = route(train);
+		if (route != null) {
+			positions[train] = route.indexOf(section);
+			if (positions[train] < 0) {
+				release(train);
+			}
+			nexts[train] = next(train);
+		}
+	}
+
+	/**
+	 * Get the next section a given train is expected to enter along its route,
+	 * or -1 if it is not following a route or is at the end of its route.
+	 *
+	 * @param train
+	 * @return
+	 */
+	private int next(int train) {
+		int id = routeIds[train];
+		if (id < 0) {
+			return -1;
+		}
+		Route route = routes.get(id);
+		int next = positions[train] + 1;
+		if (next == route.size()) {
+			if (!route.isLoop()) {
+				return -1;
+			}
+			next = 0;
+		}
+		return route.section(next);
+	}
+
+	/**
+	 * Move a given train on to the next section of its route.
+	 *
+	 * @param train
+	 */
+	public void advance(int train) {
+		Route route = routes.get(routeIds[train]);
+		int next = (positions[train] + 1) % route.size();
+		occupy(sections[train], -1);
+		sections[train] = route.section(next);
+		positions[train] = next;
+		nexts[train] = next(train);
+		occupy(sections[train], 1);
+	}
+
+	/**
+	 * Find the train expected to enter a given section next, or -1 if none.
+	 *
+	 * @param section
+	 * @return
+	 */
+	public int expecting(int section) {
+		for (int i = 0; i != nexts.length; ++i) {
+			if (nexts[i] == section) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Find a train following a route which is in a given section, or -1 if
+	 * none.
+	 *
+	 * @param section
+	 * @return
+	 */
+	public int following(int section) {
+		for (int i = 0; i != sections.length; ++i) {
+			if (sections[i] == section && routeIds[i] >= 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Determine the number of blocks from a given train to the next train
+	 * ahead of it along its route, where 1 means the very next block is
+	 * occupied. If no train is ahead, Integer.MAX_VALUE is returned.
+	 *
+	 * @param train
+	 * @return
+	 */
+	public int gap(int train) {
+		Route route = routes.get(routeIds[train]);
+		int position = positions[train];
+		int length = route.isLoop() ? route.size() : route.size() - position;
+		for (int k = 1; k < length; ++k) {
+			int section = route.section((position + k) % route.size());
+			// A train only appears in its own section, so any occupant of a
+			// different section is another train.
+			if (section != sections[train] && section < occupancy.length && occupancy[section] > 0) {
+				return k;
+			}
+		}
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Abandon the route of every train and record them as stopped.
+	 */
+	public void stopAll() {
+		Arrays.fill(routeIds, -1);
+		Arrays.fill(nexts, -1);
+		Arrays.fill(speeds, 0);
+		routes.clear();
+		ids.clear();
+		Arrays.fill(references, 0);
+		nFree = 0;
+	}
+
+	/**
+	 * Take an immutable snapshot of the table.
+	 *
+	 * @param version
+	 * @return
+	 */
+	public Snapshot snapshot(long version) {
+		Route[] trainRoutes = new Route[routeIds.length];
+		for (int i = 0; i != routeIds.length; ++i) {
+			int id = routeIds[i];
+			if (id >= 0) {
+				trainRoutes[i] = routes.get(id);
+			}
+		}
+		return new Snapshot(version, sections.clone(), orientations.clone(), trainRoutes);
+	}
+
+	private void occupy(int section, int delta) {
+		if (section < 0) {
+			return;
+		} else if (section >= occupancy.length) {
+			occupancy = Arrays.copyOf(occupancy, Math.max(section + 1, occupancy.length * 2));
+		}
+		occupancy[section] += delta;
+	}
+}
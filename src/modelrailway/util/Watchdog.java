@@ -0,0 +1,206 @@
+package modelrailway.util;
+
+import java.util.Arrays;
+
+import modelrailway.core.Layout;
+
+/**
+ * A safety watchdog which notices trains that fail to reach the next section
+ * in time (e.g. because they have stalled or derailed). Each time a moving
+ * train enters a section, a deadline is armed based on the section's length
+ * and the train's commanded speed. If the train has not moved on by then, the
+ * watchdog's handler is told, so that the train can be stopped. When the
+ * train's speed changes within a section, the deadline is moved according to
+ * how much of the section should remain at the new speed, but is still
+ * counted from when the train entered; thus, repeated speed changes cannot
+ * keep putting off the deadline of a stalled train. Deadlines are held in a
+ * timer wheel, so arming and cancelling are cheap regardless of the number of
+ * trains.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Watchdog {
+	/**
+	 * Responds to trains which are overdue. This is called from the thread
+	 * advancing the timer wheel.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface Handler {
+		/**
+		 * Called when a train has failed to leave a given section in time.
+		 *
+		 * @param train
+		 * @param section
+		 */
+		public void overdue(int train, int section);
+	}
+
+	private final TimerWheel wheel;
+	private final Layout layout;
+	private final Handler handler;
+
+	/**
+	 * The speed of a train at full throttle, in millimetres per second.
+	 */
+	private final double fullSpeed;
+
+	/**
+	 * The factor by which the expected time in a section is multiplied, to
+	 * allow for variation in train speeds.
+	 */
+	private final double margin;
+
+	/**
+	 * Extra time (in milliseconds) allowed in every section, to cover sensor
+	 * delays and acceleration.
+	 */
+	private final long slack;
+
+	/**
+	 * The deadline currently armed for each train, or null if none.
+	 */
+	private TimerWheel.Timeout[] deadlines = new TimerWheel.Timeout[0];
+
+	/**
+	 * The section each train was last armed in, or 0 if none.
+	 */
+	private int[] sections = new int[0];
+
+	/**
+	 * The time at which each train's slack in its section runs out, from
+	 * which its time in the section is counted.
+	 */
+	private long[] counted = new long[0];
+
+	/**
+	 * The fraction of its (margined) time in the section each train has used,
+	 * up until its last speed change.
+	 */
+	private double[] used = new double[0];
+
+	/**
+	 * The time at which each train's speed last changed.
+	 */
+	private long[] changed = new long[0];
+
+	/**
+	 * The fraction of its (margined) time in the section each train uses per
+	 * millisecond at its current speed, which is zero when stopped.
+	 */
+	private double[] rates = new double[0];
+
+	/**
+	 * Construct a watchdog.
+	 *
+	 * @param wheel
+	 *            The wheel in which deadlines are held.
+	 * @param layout
+	 *            Gives the length of each section.
+	 * @param fullSpeed
+	 *            Speed of a train at full throttle (mm per second).
+	 * @param margin
+	 *            Factor by which the expected time in a section is multiplied.
+	 * @param slack
+	 *            Extra time (ms) allowed in every section.
+	 * @param handler
+	 *            Told about overdue trains.
+	 */
+	public Watchdog(TimerWheel wheel, Layout layout, double fullSpeed, double margin, long slack, Handler handler) {
+		this.wheel = wheel;
+		this.layout = layout;
+		this.fullSpeed = fullSpeed;
+		this.margin = margin;
+		this.slack = slack;
+		this.handler = handler;
+	}
+
+	/**
+	 * Arm a deadline for a train in a given section at a given speed,
+	 * replacing any existing deadline for the train. If the train has just
+	 * entered the section, it is allowed the full time expected at this speed.
+	 * Otherwise, only the time needed for the remainder of the section is
+	 * allowed, based on the speeds it has had since entering. If the train is
+	 * stopped, or the section's length is unknown, then no deadline is armed.
+	 *
+	 * @param train
+	 * @param section
+	 * @param speed
+	 */
+	public synchronized void arm(final int train, final int section, float speed) {
+		cancel(train);
+		long now = wheel.now();
+		if (sections[train] != section) {
+			sections[train] = section;
+			counted[train] = now + slack;
+			used[train] = 0;
+		} else {
+			used[train] += Math.max(0, now - Math.max(changed[train], counted[train])) * rates[train];
+		}
+		changed[train] = now;
+		int length = layout.length(section);
+		if (speed <= 0 || length <= 0) {
+			rates[train] = 0;
+			return;
+		}
+		rates[train] = (speed * fullSpeed) / (length * 1000 * margin);
+		long remaining = (long) Math.ceil(Math.max(0, 1 - used[train]) / rates[train]);
+		long deadline = Math.max(now, counted[train]) + remaining;
+		final TimerWheel.Timeout[] timeout = new TimerWheel.Timeout[1];
+		timeout[0] = wheel.schedule(deadline, new Runnable() {
+			public void run() {
+				if (expire(train, timeout[0])) {
+					handler.overdue(train, section);
+				}
+			}
+		});
+		deadlines[train] = timeout[0];
+	}
+
+	/**
+	 * Cancel any deadline armed for a given train, and forget its section, so
+	 * that it is allowed the full time when next armed.
+	 *
+	 * @param train
+	 */
+	public synchronized void disarm(int train) {
+		cancel(train);
+		sections[train] = 0;
+	}
+
+	/**
+	 * Cancel any deadline armed for a given train, making room for the train
+	 * if it has not been seen before.
+	 */
+	private void cancel(int train) {
+		if (train >= deadlines.length) {
+			int n = Math.max(train + 1, deadlines.length * 2);
+			deadlines = Arrays.copyOf(deadlines, n);
+			sections = Arrays.copyOf(sections, n);
+			counted = Arrays.copyOf(counted, n);
+			used = Arrays.copyOf(used, n);
+			changed = Arrays.copyOf(changed, n);
+			rates = Arrays.copyOf(rates, n);
+		} else if (deadlines[train] != null) {
+			wheel.cancel(deadlines[train]);
+			deadlines[train] = null;
+		}
+	}
+
+	/**
+	 * Clear the deadline of a train whose timeout has just fired, provided it
+	 * has not been replaced in the meantime. The train's section is forgotten,
+	 * so that a train restarted after being stopped is allowed the full time.
+	 */
+	private synchronized boolean expire(int train, TimerWheel.Timeout timeout) {
+		if (deadlines[train] == timeout) {
+			deadlines[train] = null;
+			sections[train] = 0;
+			return true;
+		} else {
+			return false;
+		}
+	}
+}